@@ -0,0 +1,146 @@
+package com.leaf.downloads;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures binding every row of a large query through
+ * {@link DownloadManager.CursorTranslator}, reading the columns a downloads
+ * list shows, against reading the same columns from the untranslated cursor.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CursorTranslatorBenchmark {
+
+    private static final String TAG = "DownloadBenchmark";
+
+    private static final int ROWS = 50000;
+    private static final int ROUNDS = 20;
+
+    private static final int[] STATUSES = {
+            Downloads.Impl.STATUS_SUCCESS,
+            Downloads.Impl.STATUS_RUNNING,
+            Downloads.Impl.STATUS_WAITING_FOR_NETWORK,
+            Downloads.Impl.STATUS_FILE_ERROR,
+    };
+
+    @Test
+    public void benchmarkBindAllRows() throws Exception {
+        final Cursor raw = newUnderlyingCursor();
+        final Cursor translated = new DownloadManager.CursorTranslator(
+                newUnderlyingCursor(), null, true);
+
+        // Warm up both paths before measuring
+        bindAll(raw);
+        bindAll(translated);
+
+        long rawMillis = Long.MAX_VALUE;
+        long translatedMillis = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            bindAll(raw);
+            rawMillis = Math.min(rawMillis, SystemClock.elapsedRealtime() - start);
+
+            start = SystemClock.elapsedRealtime();
+            bindAll(translated);
+            translatedMillis = Math.min(translatedMillis, SystemClock.elapsedRealtime() - start);
+        }
+
+        Log.i(TAG, "Binding " + ROWS + " rows: untranslated " + rawMillis + "ms, translated "
+                + translatedMillis + "ms (" + (translatedMillis * 1000000 / ROWS)
+                + "ns per row)");
+    }
+
+    /**
+     * Read every row the way a list adapter binds one, looking the columns
+     * up once and reading status-dependent columns more than once per row.
+     */
+    private static void bindAll(Cursor cursor) {
+        final int id = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_ID);
+        final int title = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_TITLE);
+        final int status = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS);
+        final int reason = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_REASON);
+        final int localUri = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_LOCAL_URI);
+        final int total = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+        final int current = cursor.getColumnIndexOrThrow(
+                DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+        final int mediaType = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_MEDIA_TYPE);
+
+        long checksum = 0;
+        int rows = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            checksum += cursor.getLong(id);
+            checksum += cursor.getString(title).length();
+            checksum += cursor.getInt(status);
+            checksum += cursor.getInt(reason);
+            if (cursor.getInt(status) == DownloadManager.STATUS_SUCCESSFUL) {
+                checksum += cursor.getString(localUri).length();
+            }
+            checksum += cursor.getLong(current) * 100 / Math.max(1, cursor.getLong(total));
+            checksum += cursor.getString(mediaType).length();
+            rows++;
+        }
+        assertEquals(ROWS, rows);
+        assertEquals(false, checksum == 0);
+    }
+
+    /**
+     * Return rows shaped like the provider's answer to
+     * {@link DownloadManager#UNDERLYING_COLUMNS}.
+     */
+    private static Cursor newUnderlyingCursor() {
+        final String[] columns = new String[DownloadManager.UNDERLYING_COLUMNS.length];
+        for (int i = 0; i < columns.length; i++) {
+            final String column = DownloadManager.UNDERLYING_COLUMNS[i];
+            final int alias = column.lastIndexOf(" AS ");
+            columns[i] = (alias == -1) ? column : column.substring(alias + 4);
+        }
+
+        final MatrixCursor cursor = new MatrixCursor(columns, ROWS);
+        final Object[] row = new Object[columns.length];
+        for (int i = 0; i < ROWS; i++) {
+            for (int c = 0; c < columns.length; c++) {
+                row[c] = valueFor(columns[c], i);
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static Object valueFor(String column, int i) {
+        switch (column) {
+        case Downloads.Impl._ID:
+            return (long) i;
+        case DownloadManager.COLUMN_LOCAL_FILENAME:
+            return "/sdcard/Download/file-" + i + ".bin";
+        case Downloads.Impl.COLUMN_DESTINATION:
+            return (i % 2 == 0) ? Downloads.Impl.DESTINATION_EXTERNAL
+                    : Downloads.Impl.DESTINATION_FILE_URI;
+        case Downloads.Impl.COLUMN_STATUS:
+            return STATUSES[i % STATUSES.length];
+        case DownloadManager.COLUMN_TITLE:
+            return "file-" + i + ".bin";
+        case DownloadManager.COLUMN_MEDIA_TYPE:
+            return "application/octet-stream";
+        case DownloadManager.COLUMN_TOTAL_SIZE_BYTES:
+            return 1024L * 1024;
+        case DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR:
+            return (long) i * 20;
+        case DownloadManager.COLUMN_LAST_MODIFIED_TIMESTAMP:
+            return 1500000000000L + i;
+        case DownloadManager.COLUMN_REASON:
+            // Read as a number from the untranslated cursor, like SQLite would
+            return 0L;
+        default:
+            return "placeholder";
+        }
+    }
+}
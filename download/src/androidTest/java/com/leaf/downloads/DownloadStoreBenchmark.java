@@ -0,0 +1,153 @@
+package com.leaf.downloads;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the engine's writes through the content resolver, as they were
+ * made before {@link DownloadStore}, with the same writes through its
+ * precompiled statements. The provider runs in the test process, as it does
+ * in an app using the library.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DownloadStoreBenchmark {
+
+    private static final String TAG = "DownloadBenchmark";
+
+    private static final String NOT_DELETED_SELECTION =
+            Downloads.Impl.COLUMN_DELETED + " == '0'";
+
+    private static final int OPERATIONS = 500;
+    private static final int ROUNDS = 3;
+
+    private ContentResolver mResolver;
+    private Uri mUri;
+    private long mId;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+
+        // Paused, so the service leaves it alone while it is written to
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_URI, "http://127.0.0.1/benchmark");
+        values.put(Downloads.Impl.COLUMN_DESTINATION,
+                Downloads.Impl.DESTINATION_CACHE_PARTITION_PURGEABLE);
+        values.put(Downloads.Impl.COLUMN_VISIBILITY, Downloads.Impl.VISIBILITY_HIDDEN);
+        values.put(Downloads.Impl.COLUMN_CONTROL, Downloads.Impl.CONTROL_PAUSED);
+        final Uri inserted = mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+        assertNotNull(inserted);
+        mId = ContentUris.parseId(inserted);
+        mUri = ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, mId);
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(mUri, null, null);
+    }
+
+    @Test
+    public void benchmarkProgressWrites() throws Exception {
+        // Inserting created the provider, which attaches the store
+        assumeTrue(DownloadStore.updateProgress(mId, 0, 0, System.currentTimeMillis())
+                != DownloadStore.NOT_ATTACHED);
+
+        writeProgressThroughResolver();
+        writeProgressThroughStore();
+        long resolver = Long.MAX_VALUE;
+        long store = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            resolver = Math.min(resolver, writeProgressThroughResolver());
+            store = Math.min(store, writeProgressThroughStore());
+        }
+        report("Progress", resolver, store);
+    }
+
+    @Test
+    public void benchmarkStatusWrites() throws Exception {
+        assumeTrue(DownloadStore.updateStatus(mId, Downloads.Impl.STATUS_PAUSED_BY_APP)
+                != DownloadStore.NOT_ATTACHED);
+
+        writeStatusThroughResolver();
+        writeStatusThroughStore();
+        long resolver = Long.MAX_VALUE;
+        long store = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            resolver = Math.min(resolver, writeStatusThroughResolver());
+            store = Math.min(store, writeStatusThroughStore());
+        }
+        report("Status", resolver, store);
+    }
+
+    private long writeProgressThroughResolver() {
+        final ContentValues values = new ContentValues();
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, (long) i * Constants.BUFFER_SIZE);
+            values.put(Downloads.Impl.COLUMN_EXTRACT_OFFSET, 0L);
+            values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, System.currentTimeMillis());
+            assertEquals(1, mResolver.update(mUri, values, NOT_DELETED_SELECTION, null));
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private long writeProgressThroughStore() {
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            assertEquals(1, DownloadStore.updateProgress(mId, (long) i * Constants.BUFFER_SIZE,
+                    0, System.currentTimeMillis()));
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Alternate between two statuses that don't wake the service.
+     */
+    private long writeStatusThroughResolver() {
+        final ContentValues values = new ContentValues();
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            values.put(Downloads.Impl.COLUMN_STATUS, statusFor(i));
+            assertEquals(1, mResolver.update(mUri, values, null, null));
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private long writeStatusThroughStore() {
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            assertEquals(1, DownloadStore.updateStatus(mId, statusFor(i)));
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static int statusFor(int i) {
+        return (i % 2 == 0) ? Downloads.Impl.STATUS_PAUSED_BY_APP
+                : Downloads.Impl.STATUS_WAITING_TO_RETRY;
+    }
+
+    private static void report(String kind, long resolverMillis, long storeMillis) {
+        Log.i(TAG, kind + " writes, " + OPERATIONS + " per round: resolver "
+                + opsPerSecond(resolverMillis) + " ops/s, store "
+                + opsPerSecond(storeMillis) + " ops/s");
+    }
+
+    private static long opsPerSecond(long millis) {
+        return (millis == 0) ? 0 : OPERATIONS * 1000L / millis;
+    }
+}
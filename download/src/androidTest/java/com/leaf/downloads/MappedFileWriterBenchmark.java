@@ -0,0 +1,127 @@
+package com.leaf.downloads;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares writing a large download to its destination through a stream, as
+ * the thread does by default, with writing it through {@link MappedFileWriter},
+ * including the checkpoints that make progress durable.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MappedFileWriterBenchmark {
+
+    private static final String TAG = "DownloadBenchmark";
+
+    private static final int LENGTH = 64 * 1024 * 1024;
+    private static final int CHECKPOINT_BYTES = 4 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    private File mFile;
+    private final byte[] mBuffer = new byte[Constants.BUFFER_SIZE];
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getFilesDir(), "bench.bin");
+        for (int i = 0; i < mBuffer.length; i++) {
+            mBuffer[i] = (byte) i;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void benchmarkStreamVersusMapped() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+
+        // Warm up both paths before measuring
+        writeStream();
+        writeMapped();
+
+        long stream = Long.MAX_VALUE;
+        long mapped = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            stream = Math.min(stream, writeStream());
+            mapped = Math.min(mapped, writeMapped());
+        }
+
+        Log.i(TAG, "Writing " + (LENGTH >> 20) + "MB with a checkpoint every "
+                + (CHECKPOINT_BYTES >> 20) + "MB: stream " + stream + "ms ("
+                + throughput(stream) + "MB/s), mapped " + mapped + "ms ("
+                + throughput(mapped) + "MB/s)");
+    }
+
+    private long writeStream() throws IOException {
+        mFile.delete();
+        final long start = SystemClock.elapsedRealtime();
+        final FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            for (int written = 0; written < LENGTH; written += mBuffer.length) {
+                out.write(mBuffer);
+                if ((written + mBuffer.length) % CHECKPOINT_BYTES == 0) {
+                    out.getFD().sync();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        verify();
+        return elapsed;
+    }
+
+    private long writeMapped() throws IOException {
+        mFile.delete();
+        final long start = SystemClock.elapsedRealtime();
+        final MappedFileWriter writer = MappedFileWriter.open(mFile, LENGTH, 0);
+        try {
+            for (int written = 0; written < LENGTH; written += mBuffer.length) {
+                writer.write(written, mBuffer, 0, mBuffer.length);
+                if ((written + mBuffer.length) % CHECKPOINT_BYTES == 0) {
+                    writer.force();
+                }
+            }
+        } finally {
+            writer.close(LENGTH);
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        verify();
+        return elapsed;
+    }
+
+    private void verify() throws IOException {
+        assertEquals(LENGTH, mFile.length());
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            raf.seek(LENGTH - mBuffer.length);
+            final byte[] tail = new byte[mBuffer.length];
+            raf.readFully(tail);
+            assertEquals(mBuffer[mBuffer.length - 1], tail[tail.length - 1]);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long throughput(long millis) {
+        return (millis == 0) ? 0 : ((long) LENGTH * 1000 / millis) >> 20;
+    }
+}
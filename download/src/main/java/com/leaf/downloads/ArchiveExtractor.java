@@ -0,0 +1,517 @@
+package com.leaf.downloads;
+
+import android.util.Log;
+
+import com.leaf.downloads.utils.IoUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Extracts a zip or tar archive into a directory while it is being read from
+ * the network, without materializing the archive itself.
+ * <p>
+ * Entry headers are parsed directly so that the exact archive offset of each
+ * entry boundary is known; extraction can later resume from the last
+ * complete entry by starting a new extractor at that offset.
+ */
+final class ArchiveExtractor {
+
+    public interface Listener {
+        /**
+         * Called after an entry has been completely written to disk.
+         *
+         * @param boundaryOffset archive offset where the next entry starts,
+         *            or 0 when the archive can't be resumed mid-way.
+         */
+        void onEntryExtracted(long boundaryOffset) throws IOException;
+    }
+
+    private static final int ZIP_LOCAL_HEADER = 0x04034b50;
+    private static final int ZIP_DATA_DESCRIPTOR = 0x08074b50;
+    private static final int ZIP_CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP_END_HEADER = 0x06054b50;
+    private static final int ZIP_FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int ZIP_FLAG_UTF8 = 1 << 11;
+    private static final int ZIP_METHOD_STORED = 0;
+    private static final int ZIP_METHOD_DEFLATED = 8;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    private static final int TAR_BLOCK = 512;
+    /** The largest GNU long name or pax header we're willing to hold in memory */
+    private static final int MAX_TAR_EXTENDED_HEADER = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final File mTargetDir;
+    private final String mTargetPath;
+    private final Listener mListener;
+
+    private final byte[] mBuffer = new byte[Constants.BUFFER_SIZE];
+    private final byte[] mOutBuffer = new byte[Constants.BUFFER_SIZE];
+
+    private InputStream mIn;
+    private boolean mResumable;
+
+    /** Archive offset of the next byte returned by {@link #read(byte[], int, int)}. */
+    private long mOffset;
+
+    /** Bytes read ahead of the current offset, such as leftover inflater input. */
+    private final byte[] mPending = new byte[Constants.BUFFER_SIZE];
+    private int mPendingOff;
+    private int mPendingLen;
+
+    public ArchiveExtractor(File targetDir, Listener listener) throws IOException {
+        mTargetDir = targetDir;
+        mTargetPath = targetDir.getCanonicalPath() + File.separator;
+        mListener = listener;
+    }
+
+    /**
+     * Extract all entries from the given stream.
+     *
+     * @param in archive data, positioned at {@code offset}, which must be an
+     *            entry boundary reported by an earlier extraction, or 0.
+     * @param resumable whether {@code in} carries raw archive bytes, so that
+     *            entry boundaries can be reported for resuming.
+     */
+    public void extract(InputStream in, int transform, long offset, boolean resumable)
+            throws IOException {
+        if (!mTargetDir.isDirectory() && !mTargetDir.mkdirs()) {
+            throw new IOException("Failed to create " + mTargetDir);
+        }
+
+        mIn = in;
+        mOffset = offset;
+        mResumable = resumable;
+
+        if ((transform & Downloads.Impl.TRANSFORM_EXTRACT_TAR) != 0) {
+            if (offset == 0) {
+                final PushbackInputStream pushback = new PushbackInputStream(in, 2);
+                final byte[] magic = new byte[2];
+                int len = 0;
+                while (len < 2) {
+                    final int read = pushback.read(magic, len, 2 - len);
+                    if (read == -1) {
+                        break;
+                    }
+                    len += read;
+                }
+                pushback.unread(magic, 0, len);
+                mIn = pushback;
+
+                if (len == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+                    // Compressed tarball; offsets inside gzip can't be resumed
+                    mIn = new GZIPInputStream(pushback);
+                    mResumable = false;
+                }
+            }
+            extractTar();
+        } else {
+            extractZip();
+        }
+    }
+
+    private void extractZip() throws IOException {
+        final byte[] header = new byte[26];
+        while (true) {
+            final int signature = readIntLe();
+            if (signature == ZIP_CENTRAL_HEADER || signature == ZIP_END_HEADER) {
+                // Central directory only repeats what we already extracted
+                drain();
+                return;
+            } else if (signature != ZIP_LOCAL_HEADER) {
+                throw new ZipException("Unexpected zip signature " + Integer.toHexString(signature));
+            }
+
+            readFully(header, 0, header.length);
+            final int flags = shortLe(header, 2);
+            final int method = shortLe(header, 4);
+            long crc = intLe(header, 10) & ZIP64_MAGIC;
+            long compressedSize = intLe(header, 14) & ZIP64_MAGIC;
+            final int nameLength = shortLe(header, 22);
+            final int extraLength = shortLe(header, 24);
+
+            final byte[] nameBytes = new byte[nameLength];
+            readFully(nameBytes, 0, nameLength);
+            final String name = new String(nameBytes,
+                    (flags & ZIP_FLAG_UTF8) != 0 ? UTF_8 : ISO_8859_1);
+
+            final byte[] extra = new byte[extraLength];
+            readFully(extra, 0, extraLength);
+            boolean zip64 = false;
+            for (int i = 0; i + 4 <= extraLength; ) {
+                final int id = shortLe(extra, i);
+                final int length = shortLe(extra, i + 2);
+                if (id == ZIP64_EXTRA_ID && length >= 16 && i + 4 + length <= extraLength) {
+                    // Uncompressed size comes first, then compressed size
+                    zip64 = true;
+                    compressedSize = longLe(extra, i + 12);
+                }
+                i += 4 + length;
+            }
+
+            final boolean hasDescriptor = (flags & ZIP_FLAG_DATA_DESCRIPTOR) != 0;
+            final File file = resolveEntry(name);
+            final CRC32 checksum = new CRC32();
+
+            if (name.endsWith("/")) {
+                if (!file.isDirectory() && !file.mkdirs()) {
+                    throw new IOException("Failed to create " + file);
+                }
+            } else {
+                final OutputStream out = openEntry(file);
+                try {
+                    if (method == ZIP_METHOD_STORED) {
+                        if (hasDescriptor && compressedSize == 0) {
+                            throw new ZipException("Stored entry without size: " + name);
+                        }
+                        copy(out, compressedSize, checksum);
+                    } else if (method == ZIP_METHOD_DEFLATED) {
+                        inflate(out, checksum);
+                    } else {
+                        throw new ZipException("Unsupported compression method " + method);
+                    }
+                } finally {
+                    IoUtils.closeQuietly(out);
+                }
+            }
+
+            if (hasDescriptor) {
+                final int first = readIntLe();
+                final byte[] descriptor = new byte[zip64 ? 20 : 12];
+                if (first == ZIP_DATA_DESCRIPTOR) {
+                    readFully(descriptor, 0, descriptor.length);
+                    crc = intLe(descriptor, 0) & ZIP64_MAGIC;
+                } else {
+                    // Signature is optional; first word was the CRC
+                    crc = first & ZIP64_MAGIC;
+                    readFully(descriptor, 4, descriptor.length - 4);
+                }
+            }
+
+            if (!name.endsWith("/") && checksum.getValue() != crc) {
+                throw new ZipException("CRC mismatch for " + name);
+            }
+
+            entryDone();
+        }
+    }
+
+    private void extractTar() throws IOException {
+        final byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (true) {
+            final int read = readUpTo(header, 0, TAR_BLOCK);
+            if (read == 0) {
+                return;
+            } else if (read < TAR_BLOCK) {
+                throw new EOFException("Truncated tar header");
+            }
+            if (isZeroBlock(header)) {
+                // End of archive marker
+                drain();
+                return;
+            }
+
+            String name = cString(header, 0, 100);
+            if ("ustar".equals(cString(header, 257, 5))) {
+                final String prefix = cString(header, 345, 155);
+                if (prefix.length() > 0) {
+                    name = prefix + "/" + name;
+                }
+            }
+            if (longName != null) {
+                name = longName;
+                longName = null;
+            }
+
+            final long size = parseTarNumber(header, 124, 12);
+            if (size < 0) {
+                throw new IOException("Invalid tar entry size " + size);
+            }
+            final long padding = (TAR_BLOCK - (size % TAR_BLOCK)) % TAR_BLOCK;
+            final byte type = header[156];
+
+            if (type == 'L' || type == 'x') {
+                // GNU long name or pax extended header for the following entry
+                if (size > MAX_TAR_EXTENDED_HEADER) {
+                    throw new IOException("Tar extended header too large: " + size);
+                }
+                final byte[] data = new byte[(int) size];
+                readFully(data, 0, data.length);
+                skipFully(padding);
+                if (type == 'L') {
+                    longName = cString(data, 0, data.length);
+                } else {
+                    final String path = parsePaxPath(data);
+                    if (path != null) {
+                        longName = path;
+                    }
+                }
+                continue;
+            }
+
+            if (type == '0' || type == 0) {
+                final File file = resolveEntry(name);
+                final OutputStream out = openEntry(file);
+                try {
+                    copy(out, size, null);
+                } finally {
+                    IoUtils.closeQuietly(out);
+                }
+            } else if (type == '5') {
+                final File dir = resolveEntry(name);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Failed to create " + dir);
+                }
+                skipFully(size);
+            } else {
+                // Links, devices and extended headers are not extracted
+                if (Constants.LOGV) {
+                    Log.v(Constants.TAG, "Skipping tar entry of type " + (char) type);
+                }
+                skipFully(size);
+            }
+            skipFully(padding);
+
+            entryDone();
+        }
+    }
+
+    private void entryDone() throws IOException {
+        mListener.onEntryExtracted(mResumable ? mOffset : 0);
+    }
+
+    /**
+     * Resolve an entry name inside the target directory, refusing names that
+     * would escape it.
+     */
+    private File resolveEntry(String name) throws IOException {
+        final File file = new File(mTargetDir, name);
+        final String path = file.getCanonicalPath();
+        if (!(path + File.separator).startsWith(mTargetPath)) {
+            throw new ZipException("Entry outside target directory: " + name);
+        }
+        return file;
+    }
+
+    private OutputStream openEntry(File file) throws IOException {
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        return new FileOutputStream(file);
+    }
+
+    private void copy(OutputStream out, long length, CRC32 checksum) throws IOException {
+        while (length > 0) {
+            final int len = read(mBuffer, 0, (int) Math.min(mBuffer.length, length));
+            if (len == -1) {
+                throw new EOFException("Truncated archive entry");
+            }
+            out.write(mBuffer, 0, len);
+            if (checksum != null) {
+                checksum.update(mBuffer, 0, len);
+            }
+            length -= len;
+        }
+    }
+
+    private void inflate(OutputStream out, CRC32 checksum) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    final int len = read(mBuffer, 0, mBuffer.length);
+                    if (len == -1) {
+                        throw new EOFException("Truncated deflate stream");
+                    }
+                    inflater.setInput(mBuffer, 0, len);
+                }
+                final int len;
+                try {
+                    len = inflater.inflate(mOutBuffer);
+                } catch (DataFormatException e) {
+                    throw new ZipException(e.getMessage());
+                }
+                if (len == 0 && inflater.needsDictionary()) {
+                    throw new ZipException("Deflate stream needs dictionary");
+                }
+                out.write(mOutBuffer, 0, len);
+                checksum.update(mOutBuffer, 0, len);
+            }
+
+            // Hand back input that belongs to whatever follows the entry
+            final int remaining = inflater.getRemaining();
+            if (remaining > 0) {
+                unread(mBuffer, mBufferEnd - remaining, remaining);
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** End of the last chunk returned by {@link #read(byte[], int, int)} into {@link #mBuffer}. */
+    private int mBufferEnd;
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        int read;
+        if (mPendingLen > 0) {
+            read = Math.min(len, mPendingLen);
+            System.arraycopy(mPending, mPendingOff, b, off, read);
+            mPendingOff += read;
+            mPendingLen -= read;
+        } else {
+            read = mIn.read(b, off, len);
+            if (read == -1) {
+                return -1;
+            }
+        }
+        mOffset += read;
+        if (b == mBuffer) {
+            mBufferEnd = off + read;
+        }
+        return read;
+    }
+
+    private void unread(byte[] b, int off, int len) {
+        // Pending data is always fully consumed before more is read, so
+        // whatever we hand back sits at the start of the pending buffer.
+        System.arraycopy(b, off, mPending, 0, len);
+        mPendingOff = 0;
+        mPendingLen = len;
+        mOffset -= len;
+    }
+
+    private int readUpTo(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int read = read(b, off + total, len - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        if (readUpTo(b, off, len) != len) {
+            throw new EOFException("Truncated archive");
+        }
+    }
+
+    private void skipFully(long length) throws IOException {
+        while (length > 0) {
+            final int len = read(mBuffer, 0, (int) Math.min(mBuffer.length, length));
+            if (len == -1) {
+                throw new EOFException("Truncated archive");
+            }
+            length -= len;
+        }
+    }
+
+    private void drain() throws IOException {
+        while (read(mBuffer, 0, mBuffer.length) != -1) {
+            // Consume trailing data so the transfer can verify its length
+        }
+    }
+
+    private int readIntLe() throws IOException {
+        final byte[] word = new byte[4];
+        readFully(word, 0, 4);
+        return intLe(word, 0);
+    }
+
+    private static int shortLe(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    private static int intLe(byte[] b, int off) {
+        return shortLe(b, off) | (shortLe(b, off + 2) << 16);
+    }
+
+    private static long longLe(byte[] b, int off) {
+        return (intLe(b, off) & ZIP64_MAGIC) | ((long) intLe(b, off + 4) << 32);
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String cString(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) {
+            end++;
+        }
+        return new String(b, off, end - off, UTF_8);
+    }
+
+    /**
+     * Return the "path" record of a pax extended header, made of records
+     * like "30 path=some/long/file/name\n".
+     */
+    private static String parsePaxPath(byte[] data) {
+        int pos = 0;
+        while (pos < data.length) {
+            int space = pos;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            final int length;
+            try {
+                length = Integer.parseInt(new String(data, pos, space - pos, UTF_8));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (length <= 0 || pos + length > data.length) {
+                return null;
+            }
+            final String record = new String(data, space + 1, pos + length - space - 2, UTF_8);
+            if (record.startsWith("path=")) {
+                return record.substring(5);
+            }
+            pos += length;
+        }
+        return null;
+    }
+
+    private static long parseTarNumber(byte[] b, int off, int len) {
+        if ((b[off] & 0x80) != 0) {
+            // GNU base-256 encoding for large sizes
+            long value = 0;
+            for (int i = off + 1; i < off + len; i++) {
+                value = (value << 8) | (b[i] & 0xff);
+            }
+            return value;
+        }
+        int i = off;
+        while (i < off + len && (b[i] == ' ' || b[i] == 0)) {
+            i++;
+        }
+        long value = 0;
+        for (; i < off + len && b[i] >= '0' && b[i] <= '7'; i++) {
+            value = (value << 3) + (b[i] - '0');
+        }
+        return value;
+    }
+}
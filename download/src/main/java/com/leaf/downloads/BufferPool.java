@@ -0,0 +1,331 @@
+package com.leaf.downloads;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.leaf.downloads.Constants.TAG;
+
+/**
+ * Transfer buffers shared by all download threads, so that retries, resumes
+ * and pipelined chunks reuse memory instead of allocating afresh.
+ * <p>
+ * Buffers come in power-of-two size classes from {@link Constants#BUFFER_SIZE}
+ * up to {@link Constants#PIPELINE_CHUNK_SIZE}. Each thread keeps a few
+ * released buffers of each class to itself, and hands them back to the shared
+ * lists when it finishes, see {@link #releaseThreadCache()}.
+ * <p>
+ * The pool never holds more than {@link Constants#BUFFER_POOL_MAX_BYTES}.
+ * Idle buffers, whether shared or cached by a thread, are dropped to make
+ * room for other sizes. Once nothing idle is left, callers wait for a buffer
+ * to be released, and after {@link Constants#BUFFER_POOL_WAIT_MILLIS} get a
+ * one-off buffer that is dropped again when released. Callers wanting
+ * several buffers at once use {@link #acquireUpTo(int, int)}, which only
+ * waits for the first.
+ * <p>
+ * With verbose logging enabled, where each buffer was acquired is tracked,
+ * and buffers still held when their thread finishes are logged as leaks.
+ */
+final class BufferPool {
+
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(
+            Constants.PIPELINE_CHUNK_SIZE / Constants.BUFFER_SIZE) + 1;
+
+    private static final boolean TRACK_LEAKS = Constants.LOGVV;
+
+    private static final Object sLock = new Object();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayDeque<byte[]>[] sFree = new ArrayDeque[CLASS_COUNT];
+
+    static {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            sFree[i] = new ArrayDeque<byte[]>();
+        }
+    }
+
+    /** Every thread's cache, so idle buffers in them can be trimmed. Guarded by sLock. */
+    private static final List<ArrayDeque<byte[]>[]> sThreadCaches =
+            new ArrayList<ArrayDeque<byte[]>[]>();
+
+    // Only touched under sLock, by any thread when trimming
+    private static final ThreadLocal<ArrayDeque<byte[]>[]> sThreadCache =
+            new ThreadLocal<ArrayDeque<byte[]>[]>() {
+                @Override
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                protected ArrayDeque<byte[]>[] initialValue() {
+                    final ArrayDeque<byte[]>[] cache = new ArrayDeque[CLASS_COUNT];
+                    for (int i = 0; i < CLASS_COUNT; i++) {
+                        cache[i] = new ArrayDeque<byte[]>(Constants.BUFFER_POOL_THREAD_CACHE);
+                    }
+                    synchronized (sLock) {
+                        sThreadCaches.add(cache);
+                    }
+                    return cache;
+                }
+            };
+
+    /** Where each outstanding buffer was acquired, when tracking leaks. */
+    private static final Map<byte[], Allocation> sOutstanding =
+            new IdentityHashMap<byte[], Allocation>();
+
+    // Guarded by sLock
+    private static long sAllocatedBytes;
+    private static long sInUseBytes;
+    private static long sPeakInUseBytes;
+    private static long sHits;
+    private static long sMisses;
+    private static long sWaits;
+    private static long sOverflows;
+    /** Callers waiting in {@link #takeShared} for a buffer to be released */
+    private static int sWaiting;
+
+    private BufferPool() {
+    }
+
+    private static class Allocation extends Throwable {
+        final Thread mThread;
+
+        Allocation(Thread thread) {
+            super("Buffer acquired by " + thread.getName());
+            mThread = thread;
+        }
+    }
+
+    /**
+     * Return a buffer of at least {@code size} bytes, waiting while the pool
+     * is at its cap. Must be given back through {@link #release(byte[])}.
+     */
+    static byte[] acquire(int size) {
+        final int sizeClass = getSizeClass(size);
+        if (sizeClass < 0) {
+            // Larger than anything pooled
+            return new byte[size];
+        }
+        final ArrayDeque<byte[]>[] cache = sThreadCache.get();
+        synchronized (sLock) {
+            return take(cache, sizeClass, true);
+        }
+    }
+
+    /**
+     * Return between one and {@code count} buffers of at least {@code size}
+     * bytes, only waiting for the first while the pool is at its cap, so
+     * callers never sit on buffers while waiting for more. Each must be given
+     * back through {@link #release(byte[])}.
+     */
+    static byte[][] acquireUpTo(int size, int count) {
+        final int sizeClass = getSizeClass(size);
+        if (sizeClass < 0) {
+            return new byte[][] { new byte[size] };
+        }
+
+        final List<byte[]> buffers = new ArrayList<byte[]>(count);
+        final ArrayDeque<byte[]>[] cache = sThreadCache.get();
+        synchronized (sLock) {
+            buffers.add(take(cache, sizeClass, true));
+            while (buffers.size() < count) {
+                final byte[] buffer = take(cache, sizeClass, false);
+                if (buffer == null) {
+                    break;
+                }
+                buffers.add(buffer);
+            }
+        }
+        return buffers.toArray(new byte[buffers.size()][]);
+    }
+
+    /**
+     * Take a buffer of the given class, or return null when none is free
+     * and {@code wait} is false. Called with sLock held.
+     */
+    private static byte[] take(ArrayDeque<byte[]>[] cache, int sizeClass, boolean wait) {
+        byte[] buffer = cache[sizeClass].pollFirst();
+        if (buffer != null) {
+            sHits++;
+        } else {
+            buffer = takeShared(sizeClass, Constants.BUFFER_SIZE << sizeClass, wait);
+            if (buffer == null) {
+                return null;
+            }
+        }
+
+        sInUseBytes += buffer.length;
+        sPeakInUseBytes = Math.max(sPeakInUseBytes, sInUseBytes);
+        if (TRACK_LEAKS) {
+            sOutstanding.put(buffer, new Allocation(Thread.currentThread()));
+        }
+        return buffer;
+    }
+
+    private static byte[] takeShared(int sizeClass, int classSize, boolean wait) {
+        final long deadline = System.currentTimeMillis() + Constants.BUFFER_POOL_WAIT_MILLIS;
+        boolean waited = false;
+        while (true) {
+            final byte[] buffer = sFree[sizeClass].pollFirst();
+            if (buffer != null) {
+                sHits++;
+                return buffer;
+            }
+
+            if (sAllocatedBytes + classSize > Constants.BUFFER_POOL_MAX_BYTES) {
+                trimIdle(sAllocatedBytes + classSize - Constants.BUFFER_POOL_MAX_BYTES);
+            }
+            if (sAllocatedBytes + classSize <= Constants.BUFFER_POOL_MAX_BYTES) {
+                sMisses++;
+                sAllocatedBytes += classSize;
+                return new byte[classSize];
+            }
+            if (!wait) {
+                return null;
+            }
+
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                // Counted against the cap, so release drops it again
+                sOverflows++;
+                sAllocatedBytes += classSize;
+                Log.w(TAG, "Buffer pool exhausted at " + sAllocatedBytes + " bytes");
+                return new byte[classSize];
+            }
+            if (!waited) {
+                waited = true;
+                sWaits++;
+            }
+            sWaiting++;
+            try {
+                sLock.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sOverflows++;
+                sAllocatedBytes += classSize;
+                return new byte[classSize];
+            } finally {
+                sWaiting--;
+            }
+        }
+    }
+
+    /**
+     * Drop idle buffers of any class, largest first, until at least
+     * {@code bytes} are freed or none are left. Shared buffers go before
+     * those cached by threads.
+     */
+    private static void trimIdle(long bytes) {
+        bytes = trim(sFree, bytes);
+        for (int i = 0; i < sThreadCaches.size() && bytes > 0; i++) {
+            bytes = trim(sThreadCaches.get(i), bytes);
+        }
+    }
+
+    private static long trim(ArrayDeque<byte[]>[] lists, long bytes) {
+        for (int i = CLASS_COUNT - 1; i >= 0 && bytes > 0; i--) {
+            while (bytes > 0 && !lists[i].isEmpty()) {
+                final byte[] buffer = lists[i].pollFirst();
+                sAllocatedBytes -= buffer.length;
+                bytes -= buffer.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Give back a buffer from {@link #acquire(int)}. The caller must not touch
+     * it afterwards.
+     */
+    static void release(byte[] buffer) {
+        final int sizeClass = getSizeClass(buffer.length);
+        if (sizeClass < 0 || (Constants.BUFFER_SIZE << sizeClass) != buffer.length) {
+            return;
+        }
+
+        final ArrayDeque<byte[]> cache = sThreadCache.get()[sizeClass];
+        synchronized (sLock) {
+            if (TRACK_LEAKS && sOutstanding.remove(buffer) == null) {
+                Log.w(TAG, "Released a buffer that isn't outstanding",
+                        new IllegalStateException());
+                return;
+            }
+            sInUseBytes -= buffer.length;
+
+            if (sAllocatedBytes > Constants.BUFFER_POOL_MAX_BYTES) {
+                // Over the cap after an overflow; let this one go
+                sAllocatedBytes -= buffer.length;
+                sLock.notifyAll();
+                return;
+            }
+            // Waiters can only take shared buffers, or trim them to make room
+            if (sWaiting == 0 && cache.size() < Constants.BUFFER_POOL_THREAD_CACHE) {
+                cache.addFirst(buffer);
+                return;
+            }
+            sFree[sizeClass].addFirst(buffer);
+            sLock.notifyAll();
+        }
+    }
+
+    /**
+     * Hand the buffers cached by the calling thread back to the shared
+     * lists. Called as each download or worker thread finishes.
+     */
+    static void releaseThreadCache() {
+        final ArrayDeque<byte[]>[] cache = sThreadCache.get();
+        synchronized (sLock) {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                sFree[i].addAll(cache[i]);
+                cache[i].clear();
+            }
+            sThreadCaches.remove(cache);
+            sLock.notifyAll();
+
+            if (TRACK_LEAKS) {
+                final Thread thread = Thread.currentThread();
+                for (Map.Entry<byte[], Allocation> entry : sOutstanding.entrySet()) {
+                    if (entry.getValue().mThread == thread) {
+                        Log.w(TAG, "Leaked a buffer of " + entry.getKey().length + " bytes",
+                                entry.getValue());
+                    }
+                }
+            }
+        }
+        sThreadCache.remove();
+    }
+
+    /**
+     * Return the smallest size class holding {@code size} bytes, or -1 when
+     * larger than the largest class.
+     */
+    private static int getSizeClass(int size) {
+        int sizeClass = 0;
+        int classSize = Constants.BUFFER_SIZE;
+        while (classSize < size) {
+            classSize <<= 1;
+            sizeClass++;
+        }
+        return (sizeClass < CLASS_COUNT) ? sizeClass : -1;
+    }
+
+    static void dump(PrintWriter writer) {
+        synchronized (sLock) {
+            writer.println("Buffer pool:");
+            writer.println("  allocated=" + sAllocatedBytes + " inUse=" + sInUseBytes
+                    + " peakInUse=" + sPeakInUseBytes + " max=" + Constants.BUFFER_POOL_MAX_BYTES);
+            writer.println("  hits=" + sHits + " misses=" + sMisses + " waits=" + sWaits
+                    + " overflows=" + sOverflows);
+            final StringBuilder idle = new StringBuilder("  idle=");
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                if (i > 0) idle.append(' ');
+                idle.append(Constants.BUFFER_SIZE << i).append('x').append(sFree[i].size());
+            }
+            writer.println(idle);
+            if (TRACK_LEAKS) {
+                writer.println("  outstanding=" + sOutstanding.size());
+            }
+        }
+    }
+}
@@ -116,15 +116,111 @@ public class Constants {
     /** The MIME type of APKs */
     public static final String MIMETYPE_APK = "application/vnd.android.package";
 
+    /** The number of deleted downloads whose rows are removed together */
+    public static final int GC_BATCH_SIZE = 100;
+
+    /** The number of URIs whose downloads are remembered by a caching lookup */
+    public static final int URI_LOOKUP_CACHE_SIZE = 256;
+
+    /** The number of validated selections remembered by the provider */
+    public static final int SELECTION_CACHE_SIZE = 64;
+
+    /** How long a listing of a destination directory is trusted for picking filenames */
+    public static final long FILENAME_INDEX_TTL = 60 * 1000;
+
     /** The buffer size used to stream the data */
     public static final int BUFFER_SIZE = 8192;
 
+    /** The amount of data buffered for a stream consumer before the transfer blocks */
+    public static final int STREAM_BUFFER_SIZE = 256 * 1024;
+
+    /** The number of chunks in flight between the network reader and the disk writer */
+    public static final int PIPELINE_CHUNKS = 8;
+
+    /** The size of each chunk handed from the network reader to the disk writer */
+    public static final int PIPELINE_CHUNK_SIZE = 64 * 1024;
+
+    /** How long what was learned about a server keeping connections alive holds */
+    public static final long KEEP_ALIVE_CAPABILITY_TTL = 60 * 60 * 1000;
+
+    /** The threads writing out bodies driven by the non-blocking engine */
+    public static final int NIO_WORKER_THREADS = 2;
+
+    /** The most memory held by transfer buffers across all downloads */
+    public static final long BUFFER_POOL_MAX_BYTES = 4 * 1024 * 1024;
+
+    /** The released buffers of each size a download thread keeps for itself */
+    public static final int BUFFER_POOL_THREAD_CACHE = 2;
+
+    /** How long to wait for a transfer buffer before allocating one past the cap */
+    public static final long BUFFER_POOL_WAIT_MILLIS = 2 * 1000;
+
+    /** The smallest download of known length written through mapped windows */
+    public static final long MIN_MAPPED_BYTES = 16 * 1024 * 1024;
+
+    /** The size of each mapped window of the destination file */
+    public static final int MAPPED_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    /** How long the transfer waits on a full consumer stream before rechecking its state, in ms */
+    public static final long STREAM_OFFER_TIMEOUT = 1000;
+
+    /** How long an in-flight reader waits for new data before rechecking the download, in ms */
+    public static final long PROGRESSIVE_WAIT_TIMEOUT = 1000;
+
+    /** How far an in-flight reader must seek past the written data to fetch it out of order */
+    public static final long PRIORITY_RANGE_THRESHOLD = 1024 * 1024;
+
+    /** The amount of data fetched out of order for an in-flight reader */
+    public static final int PRIORITY_RANGE_SIZE = 256 * 1024;
+
+    /** The number of names tried for the directory a download extracts into */
+    public static final int MAX_EXTRACTION_DIR_ATTEMPTS = 100;
+
+    /** The largest patch window we're willing to hold in memory */
+    public static final int MAX_PATCH_WINDOW = 16 * 1024 * 1024;
+
+    /** The number of download attempts whose metrics are kept in memory */
+    public static final int MAX_METRICS_RECORDS = 128;
+
+    /** The time a network read has to block before it counts as a stall */
+    public static final long STALL_THRESHOLD_MILLIS = 1000;
+
+    /** The amount of data written between free space checks when the size is unknown */
+    public static final long SPACE_CHECK_STEP = 1024 * 1024;
+
     /** The minimum amount of progress that has to be done before the progress bar gets updated */
     public static final int MIN_PROGRESS_STEP = 65536;
 
     /** The minimum amount of time that has to elapse before the progress bar gets updated, in ms */
     public static final long MIN_PROGRESS_TIME = 2000;
 
+    /**
+     * The minimum amount of time between syncing progress and writing it to the database, in ms;
+     * progress in between only goes to the {@link ProgressJournal}
+     */
+    public static final long PROGRESS_COMPACT_TIME = 10 * 1000;
+
+    /** The size of the {@link ProgressJournal}, in bytes */
+    public static final int PROGRESS_JOURNAL_SIZE = 64 * 1024;
+
+    /** The minimum amount of time between wakeups of progress listeners, in ms */
+    public static final long PROGRESS_NOTIFY_INTERVAL = 1000;
+
+    /** The number of times a running download may follow the network to a new one */
+    public static final int MAX_NETWORK_HANDOVERS = 3;
+
+    /** How long a download waits for a new network after the active one went away, in ms */
+    public static final long HANDOVER_TIMEOUT_MILLIS = 10 * 1000;
+
+    /** The slack allowed when waking up for delayed retries, so they can be batched, in ms */
+    public static final long SCHEDULE_WINDOW_MILLIS = 60 * 1000;
+
+    /**
+     * How often to recheck charging and idle requirements when the platform
+     * can't tell us about them, in ms
+     */
+    public static final long CONSTRAINT_POLL_INTERVAL = 15 * 60 * 1000;
+
     /**
      * The number of times that the download manager will retry its network
      * operations when no progress is happening before it gives up.
@@ -0,0 +1,319 @@
+package com.leaf.downloads;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.leaf.downloads.utils.IoUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.leaf.downloads.Constants.TAG;
+
+/**
+ * Cleans up after deleted downloads on a background thread, so removing
+ * many of them never holds up the update pass.
+ * <p>
+ * Downloads are deleted by marking them with
+ * {@link Downloads.Impl#COLUMN_DELETED}. A collection pass reads those
+ * tombstones, removes their files and media entries, then deletes their rows
+ * {@link Constants#GC_BATCH_SIZE} at a time, each batch in one provider call.
+ * Files that couldn't be removed, or that live on storage that isn't
+ * mounted, are remembered as orphans and retried on later passes. Each
+ * orphan keeps the length and modification time its file had, when known,
+ * so a file another download has since written under the same name is never
+ * taken for it.
+ */
+final class DownloadGarbageCollector {
+
+    private static final String PREFS_NAME = "download_gc";
+    private static final String KEY_ORPHANS = "orphans";
+
+    private static final Object sLock = new Object();
+
+    private static Handler sHandler;
+    private static boolean sCollectPending;
+
+    private DownloadGarbageCollector() {
+    }
+
+    /**
+     * Schedule a collection pass, unless one is waiting to run already.
+     */
+    static void collect(final Context context) {
+        synchronized (sLock) {
+            if (sCollectPending) {
+                return;
+            }
+            sCollectPending = true;
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (sLock) {
+                        sCollectPending = false;
+                    }
+                    collectNow(context.getApplicationContext());
+                }
+            });
+        }
+    }
+
+    /**
+     * Delete the file of the given download in the background.
+     */
+    static void deleteFile(final Context context, final long id, final String path,
+            final int status, final long currentBytes) {
+        synchronized (sLock) {
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    final Set<String> orphans = new HashSet<String>();
+                    deleteFile(id, path, getKnownLength(status, currentBytes), orphans);
+                    addOrphans(context.getApplicationContext(), orphans);
+                }
+            });
+        }
+    }
+
+    private static Handler getHandler() {
+        if (sHandler == null) {
+            final HandlerThread thread = new HandlerThread("DownloadGarbageCollector",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    private static void collectNow(Context context) {
+        final ContentResolver resolver = context.getContentResolver();
+        final Set<String> orphans = new HashSet<String>();
+
+        final List<Long> ids = new ArrayList<Long>();
+        final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                new String[] {
+                        Downloads.Impl._ID, Downloads.Impl._DATA,
+                        Downloads.Impl.COLUMN_MEDIAPROVIDER_URI, Downloads.Impl.COLUMN_STATUS,
+                        Downloads.Impl.COLUMN_CURRENT_BYTES
+                }, Downloads.Impl.COLUMN_DELETED + " = 1", null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    final String mediaProviderUri = cursor.getString(2);
+                    if (!TextUtils.isEmpty(mediaProviderUri)) {
+                        try {
+                            resolver.delete(Uri.parse(mediaProviderUri), null, null);
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "Failed to delete media entry " + mediaProviderUri, e);
+                        }
+                    }
+                    final long id = cursor.getLong(0);
+                    deleteFile(id, cursor.getString(1),
+                            getKnownLength(cursor.getInt(3), cursor.getLong(4)), orphans);
+                    ids.add(id);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        for (int start = 0; start < ids.size(); start += Constants.GC_BATCH_SIZE) {
+            final List<Long> batch = ids.subList(start,
+                    Math.min(ids.size(), start + Constants.GC_BATCH_SIZE));
+            final long[] batchIds = new long[batch.size()];
+            for (int i = 0; i < batchIds.length; i++) {
+                batchIds[i] = batch.get(i);
+            }
+            resolver.delete(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                    DownloadManager.getWhereClauseForIds(batchIds),
+                    DownloadManager.getWhereArgsForIds(batchIds));
+        }
+
+        // Give earlier orphans another chance, now their storage may be back
+        final SharedPreferences prefs = getPrefs(context);
+        for (String record : prefs.getStringSet(KEY_ORPHANS, new HashSet<String>())) {
+            final Orphan orphan = Orphan.decode(record);
+            if (orphan != null) {
+                retryOrphan(resolver, orphan, orphans);
+            }
+        }
+        prefs.edit().putStringSet(KEY_ORPHANS, orphans).apply();
+
+        if (Constants.LOGV) {
+            Log.v(TAG, "Collected " + ids.size() + " deleted downloads, " + orphans.size()
+                    + " orphaned files left");
+        }
+    }
+
+    /**
+     * Returns the length the file of a download should have, or -1 when it
+     * may hold more than its recorded bytes, as a partial download can.
+     */
+    private static long getKnownLength(int status, long currentBytes) {
+        return (status == Downloads.Impl.STATUS_SUCCESS) ? currentBytes : -1;
+    }
+
+    private static void deleteFile(long id, String path, long length, Set<String> orphans) {
+        if (TextUtils.isEmpty(path)) {
+            return;
+        }
+        final File file = new File(path);
+        if (!isVolumeMounted(file)) {
+            // Can't tell whether it's there until the storage is back
+            orphans.add(new Orphan(id, path, length, -1).encode());
+            return;
+        }
+        if (file.exists() && !IoUtils.deleteRecursively(file)) {
+            Log.w(TAG, "file: '" + path + "' couldn't be deleted");
+            if (file.exists()) {
+                orphans.add(new Orphan(id, path, file.isDirectory() ? -1 : file.length(),
+                        file.lastModified()).encode());
+            }
+        }
+    }
+
+    /**
+     * Delete the file of an orphan if it is still the one left behind.
+     * Nothing is deleted recursively, since after a remount the name may
+     * have been given to a new download.
+     */
+    private static void retryOrphan(ContentResolver resolver, Orphan orphan,
+            Set<String> orphans) {
+        final File file = new File(orphan.mPath);
+        if (!isVolumeMounted(file)) {
+            orphans.add(orphan.encode());
+            return;
+        }
+        if (!file.exists()) {
+            return;
+        }
+        if (isClaimed(resolver, orphan) || !orphan.matches(file)) {
+            if (Constants.LOGV) {
+                Log.v(TAG, "Leaving " + orphan.mPath + ", no longer left by " + orphan.mId);
+            }
+            return;
+        }
+        if (!file.delete()) {
+            if (file.isDirectory()) {
+                // Only ever removed once empty
+                Log.w(TAG, "Leaving non-empty orphaned directory " + orphan.mPath);
+            } else {
+                orphans.add(orphan.encode());
+            }
+        }
+    }
+
+    /**
+     * Returns whether a download other than the one that left the orphan
+     * now uses its path.
+     */
+    private static boolean isClaimed(ContentResolver resolver, Orphan orphan) {
+        final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                new String[] { Downloads.Impl._ID },
+                Downloads.Impl._DATA + " = ? AND " + Downloads.Impl._ID + " != ?",
+                new String[] { orphan.mPath, String.valueOf(orphan.mId) }, null);
+        if (cursor == null) {
+            // Can't tell, so leave it be
+            return true;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns whether the storage volume holding the given file is mounted, so
+     * that a file missing from it is really gone.
+     */
+    private static boolean isVolumeMounted(File file) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Unknown for paths outside external storage, such as internal storage
+            final String state = Environment.getExternalStorageState(file);
+            return Environment.MEDIA_MOUNTED.equals(state)
+                    || Environment.MEDIA_UNKNOWN.equals(state);
+        }
+        final File external = Environment.getExternalStorageDirectory();
+        if (external != null && file.getAbsolutePath().startsWith(
+                external.getAbsolutePath() + File.separator)) {
+            return Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
+        }
+        return true;
+    }
+
+    private static void addOrphans(Context context, Set<String> orphans) {
+        if (orphans.isEmpty()) {
+            return;
+        }
+        final SharedPreferences prefs = getPrefs(context);
+        orphans.addAll(prefs.getStringSet(KEY_ORPHANS, new HashSet<String>()));
+        prefs.edit().putStringSet(KEY_ORPHANS, orphans).apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * A file left behind by a deleted download, as it looked when it was
+     * left. A length or modification time of -1 is unknown.
+     */
+    static final class Orphan {
+        final long mId;
+        final String mPath;
+        final long mLength;
+        final long mLastModified;
+
+        Orphan(long id, String path, long length, long lastModified) {
+            mId = id;
+            mPath = path;
+            mLength = length;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * Returns whether the given file still looks like the one left.
+         */
+        boolean matches(File file) {
+            if (mLength >= 0 && (file.isDirectory() || file.length() != mLength)) {
+                return false;
+            }
+            return mLastModified < 0 || file.lastModified() == mLastModified;
+        }
+
+        String encode() {
+            // The path goes last, since it may hold the separator
+            return mId + ":" + mLength + ":" + mLastModified + ":" + mPath;
+        }
+
+        /**
+         * Returns the orphan a record was encoded from, or null if it isn't one.
+         */
+        static Orphan decode(String record) {
+            final String[] parts = record.split(":", 4);
+            if (parts.length < 4 || parts[3].isEmpty()) {
+                return null;
+            }
+            try {
+                return new Orphan(Long.parseLong(parts[0]), parts[3], Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -64,7 +64,6 @@ public class DownloadInfo {
                 Context context, DownloadNotifier notifier) {
             final DownloadInfo info = new DownloadInfo(context, notifier);
             updateFromDatabase(info);
-            readRequestHeaders(info);
             return info;
         }
 
@@ -91,6 +90,8 @@ public class DownloadInfo {
             info.mTotalBytes = getLong(Downloads.Impl.COLUMN_TOTAL_BYTES);
             info.mCurrentBytes = getLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
             info.mETag = getString(Constants.ETAG);
+            info.mServerLastModified = getString(Downloads.Impl.COLUMN_SERVER_LAST_MODIFIED);
+            info.mRevalidate = getInt(Downloads.Impl.COLUMN_REVALIDATE) != 0;
             info.mUid = getInt(Constants.UID);
             info.mMediaScanned = getInt(Downloads.Impl.COLUMN_MEDIA_SCANNED);
             info.mDeleted = getInt(Downloads.Impl.COLUMN_DELETED) == 1;
@@ -99,43 +100,23 @@ public class DownloadInfo {
             info.mAllowedNetworkTypes = getInt(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES);
             info.mAllowRoaming = getInt(Downloads.Impl.COLUMN_ALLOW_ROAMING) != 0;
             info.mAllowMetered = getInt(Downloads.Impl.COLUMN_ALLOW_METERED) != 0;
+            info.mRequiresCharging = getInt(Downloads.Impl.COLUMN_REQUIRES_CHARGING) != 0;
+            info.mRequiresDeviceIdle = getInt(Downloads.Impl.COLUMN_REQUIRES_DEVICE_IDLE) != 0;
             info.mTitle = getString(Downloads.Impl.COLUMN_TITLE);
             info.mDescription = getString(Downloads.Impl.COLUMN_DESCRIPTION);
             info.mBypassRecommendedSizeLimit =
                     getInt(Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
+            info.mStreamMode = getInt(Downloads.Impl.COLUMN_STREAM_MODE);
+            info.mTransform = getInt(Downloads.Impl.COLUMN_TRANSFORM);
+            info.mExtractDir = getString(Downloads.Impl.COLUMN_EXTRACT_DIR);
+            info.mExtractOffset = getLong(Downloads.Impl.COLUMN_EXTRACT_OFFSET);
+            info.mPatchBase = getString(Downloads.Impl.COLUMN_PATCH_BASE);
+            info.mPatchDigest = getString(Downloads.Impl.COLUMN_PATCH_DIGEST);
 
             synchronized (this) {
                 info.mControl = getInt(Downloads.Impl.COLUMN_CONTROL);
             }
-        }
-
-        private void readRequestHeaders(DownloadInfo info) {
-            info.mRequestHeaders.clear();
-            Uri headerUri = Uri.withAppendedPath(
-                    info.getAllDownloadsUri(), Downloads.Impl.RequestHeaders.URI_SEGMENT);
-            Cursor cursor = mResolver.query(headerUri, null, null, null, null);
-            try {
-                int headerIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_HEADER);
-                int valueIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_VALUE);
-                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                    addHeader(info, cursor.getString(headerIndex), cursor.getString(valueIndex));
-                }
-            } finally {
-                cursor.close();
-            }
-
-            if (info.mCookies != null) {
-                addHeader(info, "Cookie", info.mCookies);
-            }
-            if (info.mReferer != null) {
-                addHeader(info, "Referer", info.mReferer);
-            }
-        }
-
-        private void addHeader(DownloadInfo info, String header, String value) {
-            info.mRequestHeaders.add(Pair.create(header, value));
+            info.updateControlWord();
         }
 
         private String getString(String column) {
@@ -226,6 +207,8 @@ public class DownloadInfo {
     public long mTotalBytes;
     public long mCurrentBytes;
     public String mETag;
+    public String mServerLastModified;
+    public boolean mRevalidate;
     public int mUid;
     public int mMediaScanned;
     public boolean mDeleted;
@@ -234,13 +217,37 @@ public class DownloadInfo {
     public int mAllowedNetworkTypes;
     public boolean mAllowRoaming;
     public boolean mAllowMetered;
+    public boolean mRequiresCharging;
+    public boolean mRequiresDeviceIdle;
     public String mTitle;
     public String mDescription;
     public int mBypassRecommendedSizeLimit;
+    public int mStreamMode;
+    public int mTransform;
+    public String mExtractDir;
+    public long mExtractOffset;
+    public String mPatchBase;
+    public String mPatchDigest;
 
     public int mFuzz;
 
-    private List<Pair<String, String>> mRequestHeaders = new ArrayList<Pair<String, String>>();
+    /** Bit in {@link #getControlWord()} set when the owner paused the download. */
+    public static final int CONTROL_WORD_PAUSED = 1;
+    /** Bit in {@link #getControlWord()} set when the download was canceled or deleted. */
+    public static final int CONTROL_WORD_CANCELED = 1 << 1;
+
+    /**
+     * Summary of {@link #mControl}, {@link #mStatus} and {@link #mDeleted},
+     * which a running {@link DownloadThread} checks for every chunk without
+     * taking a lock.
+     */
+    private volatile int mControlWord;
+
+    /**
+     * Read in by {@link #getHeaders()} when first needed, since most downloads read in are never
+     * started. Guarded by this.
+     */
+    private List<Pair<String, String>> mRequestHeaders;
 
     /**
      * Result of last {@link DownloadThread} started by
@@ -259,10 +266,42 @@ public class DownloadInfo {
         mFuzz = Helpers.sRandom.nextInt(1001);
     }
 
-    public Collection<Pair<String, String>> getHeaders() {
+    public synchronized Collection<Pair<String, String>> getHeaders() {
+        if (mRequestHeaders == null) {
+            mRequestHeaders = readRequestHeaders();
+        }
         return Collections.unmodifiableList(mRequestHeaders);
     }
 
+    private List<Pair<String, String>> readRequestHeaders() {
+        final List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+        Uri headerUri = Uri.withAppendedPath(
+                getAllDownloadsUri(), Downloads.Impl.RequestHeaders.URI_SEGMENT);
+        Cursor cursor = mContext.getContentResolver().query(headerUri, null, null, null, null);
+        if (cursor != null) {
+            try {
+                int headerIndex =
+                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_HEADER);
+                int valueIndex =
+                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_VALUE);
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    headers.add(Pair.create(cursor.getString(headerIndex),
+                            cursor.getString(valueIndex)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (mCookies != null) {
+            headers.add(Pair.create("Cookie", mCookies));
+        }
+        if (mReferer != null) {
+            headers.add(Pair.create("Referer", mReferer));
+        }
+        return headers;
+    }
+
     public String getUserAgent() {
         if (mUserAgent != null) {
             return mUserAgent;
@@ -316,6 +355,25 @@ public class DownloadInfo {
                     (1000 + mFuzz) * (1 << (mNumFailed - 1));
     }
 
+    /**
+     * Recompute {@link #getControlWord()} after changing {@link #mControl},
+     * {@link #mStatus} or {@link #mDeleted}.
+     */
+    public void updateControlWord() {
+        int word = 0;
+        if (mControl == Downloads.Impl.CONTROL_PAUSED) {
+            word |= CONTROL_WORD_PAUSED;
+        }
+        if (mStatus == Downloads.Impl.STATUS_CANCELED || mDeleted) {
+            word |= CONTROL_WORD_CANCELED;
+        }
+        mControlWord = word;
+    }
+
+    public int getControlWord() {
+        return mControlWord;
+    }
+
     /**
      * Returns whether this download should be enqueued.
      */
@@ -324,6 +382,10 @@ public class DownloadInfo {
             // the download is paused, so it's not going to start
             return false;
         }
+        if (!Downloads.Impl.isStatusCompleted(mStatus) && !checkDeviceConstraints()) {
+            // DownloadScheduler wakes us up once the device is charging or idle
+            return false;
+        }
         switch (mStatus) {
             case 0: // status hasn't been initialized yet, this is a new download
             case Downloads.Impl.STATUS_PENDING: // download is explicit marked as ready to start
@@ -375,11 +437,20 @@ public class DownloadInfo {
      * Returns whether this download is allowed to use the network.
      */
     public NetworkState checkCanUseNetwork(long totalBytes) {
+        return checkCanUseNetwork(totalBytes, mCurrentBytes);
+    }
+
+    /**
+     * Returns whether this download is allowed to use the network, given how
+     * much of it is left to transfer.
+     */
+    public NetworkState checkCanUseNetwork(long totalBytes, long currentBytes) {
         final NetworkInfo info =  ConnectManager.getActiveNetworkInfo(mContext, mUid);
         if (info == null || !info.isConnected()) {
             return NetworkState.NO_CONNECTION;
         }
-        return checkIsNetworkTypeAllowed(info.getType(), totalBytes);
+        final boolean metered = ConnectManager.isActiveNetworkMetered(mContext);
+        return checkIsNetworkTypeAllowed(info.getType(), metered, totalBytes, currentBytes);
     }
 
     /**
@@ -387,7 +458,8 @@ public class DownloadInfo {
      * @param networkType a constant from ConnectivityManager.TYPE_*.
      * @return one of the NETWORK_* constants
      */
-    private NetworkState checkIsNetworkTypeAllowed(int networkType, long totalBytes) {
+    private NetworkState checkIsNetworkTypeAllowed(int networkType, boolean metered,
+            long totalBytes, long currentBytes) {
         if (mIsPublicApi) {
             final int flag = translateNetworkTypeToApiFlag(networkType);
             final boolean allowAllNetworkTypes = mAllowedNetworkTypes == ~0;
@@ -395,7 +467,13 @@ public class DownloadInfo {
                 return NetworkState.TYPE_DISALLOWED_BY_REQUESTOR;
             }
         }
-        return checkSizeAllowedForNetwork(networkType, totalBytes);
+        if (metered && !mAllowMetered) {
+            return NetworkState.TYPE_DISALLOWED_BY_REQUESTOR;
+        }
+        if (!metered) {
+            return NetworkState.OK;
+        }
+        return checkSizeAllowedForNetwork(totalBytes, currentBytes);
     }
 
     /**
@@ -416,22 +494,33 @@ public class DownloadInfo {
     }
 
     /**
-     * Check if the download's size prohibits it from running over the current network.
+     * Check if the download's size, or what's left of today's budgets,
+     * prohibits it from running over the current metered network.
      * @return one of the NETWORK_* constants
      */
-    private NetworkState checkSizeAllowedForNetwork(int networkType, long totalBytes) {
+    private NetworkState checkSizeAllowedForNetwork(long totalBytes, long currentBytes) {
+        final DownloadNetworkPolicy policy = DownloadNetworkPolicy.getInstance(mContext);
+
+        // Without a size yet, only an exhausted budget holds us back
+        final long remainingBytes = (totalBytes > 0) ? totalBytes - currentBytes : 1;
+        if (remainingBytes > policy.getRemainingBudget(mPackage)) {
+            return NetworkState.UNUSABLE_DUE_TO_SIZE;
+        }
         if (totalBytes <= 0) {
-            // we don't know the size yet
             return NetworkState.OK;
         }
 
-        if (ConnectManager.isNetworkTypeMobile(networkType)) {
-
-            if (mBypassRecommendedSizeLimit == 0) {
-                Log.e("DownloadInfo", "size over due with mobile net");
+        final long maxBytes = policy.getMaxBytesOverMobile();
+        if (maxBytes != DownloadNetworkPolicy.NO_LIMIT && totalBytes > maxBytes) {
+            return NetworkState.UNUSABLE_DUE_TO_SIZE;
+        }
+        if (mBypassRecommendedSizeLimit == 0) {
+            final long recommendedMaxBytes = policy.getRecommendedMaxBytesOverMobile();
+            if (recommendedMaxBytes != DownloadNetworkPolicy.NO_LIMIT
+                    && totalBytes > recommendedMaxBytes) {
+                return NetworkState.RECOMMENDED_UNUSABLE_DUE_TO_SIZE;
             }
         }
-
         return NetworkState.OK;
     }
 
@@ -445,20 +534,47 @@ public class DownloadInfo {
     public boolean startDownloadIfReady(ExecutorService executor) {
         synchronized (this) {
             final boolean isReady = isReadyToDownload();
-            final boolean isActive = mSubmittedTask != null && !mSubmittedTask.isDone();
+            final boolean isActive = isTaskActive();
             if (isReady && !isActive) {
                 if (mStatus != Downloads.Impl.STATUS_RUNNING) {
                     mStatus = Downloads.Impl.STATUS_RUNNING;
-                    ContentValues values = new ContentValues();
-                    values.put(Downloads.Impl.COLUMN_STATUS, mStatus);
-                    mContext.getContentResolver().update(getAllDownloadsUri(), values, null, null);
+                    updateControlWord();
+                    if (DownloadStore.updateStatus(mId, mStatus) == DownloadStore.NOT_ATTACHED) {
+                        ContentValues values = new ContentValues();
+                        values.put(Downloads.Impl.COLUMN_STATUS, mStatus);
+                        mContext.getContentResolver().update(getAllDownloadsUri(), values,
+                                null, null);
+                    }
                 }
 
                 mTask = new DownloadThread(mContext, mNotifier, this);
                 mSubmittedTask = executor.submit(mTask);
             }
-            return isReady;
+            return isReady || isActive;
+        }
+    }
+
+    /**
+     * Returns whether a download attempt is still running or parked.
+     */
+    public synchronized boolean isTaskActive() {
+        return (mSubmittedTask != null && !mSubmittedTask.isDone())
+                || (mTask != null && mTask.isParked());
+    }
+
+    /**
+     * Returns whether the device is charging and idle, as far as this
+     * download requires it. Only gates starting; a running download carries
+     * on if the device is unplugged or woken up.
+     */
+    private boolean checkDeviceConstraints() {
+        if (mRequiresCharging && !DownloadScheduler.isCharging(mContext)) {
+            return false;
+        }
+        if (mRequiresDeviceIdle && !DownloadScheduler.isDeviceIdle(mContext)) {
+            return false;
         }
+        return true;
     }
 
     public Uri getMyDownloadsUri() {
@@ -469,6 +585,32 @@ public class DownloadInfo {
         return ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, mId);
     }
 
+    /**
+     * Returns a rough count of the bytes this object keeps alive, for dumps.
+     */
+    public long getApproximateSize() {
+        // Object header and primitive fields
+        long size = 256;
+        size += sizeOf(mUri) + sizeOf(mHint) + sizeOf(mFileName) + sizeOf(mMimeType)
+                + sizeOf(mPackage) + sizeOf(mClass) + sizeOf(mExtras) + sizeOf(mCookies)
+                + sizeOf(mUserAgent) + sizeOf(mReferer) + sizeOf(mETag)
+                + sizeOf(mServerLastModified) + sizeOf(mMediaProviderUri) + sizeOf(mTitle)
+                + sizeOf(mDescription) + sizeOf(mExtractDir) + sizeOf(mPatchBase)
+                + sizeOf(mPatchDigest);
+        synchronized (this) {
+            if (mRequestHeaders != null) {
+                for (Pair<String, String> header : mRequestHeaders) {
+                    size += 32 + sizeOf(header.first) + sizeOf(header.second);
+                }
+            }
+        }
+        return size;
+    }
+
+    private static long sizeOf(String value) {
+        return (value != null) ? 40 + 2L * value.length() : 0;
+    }
+
     @Override
     public String toString() {
         final CharArrayWriter writer = new CharArrayWriter();
@@ -503,11 +645,19 @@ public class DownloadInfo {
         Log.d("mNumFailed", String.valueOf(mNumFailed));
         Log.d("mRetryAfter", String.valueOf(mRetryAfter));
         Log.d("mETag", mETag);
+        Log.d("mServerLastModified", String.valueOf(mServerLastModified));
+        Log.d("mRevalidate", String.valueOf(mRevalidate));
         Log.d("mIsPublicApi", String.valueOf(mIsPublicApi));
 
         Log.d("mAllowedNetworkTypes", String.valueOf(mAllowedNetworkTypes));
         Log.d("mAllowRoaming", String.valueOf(mAllowRoaming));
+        Log.d("mRequiresCharging", String.valueOf(mRequiresCharging));
+        Log.d("mRequiresDeviceIdle", String.valueOf(mRequiresDeviceIdle));
         Log.d("mAllowMetered", String.valueOf(mAllowMetered));
+        Log.d("mStreamMode", String.valueOf(mStreamMode));
+        Log.d("mTransform", String.valueOf(mTransform));
+        Log.d("mExtractOffset", String.valueOf(mExtractOffset));
+        Log.d("mPatchBase", String.valueOf(mPatchBase));
 
     }
 
@@ -0,0 +1,28 @@
+package com.leaf.downloads;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.Intent;
+import android.os.Build;
+
+/**
+ * Runs the jobs set up by {@link DownloadScheduler}, by kicking
+ * {@link DownloadService} into an update pass. The service holds its own
+ * wakelock while downloads are active, so the job is finished right away.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class DownloadJobService extends JobService {
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        DownloadScheduler.onJobStarted(this, params.getJobId());
+        startService(new Intent(this, DownloadService.class));
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
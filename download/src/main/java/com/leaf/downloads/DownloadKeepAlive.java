@@ -0,0 +1,131 @@
+package com.leaf.downloads;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which servers keep connections alive reliably, so downloads
+ * from them can leave out {@code Connection: close} and let the platform
+ * reuse the socket for the next request.
+ * <p>
+ * The first request to a server is a probe without {@code Connection: close},
+ * since servers answer a close request with a close of their own; its
+ * connection is only reused when its response shows the server qualifies.
+ * Only servers known not to qualify get asked to close.
+ * <p>
+ * A server qualifies when its last response was HTTP/1.1, or asked for
+ * keep-alive, didn't ask to close, and delimited its body by length or
+ * chunked encoding, so a fully read body leaves nothing behind on the
+ * socket. What was learned expires after
+ * {@link Constants#KEEP_ALIVE_CAPABILITY_TTL}. Downloads only hand a
+ * connection back for reuse after reading its body to the end; see
+ * {@link #release(HttpURLConnection, boolean)}.
+ */
+final class DownloadKeepAlive {
+
+    private static final int MAX_HOSTS = 32;
+
+    private static final class Capability {
+        final boolean mKeepAlive;
+        final long mDetected;
+
+        Capability(boolean keepAlive, long detected) {
+            mKeepAlive = keepAlive;
+            mDetected = detected;
+        }
+    }
+
+    private static final Map<String, Capability> sHosts =
+            new LinkedHashMap<String, Capability>(MAX_HOSTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Capability> eldest) {
+                    return size() > MAX_HOSTS;
+                }
+            };
+
+    private DownloadKeepAlive() {
+    }
+
+    /**
+     * Return whether connections to the server of the given URL may be kept
+     * alive for reuse.
+     */
+    static boolean isEnabled(URL url) {
+        final Capability capability = getCapability(url);
+        return capability != null && capability.mKeepAlive;
+    }
+
+    /**
+     * Return whether requests to the server of the given URL should ask to
+     * close the connection, which is only when the server is known not to
+     * keep connections alive reliably.
+     */
+    static boolean shouldRequestClose(URL url) {
+        final Capability capability = getCapability(url);
+        return capability != null && !capability.mKeepAlive;
+    }
+
+    private static Capability getCapability(URL url) {
+        synchronized (sHosts) {
+            final Capability capability = sHosts.get(getKey(url));
+            if (capability != null && SystemClock.elapsedRealtime() - capability.mDetected
+                    > Constants.KEEP_ALIVE_CAPABILITY_TTL) {
+                sHosts.remove(getKey(url));
+                return null;
+            }
+            return capability;
+        }
+    }
+
+    /**
+     * Learn from the headers of a response whether its server keeps
+     * connections alive.
+     */
+    static void onResponse(URL url, HttpURLConnection conn) {
+        final String statusLine = conn.getHeaderField(0);
+        final String connection = conn.getHeaderField("Connection");
+        final boolean persistent;
+        if ("close".equalsIgnoreCase(connection)) {
+            persistent = false;
+        } else if (statusLine != null && statusLine.startsWith("HTTP/1.1")) {
+            persistent = true;
+        } else {
+            persistent = "keep-alive".equalsIgnoreCase(connection);
+        }
+        final boolean delimited = conn.getHeaderField("Content-Length") != null
+                || "chunked".equalsIgnoreCase(conn.getHeaderField("Transfer-Encoding"));
+
+        synchronized (sHosts) {
+            sHosts.put(getKey(url), new Capability(persistent && delimited,
+                    SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Hand the connection back for reuse when its body was read to the end
+     * and its server keeps connections alive, and tear it down otherwise, so
+     * that nothing left unread reaches the next request on the socket.
+     */
+    static void release(HttpURLConnection conn, boolean bodyConsumed) {
+        if (bodyConsumed && !(conn instanceof NioHttpConnection)
+                && isEnabled(conn.getURL())) {
+            try {
+                conn.getInputStream().close();
+                return;
+            } catch (IOException e) {
+                // Tear it down below
+            }
+        }
+        conn.disconnect();
+    }
+
+    private static String getKey(URL url) {
+        final int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+}
@@ -21,21 +21,31 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore.Images;
 import android.text.TextUtils;
 import android.util.Pair;
 
+import com.leaf.downloads.utils.ConnectManager;
+
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DownloadManager {
 
@@ -249,6 +259,27 @@ public class DownloadManager {
      */
     public final static int PAUSED_UNKNOWN = 4;
 
+    /**
+     * Value for {@link #setDownloadEngine(int)}: each running download blocks a thread of its
+     * own while transferring. This is the default.
+     */
+    public final static int ENGINE_THREADS = 0;
+
+    /**
+     * Value for {@link #setDownloadEngine(int)}: bodies of plain {@code http} downloads to a
+     * file are read by a single selector thread with non-blocking I/O, so many transfers can
+     * run at once on a few threads. Other downloads run as with {@link #ENGINE_THREADS}.
+     */
+    public final static int ENGINE_NIO = 1;
+
+    /**
+     * Name of the {@code <meta-data>} element, in the app's {@code <application>}, holding the
+     * first of the JobScheduler job ids used to wake up waiting downloads. Eight ids from this
+     * one on are taken; the default is 100. Pick a range none of the app's own jobs use, since
+     * scheduling a job replaces any job with the same id.
+     */
+    public final static String META_DATA_JOB_ID_BASE = "com.leaf.downloads.JOB_ID_BASE";
+
     public final static String ACTION_DOWNLOAD_COMPLETE = "com.leaf.downloads.action.DOWNLOAD_COMPLETE";
 
     public final static String ACTION_NOTIFICATION_CLICKED =
@@ -338,10 +369,18 @@ public class DownloadManager {
         private int mAllowedNetworkTypes = ~0; // default to all network types allowed
         private boolean mRoamingAllowed = true;
         private boolean mMeteredAllowed = true;
+        private boolean mRequiresCharging = false;
+        private boolean mRequiresDeviceIdle = false;
         private int mFlags = 0;
         private boolean mIsVisibleInDownloadsUi = true;
         private boolean mScannable = false;
         private boolean mUseSystemCache = false;
+        private int mStreamMode = Downloads.Impl.STREAM_MODE_NONE;
+        private int mTransform = 0;
+        private File mExtractDir;
+        private long mPatchBaseId = -1;
+        private File mPatchBaseFile;
+        private String mPatchDigest;
         /**
          * if a file is designated as a MediaScanner scannable file, the following value is
          * stored in the database column {@link Downloads.Impl#COLUMN_MEDIA_SCANNED}.
@@ -663,6 +702,30 @@ public class DownloadManager {
             return this;
         }
 
+        /**
+         * Set whether this download should only run while the device is
+         * charging. By default, it doesn't matter.
+         *
+         * @return this object
+         */
+        public Request setRequiresCharging(boolean requiresCharging) {
+            mRequiresCharging = requiresCharging;
+            return this;
+        }
+
+        /**
+         * Set whether this download should only run while the device is idle,
+         * meaning the screen is off or the device is dozing. By default, it
+         * doesn't matter. Large background fetches that the user isn't waiting
+         * on are good candidates.
+         *
+         * @return this object
+         */
+        public Request setRequiresDeviceIdle(boolean requiresDeviceIdle) {
+            mRequiresDeviceIdle = requiresDeviceIdle;
+            return this;
+        }
+
         /**
          * Set whether this download should be displayed in the system's Downloads UI. True by
          * default.
@@ -675,6 +738,108 @@ public class DownloadManager {
             return this;
         }
 
+        /**
+         * Hand the downloaded bytes to {@link DownloadManager#openDownloadStream(long)} while
+         * the transfer is running, instead of only saving them to a file. The transfer blocks
+         * while the consumer falls behind, so the stream should be opened and drained promptly.
+         *
+         * @param teeToDisk whether the data should also be saved to the destination file
+         * @return this object
+         */
+        public Request setStreamToConsumer(boolean teeToDisk) {
+            mStreamMode = teeToDisk ? Downloads.Impl.STREAM_MODE_TEE
+                    : Downloads.Impl.STREAM_MODE_CONSUMER;
+            return this;
+        }
+
+        /**
+         * Archive format for {@link #setExtractArchive(File, int)}: zip.
+         */
+        public static final int ARCHIVE_FORMAT_ZIP = 1;
+
+        /**
+         * Archive format for {@link #setExtractArchive(File, int)}: tar, which may also be
+         * gzipped.
+         */
+        public static final int ARCHIVE_FORMAT_TAR = 2;
+
+        /**
+         * Ask the server for a gzip or deflate compressed body, and decode it while it is
+         * transferred. By default, the body is requested uncompressed. A decoded download that
+         * gets interrupted after making progress can't be resumed.
+         *
+         * @param decompress whether to negotiate content compression
+         * @return this object
+         */
+        public Request setDecompressContent(boolean decompress) {
+            if (decompress) {
+                mTransform |= Downloads.Impl.TRANSFORM_DECOMPRESS;
+            } else {
+                mTransform &= ~Downloads.Impl.TRANSFORM_DECOMPRESS;
+            }
+            return this;
+        }
+
+        /**
+         * Extract the downloaded archive while it is transferred, instead of saving the archive
+         * itself. Entries go into a new directory inside {@code targetDir}, named after the
+         * download, which {@link DownloadManager#COLUMN_LOCAL_FILENAME} then reports. That
+         * directory is deleted if the download fails or is removed; nothing else in
+         * {@code targetDir} is touched. An interrupted extraction resumes from the last complete
+         * entry when the server supports it.
+         *
+         * @param targetDir directory to create the extraction directory in
+         * @param format one of {@link #ARCHIVE_FORMAT_ZIP} or {@link #ARCHIVE_FORMAT_TAR}
+         * @return this object
+         */
+        public Request setExtractArchive(File targetDir, int format) {
+            mTransform &= ~(Downloads.Impl.TRANSFORM_EXTRACT_ZIP
+                    | Downloads.Impl.TRANSFORM_EXTRACT_TAR);
+            if (format == ARCHIVE_FORMAT_ZIP) {
+                mTransform |= Downloads.Impl.TRANSFORM_EXTRACT_ZIP;
+            } else if (format == ARCHIVE_FORMAT_TAR) {
+                mTransform |= Downloads.Impl.TRANSFORM_EXTRACT_TAR;
+            } else {
+                throw new IllegalArgumentException("Unknown archive format " + format);
+            }
+            mExtractDir = targetDir;
+            return this;
+        }
+
+        /**
+         * Treat the response as a VCDIFF patch against the file of an earlier successful
+         * download, and save the patched result instead of the patch itself. Patches made with
+         * {@code xdelta3 -S none} are supported.
+         *
+         * @param baseDownloadId the ID of a successful download to patch
+         * @param sha256 hex-encoded SHA-256 digest the patched result must match, or null to
+         *            skip verification
+         * @return this object
+         */
+        public Request setPatchBase(long baseDownloadId, String sha256) {
+            mPatchBaseId = baseDownloadId;
+            mPatchBaseFile = null;
+            mPatchDigest = sha256;
+            return this;
+        }
+
+        /**
+         * Treat the response as a VCDIFF patch against the given local file, and save the
+         * patched result instead of the patch itself. Patches made with
+         * {@code xdelta3 -S none} are supported.
+         *
+         * @param baseFile the file to patch, which must not change until the download completes
+         * @param sha256 hex-encoded SHA-256 digest the patched result must match, or null to
+         *            skip verification
+         * @return this object
+         */
+        public Request setPatchBase(File baseFile, String sha256) {
+            mPatchBaseId = -1;
+            mPatchBaseFile = baseFile;
+            mPatchDigest = sha256;
+            return this;
+        }
+
         /**
          * @return ContentValues to be passed to DownloadProvider.insert()
          */
@@ -709,7 +874,18 @@ public class DownloadManager {
             values.put(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES, mAllowedNetworkTypes);
             values.put(Downloads.Impl.COLUMN_ALLOW_ROAMING, mRoamingAllowed);
             values.put(Downloads.Impl.COLUMN_ALLOW_METERED, mMeteredAllowed);
+            values.put(Downloads.Impl.COLUMN_REQUIRES_CHARGING, mRequiresCharging);
+            values.put(Downloads.Impl.COLUMN_REQUIRES_DEVICE_IDLE, mRequiresDeviceIdle);
             values.put(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, mIsVisibleInDownloadsUi);
+            values.put(Downloads.Impl.COLUMN_STREAM_MODE, mStreamMode);
+            values.put(Downloads.Impl.COLUMN_TRANSFORM, mTransform);
+            if (mExtractDir != null) {
+                values.put(Downloads.Impl.COLUMN_EXTRACT_DIR, mExtractDir.getAbsolutePath());
+            }
+            if (mPatchBaseFile != null) {
+                values.put(Downloads.Impl.COLUMN_PATCH_BASE, mPatchBaseFile.getAbsolutePath());
+            }
+            putIfNonNull(values, Downloads.Impl.COLUMN_PATCH_DIGEST, mPatchDigest);
 
             return values;
         }
@@ -749,6 +925,7 @@ public class DownloadManager {
         public static final int ORDER_DESCENDING = 2;
 
         private long[] mIds = null;
+        private String[] mUris = null;
         private Integer mStatusFlags = null;
         private String mOrderByColumn = Downloads.Impl.COLUMN_LAST_MODIFICATION;
         private int mOrderDirection = ORDER_DESCENDING;
@@ -764,6 +941,17 @@ public class DownloadManager {
             return this;
         }
 
+        /**
+         * Include only the downloads of the given URIs. URIs are compared once normalized, so
+         * scheme and host case, default ports and fragments don't matter.
+         *
+         * @return this object
+         */
+        public Query setFilterByUri(String... uris) {
+            mUris = uris;
+            return this;
+        }
+
         /**
          * Include only downloads with status matching any the given status flags.
          *
@@ -824,11 +1012,16 @@ public class DownloadManager {
         Cursor runQuery(ContentResolver resolver, String[] projection, Uri baseUri) {
             Uri uri = baseUri;
             List<String> selectionParts = new ArrayList<String>();
-            String[] selectionArgs = null;
+            List<String> selectionArgs = new ArrayList<String>();
 
             if (mIds != null) {
                 selectionParts.add(getWhereClauseForIds(mIds));
-                selectionArgs = getWhereArgsForIds(mIds);
+                Collections.addAll(selectionArgs, getWhereArgsForIds(mIds));
+            }
+
+            if (mUris != null) {
+                selectionParts.add(getWhereClauseForUris(mUris.length));
+                Collections.addAll(selectionArgs, getWhereArgsForUris(mUris, 0, mUris.length));
             }
 
             if (mStatusFlags != null) {
@@ -866,7 +1059,8 @@ public class DownloadManager {
             String orderDirection = (mOrderDirection == ORDER_ASCENDING ? "ASC" : "DESC");
             String orderBy = mOrderByColumn + " " + orderDirection;
 
-            return resolver.query(uri, projection, selection, selectionArgs, orderBy);
+            return resolver.query(uri, projection, selection, selectionArgs.isEmpty() ? null
+                    : selectionArgs.toArray(new String[selectionArgs.size()]), orderBy);
         }
 
         private String joinStrings(String joiner, Iterable<String> parts) {
@@ -896,6 +1090,21 @@ public class DownloadManager {
     private Uri mBaseUri = Downloads.Impl.CONTENT_URI;
     private boolean mAccessFilename;
 
+    /** The most URIs looked up in a single query, well under SQLite's limit on arguments */
+    private static final int MAX_URIS_PER_LOOKUP = 500;
+
+    /** The most downloads changed in a single update, for the same reason */
+    private static final int MAX_IDS_PER_UPDATE = 500;
+
+    private static final UriMatch NO_MATCH = new UriMatch(-1, -1);
+
+    private final Object mUriCacheLock = new Object();
+
+    // Guarded by mUriCacheLock; null while caching is off
+    private Map<String, UriMatch> mUriCache;
+    private ContentObserver mUriCacheObserver;
+    private int mUriCacheGeneration;
+
     /**
      * @hide
      */
@@ -951,11 +1160,37 @@ public class DownloadManager {
      */
     public long enqueue(Request request) {
         ContentValues values = request.toContentValues(mPackageName);
+        if (request.mPatchBaseId != -1) {
+            values.put(Downloads.Impl.COLUMN_PATCH_BASE, getPatchBasePath(request.mPatchBaseId));
+        }
         Uri downloadUri = mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+        invalidateUriCache();
         long id = Long.parseLong(downloadUri.getLastPathSegment());
         return id;
     }
 
+    /**
+     * Return the file of the given successful download, for use as a patch base.
+     */
+    private String getPatchBasePath(long id) {
+        final Cursor cursor = mResolver.query(
+                ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id),
+                new String[] { Downloads.Impl._DATA, Downloads.Impl.COLUMN_STATUS },
+                null, null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()
+                    && Downloads.Impl.isStatusSuccess(cursor.getInt(1))
+                    && cursor.getString(0) != null) {
+                return cursor.getString(0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        throw new IllegalArgumentException("Download " + id + " can't be used as a patch base");
+    }
+
     /**
      * Marks the specified download as 'to be deleted'. This is done when a completed download
      * is to be removed but the row was stored without enough info to delete the corresponding
@@ -970,18 +1205,38 @@ public class DownloadManager {
             // called with nothing to remove!
             throw new IllegalArgumentException("input param 'ids' can't be null");
         }
-        return mResolver.delete(mBaseUri, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+        // Files and rows are cleaned up in the background by the service
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_DELETED, 1);
+        int count = 0;
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_UPDATE) {
+            final long[] chunk = (ids.length <= MAX_IDS_PER_UPDATE) ? ids
+                    : Arrays.copyOfRange(ids, start, Math.min(ids.length,
+                            start + MAX_IDS_PER_UPDATE));
+            count += mResolver.update(mBaseUri, values, getWhereClauseForIds(chunk),
+                    getWhereArgsForIds(chunk));
+        }
+        invalidateUriCache();
+        return count;
     }
 
     public void removeAll() {
-        String order = Downloads.Impl._ID + " desc";
-        Cursor cursor = mResolver.query(mBaseUri, null, null, null, order);
-        if (cursor != null && cursor.getCount() > 0) {
-            cursor.moveToFirst();
-            do {
-                int id = cursor.getInt(cursor.getColumnIndexOrThrow(Downloads.Impl._ID));
-                remove(id);
-            } while (cursor.moveToNext());
+        final Cursor cursor = mResolver.query(mBaseUri, new String[] { Downloads.Impl._ID },
+                Downloads.Impl.COLUMN_DELETED + " != '1'", null, null);
+        if (cursor == null) {
+            return;
+        }
+        final long[] ids;
+        try {
+            ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (ids.length > 0) {
+            remove(ids);
         }
     }
 
@@ -1024,14 +1279,216 @@ public class DownloadManager {
     }
 
     public int getDownloadId(String uri) {
-        String selection = Downloads.Impl.COLUMN_URI + " = " + uri;
-        String orderBy = Downloads.Impl._ID + " DESC";
-        Cursor c = mResolver.query(Downloads.Impl.CONTENT_URI, null, selection, null, orderBy);
-        if (c != null && c.getCount() > 0) {
-            c.moveToFirst();
-            return c.getInt(c.getColumnIndex(Downloads.Impl._ID));
+        final UriMatch match = getDownloadsByUri(uri).get(uri);
+        return (match != null) ? (int) match.getDownloadId() : -1;
+    }
+
+    /**
+     * The newest download of a URI, as found by {@link #getDownloadsByUri(String...)}.
+     */
+    public static final class UriMatch {
+        private final long mDownloadId;
+        private final int mStatus;
+
+        UriMatch(long downloadId, int status) {
+            mDownloadId = downloadId;
+            mStatus = status;
         }
-        return -1;
+
+        /**
+         * Return the ID of the download.
+         */
+        public long getDownloadId() {
+            return mDownloadId;
+        }
+
+        /**
+         * Return the status of the download, as in {@link #getDownloadStatus(long)}.
+         */
+        public int getStatus() {
+            return mStatus;
+        }
+    }
+
+    /**
+     * Find the newest download of each of the given URIs, in as few queries as possible. URIs are
+     * compared once normalized, as in {@link Query#setFilterByUri(String...)}.
+     *
+     * @param uris the URIs to look up
+     * @return the newest download of each URI that has any, keyed by the URI as given
+     */
+    public Map<String, UriMatch> getDownloadsByUri(String... uris) {
+        final Map<String, UriMatch> result = new HashMap<String, UriMatch>();
+        final Map<String, List<String>> pending = new LinkedHashMap<String, List<String>>();
+        final int generation;
+        synchronized (mUriCacheLock) {
+            generation = mUriCacheGeneration;
+            for (String uri : uris) {
+                final String normalized = Helpers.normalizeUri(uri);
+                final UriMatch cached = (mUriCache != null) ? mUriCache.get(normalized) : null;
+                if (cached != null) {
+                    if (cached != NO_MATCH) {
+                        result.put(uri, cached);
+                    }
+                    continue;
+                }
+                List<String> originals = pending.get(normalized);
+                if (originals == null) {
+                    originals = new ArrayList<String>(1);
+                    pending.put(normalized, originals);
+                }
+                originals.add(uri);
+            }
+        }
+        if (pending.isEmpty()) {
+            return result;
+        }
+
+        final String[] normalizedUris = pending.keySet().toArray(new String[pending.size()]);
+        final Map<String, UriMatch> found = new HashMap<String, UriMatch>();
+        for (int start = 0; start < normalizedUris.length; start += MAX_URIS_PER_LOOKUP) {
+            final int count = Math.min(MAX_URIS_PER_LOOKUP, normalizedUris.length - start);
+            final String selection = getWhereClauseForUris(count) + " AND "
+                    + Downloads.Impl.COLUMN_DELETED + " != '1'";
+            final Cursor cursor = mResolver.query(mBaseUri, new String[] {
+                    Downloads.Impl._ID, Downloads.Impl.COLUMN_URI, Downloads.Impl.COLUMN_STATUS
+            }, selection, getWhereArgsForUris(normalizedUris, start, count),
+                    Downloads.Impl._ID + " DESC");
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    // Tell hash collisions apart, and keep only the newest download
+                    final String normalized = Helpers.normalizeUri(cursor.getString(1));
+                    if (pending.containsKey(normalized) && !found.containsKey(normalized)) {
+                        found.put(normalized, new UriMatch(cursor.getLong(0), cursor.getInt(2)));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        synchronized (mUriCacheLock) {
+            // Results raced with a change are still good to return, not to keep
+            final boolean cache = mUriCache != null && generation == mUriCacheGeneration;
+            for (Map.Entry<String, List<String>> entry : pending.entrySet()) {
+                final UriMatch match = found.get(entry.getKey());
+                if (cache) {
+                    mUriCache.put(entry.getKey(), (match != null) ? match : NO_MATCH);
+                }
+                if (match != null) {
+                    for (String uri : entry.getValue()) {
+                        result.put(uri, match);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remember in this process which downloads {@link #getDownloadsByUri(String...)} found, so
+     * repeated lookups don't reach the provider. Any change to the downloads forgets them; those
+     * made through this object right away, others once the provider's change notification
+     * arrives. Off by default.
+     */
+    public void setUriLookupCacheEnabled(boolean enabled) {
+        synchronized (mUriCacheLock) {
+            if (enabled == (mUriCache != null)) {
+                return;
+            }
+            if (enabled) {
+                mUriCache = new LinkedHashMap<String, UriMatch>(
+                        Constants.URI_LOOKUP_CACHE_SIZE, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, UriMatch> eldest) {
+                        return size() > Constants.URI_LOOKUP_CACHE_SIZE;
+                    }
+                };
+                mUriCacheObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateUriCache();
+                    }
+                };
+                mResolver.registerContentObserver(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, true,
+                        mUriCacheObserver);
+            } else {
+                mResolver.unregisterContentObserver(mUriCacheObserver);
+                mUriCacheObserver = null;
+                mUriCache = null;
+            }
+            mUriCacheGeneration++;
+        }
+    }
+
+    private void invalidateUriCache() {
+        synchronized (mUriCacheLock) {
+            if (mUriCache != null) {
+                mUriCache.clear();
+            }
+            mUriCacheGeneration++;
+        }
+    }
+
+    /**
+     * Return timings and counters for recent attempts at the given download, oldest first.
+     * Only attempts made in this process are known, and the number kept across all downloads
+     * is bounded, so older attempts may be missing.
+     *
+     * @param id the ID of the download
+     * @return a list of metrics, which is empty when no attempts are known
+     */
+    public List<DownloadMetrics> getDownloadMetrics(long id) {
+        return DownloadMetrics.getRecent(id);
+    }
+
+    /**
+     * Return timings and counters for the most recent attempts at any download in this
+     * process, oldest first.
+     *
+     * @return a list of metrics, which is empty when no attempts are known
+     */
+    public List<DownloadMetrics> getRecentDownloadMetrics() {
+        return DownloadMetrics.getRecent(-1);
+    }
+
+    /**
+     * Listener for progress of downloads in this process, registered through
+     * {@link #registerProgressListener(ProgressListener, Handler)}.
+     */
+    public interface ProgressListener {
+        /**
+         * Called at most once per second with the downloads whose progress changed since the
+         * previous call.
+         *
+         * @param ids the IDs of the downloads
+         */
+        void onProgressChanged(long[] ids);
+    }
+
+    /**
+     * Register a listener for download progress. Progress alone doesn't notify observers of the
+     * download content URIs; this is the lightweight way to follow it. Observers in other
+     * processes can watch {@link Downloads.Impl#PROGRESS_CONTENT_URI} instead.
+     *
+     * @param listener the listener to register
+     * @param handler the handler to call the listener on, or null for the main thread
+     */
+    public void registerProgressListener(ProgressListener listener, Handler handler) {
+        DownloadProgressChannel.addListener(listener, handler);
+    }
+
+    /**
+     * Unregister a listener registered with
+     * {@link #registerProgressListener(ProgressListener, Handler)}.
+     *
+     * @param listener the listener to unregister
+     */
+    public void unregisterProgressListener(ProgressListener listener) {
+        DownloadProgressChannel.removeListener(listener);
     }
 
     /**
@@ -1045,6 +1502,67 @@ public class DownloadManager {
         return mResolver.openFileDescriptor(getDownloadUri(id), "r");
     }
 
+    /**
+     * Open the data of a download enqueued with {@link Request#setStreamToConsumer(boolean)}
+     * as it is being transferred. Reads block until more data arrives, and the stream ends
+     * once the download succeeds; if the download fails, reads throw an {@link java.io.IOException}
+     * after the buffered data. Closing the stream early cancels a download that isn't also
+     * saved to disk. Use {@link java.nio.channels.Channels#newChannel(InputStream)} when a
+     * channel is more convenient.
+     * <p>
+     * Only works within the process running the download service. A download that already
+     * finished gives a stream that ends right away, or throws if the download failed.
+     *
+     * @param id the ID of the download
+     * @return an {@link InputStream} over the downloaded bytes
+     * @throws IllegalArgumentException if there's no such download, or it isn't streamed
+     */
+    public InputStream openDownloadStream(long id) {
+        final Cursor cursor = mResolver.query(
+                ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id),
+                new String[] { Downloads.Impl.COLUMN_STREAM_MODE, Downloads.Impl.COLUMN_STATUS },
+                null, null, null);
+        final int status;
+        try {
+            if (cursor == null || !cursor.moveToFirst()
+                    || cursor.getInt(0) == Downloads.Impl.STREAM_MODE_NONE) {
+                throw new IllegalArgumentException("Download " + id + " isn't streamed");
+            }
+            status = cursor.getInt(1);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        final InputStream stream = DownloadStream.openForConsumer(id, status);
+        if (!Downloads.Impl.isStatusCompleted(status)) {
+            // The download may have finished since, and released its pipe before this one
+            // was registered; nothing would close this one then
+            final int latestStatus = DownloadInfo.queryDownloadStatus(mResolver, id);
+            if (Downloads.Impl.isStatusCompleted(latestStatus)) {
+                DownloadStream.release(id, DownloadStream.errorForStatus(latestStatus));
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * Open the file of a download for reading while it is still being transferred. Reads block
+     * until the requested bytes have been written, and end once the download succeeds.
+     * Seeking far beyond the written data with {@link ProgressiveInputStream#seek(long)} fetches
+     * the bytes at that position first, when the server supports range requests.
+     * <p>
+     * Only works within the process running the download service, and for downloads that are
+     * saved to a file.
+     *
+     * @param id the ID of the download
+     * @return a {@link ProgressiveInputStream} over the downloaded file
+     */
+    public ProgressiveInputStream openProgressiveStream(long id) {
+        return new ProgressiveInputStream(mResolver, id);
+    }
+
     /**
      * Returns the {@link Uri} of the given downloaded file id, if the file is
      * downloaded successfully. Otherwise, null is returned.
@@ -1138,9 +1656,31 @@ public class DownloadManager {
         values.putNull(Downloads.Impl._DATA);
         values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_PENDING);
         values.put(Downloads.Impl.COLUMN_FAILED_CONNECTIONS, 0);
+        values.put(Downloads.Impl.COLUMN_EXTRACT_OFFSET, 0);
+        values.put(Downloads.Impl.COLUMN_REVALIDATE, 0);
         mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
     }
 
+    /**
+     * Check the given successful downloads with the server again. The request is made
+     * conditional on the validators of the earlier response, so when the server reports the
+     * content unchanged, the existing file is kept and nothing is transferred. Otherwise the
+     * file is replaced with the new content once all of it has arrived. When the check or the
+     * new transfer fails, the download stays successful with its existing file. Downloads that
+     * haven't completed successfully are ignored.
+     *
+     * @param ids the IDs of the downloads
+     */
+    public void revalidateDownload(long... ids) {
+        ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_PENDING);
+        values.put(Downloads.Impl.COLUMN_FAILED_CONNECTIONS, 0);
+        values.put(Downloads.Impl.COLUMN_REVALIDATE, 1);
+        mResolver.update(mBaseUri, values, getWhereClauseForIds(ids) + " AND "
+                + Downloads.Impl.COLUMN_STATUS + " = " + Downloads.Impl.STATUS_SUCCESS,
+                getWhereArgsForIds(ids));
+    }
+
     private void cancelDownload(long id) {
         ContentValues values = new ContentValues();
         values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_CANCELED);
@@ -1273,19 +1813,110 @@ public class DownloadManager {
     }
 
     /**
-     * {@hide}
+     * Returns whether the active network is metered, so downloads over it
+     * count against the budgets set with {@link #setMeteredDailyBudget}.
      */
     public static boolean isActiveNetworkExpensive(Context context) {
-        // TODO: connect to NetworkPolicyManager
-        return false;
+        return ConnectManager.isActiveNetworkMetered(context);
     }
 
     /**
-     * {@hide}
+     * Returns how many more bytes downloads may read over the active network
+     * today before the daily budget runs out, or -1 when the network isn't
+     * metered or there's no budget.
      */
     public static long getActiveNetworkWarningBytes(Context context) {
-        // TODO: connect to NetworkPolicyManager
-        return -1;
+        if (!isActiveNetworkExpensive(context)) {
+            return -1;
+        }
+        final DownloadNetworkPolicy policy = DownloadNetworkPolicy.getInstance(context);
+        if (policy.getDailyBudget() == DownloadNetworkPolicy.NO_LIMIT) {
+            return -1;
+        }
+        return policy.getRemainingBudget(null);
+    }
+
+    /**
+     * Returns the largest download, in bytes, that may run over a metered
+     * network, or null when there is no such limit.
+     */
+    public static Long getMaxBytesOverMobile(Context context) {
+        final long bytes = DownloadNetworkPolicy.getInstance(context).getMaxBytesOverMobile();
+        return (bytes != DownloadNetworkPolicy.NO_LIMIT) ? bytes : null;
+    }
+
+    /**
+     * Set the largest download, in bytes, that may run over a metered
+     * network. Larger downloads are queued until an unmetered network is
+     * available. Pass -1 to remove the limit.
+     */
+    public static void setMaxBytesOverMobile(Context context, long bytes) {
+        DownloadNetworkPolicy.getInstance(context).setMaxBytesOverMobile(bytes);
+    }
+
+    /**
+     * Returns the recommended largest download, in bytes, over a metered
+     * network, or null when there is no recommendation.
+     */
+    public static Long getRecommendedMaxBytesOverMobile(Context context) {
+        final long bytes = DownloadNetworkPolicy.getInstance(context)
+                .getRecommendedMaxBytesOverMobile();
+        return (bytes != DownloadNetworkPolicy.NO_LIMIT) ? bytes : null;
+    }
+
+    /**
+     * Set the recommended largest download, in bytes, over a metered network.
+     * Larger downloads are queued for an unmetered network unless started
+     * with {@link #forceDownload}. Pass -1 to remove the recommendation.
+     */
+    public static void setRecommendedMaxBytesOverMobile(Context context, long bytes) {
+        DownloadNetworkPolicy.getInstance(context).setRecommendedMaxBytesOverMobile(bytes);
+    }
+
+    /**
+     * Set how many bytes all downloads together may read over metered
+     * networks per day. Downloads that don't fit in what's left are queued
+     * until an unmetered network is available. Pass -1 to remove the budget.
+     */
+    public static void setMeteredDailyBudget(Context context, long bytes) {
+        DownloadNetworkPolicy.getInstance(context).setDailyBudget(bytes);
+    }
+
+    /**
+     * Set how many bytes downloads requested by the given package may read
+     * over metered networks per day, in addition to the overall budget. Pass
+     * -1 to remove the budget.
+     */
+    public static void setMeteredPackageBudget(Context context, String packageName,
+            long bytes) {
+        DownloadNetworkPolicy.getInstance(context).setPackageBudget(packageName, bytes);
+    }
+
+    /**
+     * Returns the bytes read over metered networks today by downloads
+     * requested by the given package, or by all downloads when
+     * {@code packageName} is null.
+     */
+    public static long getMeteredBytesToday(Context context, String packageName) {
+        return DownloadNetworkPolicy.getInstance(context).getUsage(packageName);
+    }
+
+    /**
+     * Choose how downloads starting from now on are run, either {@link #ENGINE_THREADS} or
+     * {@link #ENGINE_NIO}. Running downloads carry on as they are.
+     */
+    public static void setDownloadEngine(int engine) {
+        if (engine != ENGINE_THREADS && engine != ENGINE_NIO) {
+            throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+        NioDownloadEngine.setEnabled(engine == ENGINE_NIO);
+    }
+
+    /**
+     * Returns the engine downloads are started with, see {@link #setDownloadEngine(int)}.
+     */
+    public static int getDownloadEngine() {
+        return NioDownloadEngine.isEnabled() ? ENGINE_NIO : ENGINE_THREADS;
     }
 
     /**
@@ -1399,6 +2030,7 @@ public class DownloadManager {
                 Request.VISIBILITY_VISIBLE_NOTIFY_ONLY_COMPLETION : Request.VISIBILITY_HIDDEN);
         values.put(Downloads.Impl.COLUMN_ALLOW_WRITE, allowWrite ? 1 : 0);
         Uri downloadUri = mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+        invalidateUriCache();
         if (downloadUri == null) {
             return -1;
         }
@@ -1451,20 +2083,94 @@ public class DownloadManager {
         return whereArgs;
     }
 
+    /**
+     * Get a parameterized SQL WHERE clause to select downloads by the hashes of a bunch of URIs.
+     */
+    static String getWhereClauseForUris(int count) {
+        StringBuilder whereClause = new StringBuilder();
+        whereClause.append("(");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                whereClause.append("OR ");
+            }
+            whereClause.append(Downloads.Impl.COLUMN_URI_HASH);
+            whereClause.append(" = ? ");
+        }
+        whereClause.append(")");
+        return whereClause.toString();
+    }
+
+    /**
+     * Get the selection args for a clause returned by {@link #getWhereClauseForUris(int)}.
+     */
+    static String[] getWhereArgsForUris(String[] uris, int start, int count) {
+        String[] whereArgs = new String[count];
+        for (int i = 0; i < count; i++) {
+            whereArgs[i] = Long.toString(Helpers.hashUri(uris[start + i]));
+        }
+        return whereArgs;
+    }
+
     /**
      * This class wraps a cursor returned by DownloadProvider -- the "underlying cursor" -- and
      * presents a different set of columns, those defined in the DownloadManager.COLUMN_* constants.
      * Some columns correspond directly to underlying values while others are computed from
      * underlying data.
      */
-    private static class CursorTranslator extends CursorWrapper {
+    static class CursorTranslator extends CursorWrapper {
+        private static final int TRANSLATE_NONE = 0;
+        private static final int TRANSLATE_REASON = 1;
+        private static final int TRANSLATE_STATUS = 2;
+        private static final int TRANSLATE_LOCAL_URI = 3;
+        private static final int TRANSLATE_LOCAL_FILENAME = 4;
+
         private final Uri mBaseUri;
         private final boolean mAccessFilename;
 
+        /** How each column is translated, by index, so rows need no name lookups */
+        private final int[] mTranslations;
+        private final int mIdIndex;
+        private final int mStatusIndex;
+        private final int mDestinationIndex;
+        private final int mLocalFilenameIndex;
+
+        // Computed columns of the row at mRowPosition, forgotten on every move
+        private int mRowPosition = -1;
+        private long mRowStatus;
+        private long mRowReason;
+        private String mRowLocalUri;
+        private boolean mRowHasLocalUri;
+
         public CursorTranslator(Cursor cursor, Uri baseUri, boolean accessFilename) {
             super(cursor);
             mBaseUri = baseUri;
             mAccessFilename = accessFilename;
+
+            final String[] columnNames = cursor.getColumnNames();
+            mTranslations = new int[columnNames.length];
+            for (int i = 0; i < columnNames.length; i++) {
+                switch (columnNames[i]) {
+                case COLUMN_REASON:
+                    mTranslations[i] = TRANSLATE_REASON;
+                    break;
+                case COLUMN_STATUS:
+                    mTranslations[i] = TRANSLATE_STATUS;
+                    break;
+                case COLUMN_LOCAL_URI:
+                    mTranslations[i] = TRANSLATE_LOCAL_URI;
+                    break;
+                case COLUMN_LOCAL_FILENAME:
+                    mTranslations[i] = TRANSLATE_LOCAL_FILENAME;
+                    break;
+                default:
+                    mTranslations[i] = TRANSLATE_NONE;
+                    break;
+                }
+            }
+            mIdIndex = cursor.getColumnIndex(Downloads.Impl._ID);
+            mStatusIndex = cursor.getColumnIndex(Downloads.Impl.COLUMN_STATUS);
+            mDestinationIndex = cursor.getColumnIndex(Downloads.Impl.COLUMN_DESTINATION);
+            mLocalFilenameIndex = cursor.getColumnIndex(COLUMN_LOCAL_FILENAME);
         }
 
         @Override
@@ -1474,22 +2180,29 @@ public class DownloadManager {
 
         @Override
         public long getLong(int columnIndex) {
-            if (getColumnName(columnIndex).equals(COLUMN_REASON)) {
-                return getReason(super.getInt(getColumnIndex(Downloads.Impl.COLUMN_STATUS)));
-            } else if (getColumnName(columnIndex).equals(COLUMN_STATUS)) {
-                return translateStatus(super.getInt(getColumnIndex(Downloads.Impl.COLUMN_STATUS)));
-            } else {
+            switch (mTranslations[columnIndex]) {
+            case TRANSLATE_REASON:
+                loadRow();
+                return mRowReason;
+            case TRANSLATE_STATUS:
+                loadRow();
+                return mRowStatus;
+            default:
                 return super.getLong(columnIndex);
             }
         }
 
         @Override
         public String getString(int columnIndex) {
-            final String columnName = getColumnName(columnIndex);
-            switch (columnName) {
-            case COLUMN_LOCAL_URI:
-                return getLocalUri();
-            case COLUMN_LOCAL_FILENAME:
+            switch (mTranslations[columnIndex]) {
+            case TRANSLATE_LOCAL_URI:
+                loadRow();
+                if (!mRowHasLocalUri) {
+                    mRowLocalUri = getLocalUri();
+                    mRowHasLocalUri = true;
+                }
+                return mRowLocalUri;
+            case TRANSLATE_LOCAL_FILENAME:
                 if (!mAccessFilename) {
                     throw new SecurityException(
                             "COLUMN_LOCAL_FILENAME is deprecated;"
@@ -1500,12 +2213,67 @@ public class DownloadManager {
             }
         }
 
+        @Override
+        public boolean move(int offset) {
+            return invalidateRow(super.move(offset));
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            return invalidateRow(super.moveToPosition(position));
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return invalidateRow(super.moveToFirst());
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return invalidateRow(super.moveToLast());
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return invalidateRow(super.moveToNext());
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return invalidateRow(super.moveToPrevious());
+        }
+
+        /**
+         * Forget the computed columns after a move, even back to the same
+         * position, since the rows underneath may have been reloaded.
+         */
+        private boolean invalidateRow(boolean moved) {
+            mRowPosition = -1;
+            return moved;
+        }
+
+        /**
+         * Compute the translated columns of the current row, unless done already.
+         */
+        private void loadRow() {
+            final int position = getPosition();
+            if (position == mRowPosition) {
+                return;
+            }
+            final int status = super.getInt(mStatusIndex);
+            mRowStatus = translateStatus(status);
+            mRowReason = getReason(status);
+            mRowLocalUri = null;
+            mRowHasLocalUri = false;
+            mRowPosition = position;
+        }
+
         private String getLocalUri() {
-            long destinationType = getLong(getColumnIndex(Downloads.Impl.COLUMN_DESTINATION));
+            long destinationType = super.getLong(mDestinationIndex);
             if (destinationType == Downloads.Impl.DESTINATION_FILE_URI ||
                     destinationType == Downloads.Impl.DESTINATION_EXTERNAL ||
                     destinationType == Downloads.Impl.DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD) {
-                String localPath = super.getString(getColumnIndex(COLUMN_LOCAL_FILENAME));
+                String localPath = super.getString(mLocalFilenameIndex);
                 if (localPath == null) {
                     return null;
                 }
@@ -1513,7 +2281,7 @@ public class DownloadManager {
             }
 
             // return content URI for cache download
-            long downloadId = getLong(getColumnIndex(Downloads.Impl._ID));
+            long downloadId = super.getLong(mIdIndex);
             return ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, downloadId).toString();
         }
 
@@ -0,0 +1,346 @@
+package com.leaf.downloads;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.leaf.downloads.Constants.TAG;
+
+/**
+ * Timings and counters recorded for a single attempt at a download. Durations
+ * are in milliseconds.
+ * <p>
+ * The most recent attempts across all downloads are kept in a bounded
+ * process-wide buffer, see {@link DownloadManager#getDownloadMetrics(long)}.
+ * Startup latency is kept process-wide too: how long after the provider came
+ * up the service had its unfinished downloads started, and the first response
+ * arrived.
+ */
+public final class DownloadMetrics {
+
+    private static final DownloadMetrics[] sRecent =
+            new DownloadMetrics[Constants.MAX_METRICS_RECORDS];
+    private static int sNext;
+    private static int sCount;
+
+    private static final Object sStartupLock = new Object();
+
+    // Guarded by sStartupLock; -1 until known
+    private static long sProcessStartRealtime = -1;
+    private static long sResumeMillis = -1;
+    private static int sResumeCount;
+    private static long sFirstByteAfterStartMillis = -1;
+
+    private final long mDownloadId;
+
+    private long mStartTime;
+    private long mStartRealtime;
+
+    private long mDnsMillis;
+    private long mConnectMillis;
+    private long mFirstByteMillis;
+    private long mTransferMillis;
+    private long mStallMillis;
+    private long mSyncMillis;
+    private long mDatabaseMillis;
+    private long mBackpressureMillis;
+    private int mPeakBufferOccupancy;
+    private long mBufferOccupancySum;
+    private long mBufferOccupancySamples;
+    private long mTotalMillis;
+    private long mBytes;
+    private int mRetryCount;
+    private int mFinalStatus;
+
+    DownloadMetrics(long downloadId) {
+        mDownloadId = downloadId;
+    }
+
+    /**
+     * Keep the given finished attempt, evicting the oldest one when full.
+     */
+    static void record(DownloadMetrics metrics) {
+        synchronized (sRecent) {
+            sRecent[sNext] = metrics;
+            sNext = (sNext + 1) % sRecent.length;
+            sCount = Math.min(sCount + 1, sRecent.length);
+        }
+    }
+
+    /**
+     * Return recent attempts at the given download, or at all downloads when
+     * {@code downloadId} is -1, oldest first.
+     */
+    static List<DownloadMetrics> getRecent(long downloadId) {
+        final List<DownloadMetrics> result = new ArrayList<DownloadMetrics>();
+        synchronized (sRecent) {
+            for (int i = 0; i < sCount; i++) {
+                final DownloadMetrics metrics =
+                        sRecent[(sNext - sCount + i + sRecent.length) % sRecent.length];
+                if (downloadId == -1 || metrics.mDownloadId == downloadId) {
+                    result.add(metrics);
+                }
+            }
+        }
+        return result;
+    }
+
+    static void dumpRecent(PrintWriter writer) {
+        writer.println("Recent download attempts:");
+        for (DownloadMetrics metrics : getRecent(-1)) {
+            writer.print("  ");
+            writer.println(metrics);
+        }
+    }
+
+    /**
+     * Mark the process as started, which is as early as this library runs.
+     */
+    static void markProcessStart() {
+        synchronized (sStartupLock) {
+            if (sProcessStartRealtime == -1) {
+                sProcessStartRealtime = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /**
+     * Note that the first update pass started the given number of unfinished
+     * downloads, before reading in the others.
+     */
+    static void markResumed(int count) {
+        synchronized (sStartupLock) {
+            if (sProcessStartRealtime == -1 || sResumeMillis != -1) {
+                return;
+            }
+            sResumeMillis = SystemClock.elapsedRealtime() - sProcessStartRealtime;
+            sResumeCount = count;
+        }
+    }
+
+    /**
+     * Note that a response arrived, only counting the first one since the
+     * process started.
+     */
+    static void markFirstByte() {
+        synchronized (sStartupLock) {
+            if (sProcessStartRealtime == -1 || sFirstByteAfterStartMillis != -1) {
+                return;
+            }
+            sFirstByteAfterStartMillis = SystemClock.elapsedRealtime() - sProcessStartRealtime;
+            if (Constants.LOGV) {
+                Log.v(TAG, "First response " + sFirstByteAfterStartMillis
+                        + "ms after start, unfinished downloads started after " + sResumeMillis
+                        + "ms");
+            }
+        }
+    }
+
+    /**
+     * Return the time from process start until the first response arrived,
+     * or -1 when none has yet.
+     */
+    static long getFirstByteAfterStartMillis() {
+        synchronized (sStartupLock) {
+            return sFirstByteAfterStartMillis;
+        }
+    }
+
+    static void dumpStartup(PrintWriter writer) {
+        synchronized (sStartupLock) {
+            writer.println("Startup: " + sResumeCount + " unfinished downloads started after "
+                    + sResumeMillis + "ms, first response after " + sFirstByteAfterStartMillis
+                    + "ms");
+        }
+    }
+
+    void start() {
+        mStartTime = System.currentTimeMillis();
+        mStartRealtime = SystemClock.elapsedRealtime();
+    }
+
+    void addDnsTime(long millis) {
+        mDnsMillis += millis;
+    }
+
+    void addConnectTime(long millis) {
+        mConnectMillis += millis;
+    }
+
+    void addFirstByteTime(long millis) {
+        mFirstByteMillis += millis;
+    }
+
+    void addTransferTime(long millis) {
+        mTransferMillis += millis;
+    }
+
+    /**
+     * Account for a single read from the network, counting it as a stall
+     * when it blocked for long.
+     */
+    void addRead(long bytes, long millis) {
+        if (bytes > 0) {
+            mBytes += bytes;
+        }
+        if (millis >= Constants.STALL_THRESHOLD_MILLIS) {
+            mStallMillis += millis;
+        }
+    }
+
+    void addSyncTime(long millis) {
+        mSyncMillis += millis;
+    }
+
+    void addDatabaseTime(long millis) {
+        mDatabaseMillis += millis;
+    }
+
+    void addBackpressureTime(long millis) {
+        mBackpressureMillis += millis;
+    }
+
+    void addBufferOccupancy(int peak, long sum, long samples) {
+        mPeakBufferOccupancy = Math.max(mPeakBufferOccupancy, peak);
+        mBufferOccupancySum += sum;
+        mBufferOccupancySamples += samples;
+    }
+
+    void finish(int finalStatus, int retryCount) {
+        mFinalStatus = finalStatus;
+        mRetryCount = retryCount;
+        mTotalMillis = SystemClock.elapsedRealtime() - mStartRealtime;
+    }
+
+    public long getDownloadId() {
+        return mDownloadId;
+    }
+
+    /**
+     * Return the wall clock time when the attempt started, in milliseconds
+     * since the epoch.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Return the time spent resolving host names, including after redirects.
+     */
+    public long getDnsMillis() {
+        return mDnsMillis;
+    }
+
+    /**
+     * Return the time spent establishing connections. For https, this
+     * includes the TLS handshake.
+     */
+    public long getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    /**
+     * Return the time between sending requests and receiving response
+     * headers.
+     */
+    public long getFirstByteMillis() {
+        return mFirstByteMillis;
+    }
+
+    /**
+     * Return the time spent transferring the response body.
+     */
+    public long getTransferMillis() {
+        return mTransferMillis;
+    }
+
+    /**
+     * Return the time spent in network reads that blocked for a second or
+     * longer.
+     */
+    public long getStallMillis() {
+        return mStallMillis;
+    }
+
+    /**
+     * Return the time spent flushing the destination file to disk.
+     */
+    public long getSyncMillis() {
+        return mSyncMillis;
+    }
+
+    /**
+     * Return the time spent writing progress to the database.
+     */
+    public long getDatabaseMillis() {
+        return mDatabaseMillis;
+    }
+
+    /**
+     * Return the time network reads waited for the disk writer to free up a
+     * buffer.
+     */
+    public long getBackpressureMillis() {
+        return mBackpressureMillis;
+    }
+
+    /**
+     * Return the most buffers that were waiting to be written at once.
+     */
+    public int getPeakBufferOccupancy() {
+        return mPeakBufferOccupancy;
+    }
+
+    /**
+     * Return the average number of buffers waiting to be written, sampled
+     * whenever one was handed over.
+     */
+    public float getMeanBufferOccupancy() {
+        return (mBufferOccupancySamples == 0) ? 0
+                : (float) mBufferOccupancySum / mBufferOccupancySamples;
+    }
+
+    /**
+     * Return the duration of the whole attempt.
+     */
+    public long getTotalMillis() {
+        return mTotalMillis;
+    }
+
+    /**
+     * Return the number of response bytes read during the attempt.
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Return the number of consecutive failed attempts when this one ended.
+     */
+    public int getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * Return the status the attempt ended with. Values match the HTTP-like
+     * status codes in {@link Downloads.Impl}, so may be a retryable or
+     * pending status rather than a final one.
+     */
+    public int getFinalStatus() {
+        return mFinalStatus;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + mDownloadId + "] status=" + Downloads.Impl.statusToString(mFinalStatus)
+                + " retries=" + mRetryCount + " bytes=" + mBytes + " total=" + mTotalMillis
+                + "ms dns=" + mDnsMillis + "ms connect=" + mConnectMillis + "ms ttfb="
+                + mFirstByteMillis + "ms transfer=" + mTransferMillis + "ms stall="
+                + mStallMillis + "ms fsync=" + mSyncMillis + "ms db=" + mDatabaseMillis
+                + "ms backpressure=" + mBackpressureMillis + "ms buffers=" + mPeakBufferOccupancy
+                + "/" + Constants.PIPELINE_CHUNKS;
+    }
+}
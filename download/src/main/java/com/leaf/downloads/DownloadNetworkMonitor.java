@@ -0,0 +1,93 @@
+package com.leaf.downloads;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.leaf.downloads.utils.ConnectManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches connectivity while downloads are running, and tells each running
+ * {@link DownloadThread} as soon as the active network changes, so it can
+ * move its transfer to the new network instead of waiting for the old
+ * connection to time out.
+ * <p>
+ * The receiver is only registered while at least one thread is running.
+ */
+final class DownloadNetworkMonitor {
+
+    private static final Object sLock = new Object();
+
+    private static final List<DownloadThread> sThreads = new ArrayList<DownloadThread>();
+
+    private static Context sContext;
+    private static Handler sHandler;
+    private static BroadcastReceiver sReceiver;
+
+    private DownloadNetworkMonitor() {
+    }
+
+    /**
+     * Start telling the given thread about network changes.
+     */
+    public static void register(Context context, DownloadThread thread) {
+        synchronized (sLock) {
+            sThreads.add(thread);
+            if (sReceiver == null) {
+                sContext = context.getApplicationContext();
+                sReceiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        dispatch(context);
+                    }
+                };
+                sContext.registerReceiver(sReceiver,
+                        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null,
+                        getHandler());
+            }
+        }
+    }
+
+    public static void unregister(DownloadThread thread) {
+        synchronized (sLock) {
+            sThreads.remove(thread);
+            if (sThreads.isEmpty() && sReceiver != null) {
+                sContext.unregisterReceiver(sReceiver);
+                sReceiver = null;
+            }
+        }
+    }
+
+    /**
+     * Changes are handled off the main thread, since tearing down a
+     * connection may block.
+     */
+    private static Handler getHandler() {
+        if (sHandler == null) {
+            final HandlerThread thread = new HandlerThread("DownloadNetworkMonitor");
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    private static void dispatch(Context context) {
+        final List<DownloadThread> threads;
+        synchronized (sLock) {
+            threads = new ArrayList<DownloadThread>(sThreads);
+        }
+        for (DownloadThread thread : threads) {
+            final NetworkInfo info = ConnectManager.getActiveNetworkInfo(context,
+                    thread.getUid());
+            thread.onNetworkChanged(info);
+        }
+    }
+}
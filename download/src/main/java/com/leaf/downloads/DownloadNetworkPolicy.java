@@ -0,0 +1,191 @@
+package com.leaf.downloads;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+
+/**
+ * Limits what downloads may spend on metered networks: size thresholds above
+ * which a download waits for an unmetered network, and daily byte budgets,
+ * both overall and per requesting package, which running downloads draw
+ * from as they read.
+ * <p>
+ * Settings and today's usage are kept in shared preferences, and cached in
+ * memory so that checks are cheap. A limit of -1 means no limit.
+ */
+final class DownloadNetworkPolicy {
+
+    private static final String PREFS_NAME = "download_network_policy";
+
+    private static final String KEY_MAX_BYTES_OVER_MOBILE = "max_bytes_over_mobile";
+    private static final String KEY_RECOMMENDED_MAX_BYTES_OVER_MOBILE =
+            "recommended_max_bytes_over_mobile";
+    private static final String KEY_DAILY_BUDGET = "daily_budget";
+    private static final String KEY_PACKAGE_BUDGET_PREFIX = "package_budget:";
+    private static final String KEY_USAGE_DAY = "usage_day";
+    private static final String KEY_USAGE_TOTAL = "usage_total";
+    private static final String KEY_USAGE_PACKAGE_PREFIX = "usage:";
+
+    public static final long NO_LIMIT = -1;
+
+    private static DownloadNetworkPolicy sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    private long mMaxBytesOverMobile;
+    private long mRecommendedMaxBytesOverMobile;
+    private long mDailyBudget;
+    private final Map<String, Long> mPackageBudgets = new HashMap<String, Long>();
+
+    private long mUsageDay;
+    private long mUsageTotal;
+    private final Map<String, Long> mPackageUsage = new HashMap<String, Long>();
+
+    public static synchronized DownloadNetworkPolicy getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DownloadNetworkPolicy(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DownloadNetworkPolicy(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        mMaxBytesOverMobile = mPrefs.getLong(KEY_MAX_BYTES_OVER_MOBILE, NO_LIMIT);
+        mRecommendedMaxBytesOverMobile = mPrefs.getLong(KEY_RECOMMENDED_MAX_BYTES_OVER_MOBILE,
+                NO_LIMIT);
+        mDailyBudget = mPrefs.getLong(KEY_DAILY_BUDGET, NO_LIMIT);
+        mUsageDay = mPrefs.getLong(KEY_USAGE_DAY, 0);
+        mUsageTotal = mPrefs.getLong(KEY_USAGE_TOTAL, 0);
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            final String key = entry.getKey();
+            if (!(entry.getValue() instanceof Long)) {
+                continue;
+            }
+            if (key.startsWith(KEY_PACKAGE_BUDGET_PREFIX)) {
+                mPackageBudgets.put(key.substring(KEY_PACKAGE_BUDGET_PREFIX.length()),
+                        (Long) entry.getValue());
+            } else if (key.startsWith(KEY_USAGE_PACKAGE_PREFIX)) {
+                mPackageUsage.put(key.substring(KEY_USAGE_PACKAGE_PREFIX.length()),
+                        (Long) entry.getValue());
+            }
+        }
+    }
+
+    public synchronized long getMaxBytesOverMobile() {
+        return mMaxBytesOverMobile;
+    }
+
+    public synchronized void setMaxBytesOverMobile(long bytes) {
+        mMaxBytesOverMobile = bytes;
+        mPrefs.edit().putLong(KEY_MAX_BYTES_OVER_MOBILE, bytes).apply();
+    }
+
+    public synchronized long getRecommendedMaxBytesOverMobile() {
+        return mRecommendedMaxBytesOverMobile;
+    }
+
+    public synchronized void setRecommendedMaxBytesOverMobile(long bytes) {
+        mRecommendedMaxBytesOverMobile = bytes;
+        mPrefs.edit().putLong(KEY_RECOMMENDED_MAX_BYTES_OVER_MOBILE, bytes).apply();
+    }
+
+    public synchronized long getDailyBudget() {
+        return mDailyBudget;
+    }
+
+    public synchronized void setDailyBudget(long bytes) {
+        mDailyBudget = bytes;
+        mPrefs.edit().putLong(KEY_DAILY_BUDGET, bytes).apply();
+    }
+
+    public synchronized void setPackageBudget(String packageName, long bytes) {
+        final String key = KEY_PACKAGE_BUDGET_PREFIX + normalize(packageName);
+        if (bytes == NO_LIMIT) {
+            mPackageBudgets.remove(normalize(packageName));
+            mPrefs.edit().remove(key).apply();
+        } else {
+            mPackageBudgets.put(normalize(packageName), bytes);
+            mPrefs.edit().putLong(key, bytes).apply();
+        }
+    }
+
+    /**
+     * Return the bytes read over metered networks today, by the given
+     * package, or by all packages when {@code packageName} is null.
+     */
+    public synchronized long getUsage(String packageName) {
+        rollOverIfNeeded();
+        if (packageName == null) {
+            return mUsageTotal;
+        }
+        final Long usage = mPackageUsage.get(packageName);
+        return (usage != null) ? usage : 0;
+    }
+
+    /**
+     * Return how many more bytes the given package may read over metered
+     * networks today, or {@link Long#MAX_VALUE} when it isn't limited.
+     */
+    public synchronized long getRemainingBudget(String packageName) {
+        rollOverIfNeeded();
+        long remaining = Long.MAX_VALUE;
+        if (mDailyBudget != NO_LIMIT) {
+            remaining = mDailyBudget - mUsageTotal;
+        }
+        final Long packageBudget = mPackageBudgets.get(normalize(packageName));
+        if (packageBudget != null) {
+            final Long usage = mPackageUsage.get(normalize(packageName));
+            remaining = Math.min(remaining, packageBudget - ((usage != null) ? usage : 0));
+        }
+        return Math.max(remaining, 0);
+    }
+
+    /**
+     * Charge bytes read over a metered network to today's budgets.
+     */
+    public synchronized void addUsage(String packageName, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        rollOverIfNeeded();
+        final String pkg = normalize(packageName);
+        final Long usage = mPackageUsage.get(pkg);
+        final long packageUsage = ((usage != null) ? usage : 0) + bytes;
+        mUsageTotal += bytes;
+        mPackageUsage.put(pkg, packageUsage);
+        mPrefs.edit()
+                .putLong(KEY_USAGE_TOTAL, mUsageTotal)
+                .putLong(KEY_USAGE_PACKAGE_PREFIX + pkg, packageUsage)
+                .apply();
+    }
+
+    /**
+     * Start counting afresh when the local day changed since the last use.
+     */
+    private void rollOverIfNeeded() {
+        final long now = System.currentTimeMillis();
+        final long day = (now + TimeZone.getDefault().getOffset(now)) / DAY_IN_MILLIS;
+        if (day == mUsageDay) {
+            return;
+        }
+
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        for (String pkg : mPackageUsage.keySet()) {
+            editor.remove(KEY_USAGE_PACKAGE_PREFIX + pkg);
+        }
+        mPackageUsage.clear();
+        mUsageTotal = 0;
+        mUsageDay = day;
+        editor.putLong(KEY_USAGE_DAY, day).putLong(KEY_USAGE_TOTAL, 0).apply();
+    }
+
+    private static String normalize(String packageName) {
+        return (packageName != null) ? packageName : "";
+    }
+}
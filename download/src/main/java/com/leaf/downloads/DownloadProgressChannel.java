@@ -0,0 +1,126 @@
+package com.leaf.downloads;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Carries progress-only changes to downloads, which {@link DownloadProvider}
+ * no longer announces through the regular content URIs. Bursts of changes
+ * are coalesced, so that listeners wake at most once per
+ * {@link Constants#PROGRESS_NOTIFY_INTERVAL} with the set of downloads that
+ * changed since the last wakeup.
+ * <p>
+ * Observers in other processes can watch
+ * {@link Downloads.Impl#PROGRESS_CONTENT_URI}, which is notified on the same
+ * schedule.
+ */
+final class DownloadProgressChannel {
+
+    private static final Object sLock = new Object();
+
+    private static final HashSet<Long> sPending = new HashSet<Long>();
+    private static final List<Pair<DownloadManager.ProgressListener, Handler>> sListeners =
+            new ArrayList<Pair<DownloadManager.ProgressListener, Handler>>();
+
+    private static Handler sHandler;
+    private static Context sContext;
+    private static boolean sScheduled;
+    private static long sLastDispatch;
+
+    private static final Runnable sDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private DownloadProgressChannel() {
+    }
+
+    /**
+     * Record that the progress of the given download changed, scheduling a
+     * wakeup for listeners if one isn't pending already.
+     */
+    public static void post(Context context, long id) {
+        synchronized (sLock) {
+            if (sContext == null) {
+                sContext = context.getApplicationContext();
+            }
+            sPending.add(id);
+            if (!sScheduled) {
+                sScheduled = true;
+                final long delay = Math.max(0, sLastDispatch + Constants.PROGRESS_NOTIFY_INTERVAL
+                        - SystemClock.uptimeMillis());
+                getHandler().postDelayed(sDispatch, delay);
+            }
+        }
+    }
+
+    /**
+     * Register a listener, which is called on the given handler, or on the
+     * main thread when {@code handler} is null.
+     */
+    public static void addListener(DownloadManager.ProgressListener listener, Handler handler) {
+        synchronized (sLock) {
+            sListeners.add(Pair.create(listener, (handler != null) ? handler : getHandler()));
+        }
+    }
+
+    public static void removeListener(DownloadManager.ProgressListener listener) {
+        synchronized (sLock) {
+            for (int i = sListeners.size() - 1; i >= 0; i--) {
+                if (sListeners.get(i).first == listener) {
+                    sListeners.remove(i);
+                }
+            }
+        }
+    }
+
+    private static Handler getHandler() {
+        if (sHandler == null) {
+            sHandler = new Handler(Looper.getMainLooper());
+        }
+        return sHandler;
+    }
+
+    private static void dispatch() {
+        final long[] ids;
+        final List<Pair<DownloadManager.ProgressListener, Handler>> listeners;
+        final Context context;
+        synchronized (sLock) {
+            sScheduled = false;
+            sLastDispatch = SystemClock.uptimeMillis();
+
+            ids = new long[sPending.size()];
+            int i = 0;
+            for (Long id : sPending) {
+                ids[i++] = id;
+            }
+            sPending.clear();
+
+            listeners = new ArrayList<Pair<DownloadManager.ProgressListener, Handler>>(
+                    sListeners);
+            context = sContext;
+        }
+
+        for (final Pair<DownloadManager.ProgressListener, Handler> listener : listeners) {
+            listener.second.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.first.onProgressChanged(ids);
+                }
+            });
+        }
+
+        if (context != null) {
+            context.getContentResolver().notifyChange(Downloads.Impl.PROGRESS_CONTENT_URI, null);
+        }
+    }
+}
@@ -68,11 +68,11 @@ public final class DownloadProvider extends ContentProvider {
     /**
      * Current database version
      */
-    private static final int DB_VERSION = 109;
+    private static final int DB_VERSION = 116;
     /**
      * Name of table in the database
      */
-    private static final String DB_TABLE = "downloads";
+    static final String DB_TABLE = "downloads";
 
     /**
      * MIME type for the entire download list
@@ -139,7 +139,7 @@ public final class DownloadProvider extends ContentProvider {
     /**
      * Different base URIs that could be used to access an individual download
      */
-    private static final Uri[] BASE_URIS = new Uri[]{
+    static final Uri[] BASE_URIS = new Uri[]{
             Downloads.Impl.CONTENT_URI,
             Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
     };
@@ -162,6 +162,7 @@ public final class DownloadProvider extends ContentProvider {
             Downloads.Impl.COLUMN_TITLE,
             Downloads.Impl.COLUMN_DESCRIPTION,
             Downloads.Impl.COLUMN_URI,
+            Downloads.Impl.COLUMN_URI_HASH,
             Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI,
             Downloads.Impl.COLUMN_FILE_NAME_HINT,
             Downloads.Impl.COLUMN_MEDIAPROVIDER_URI,
@@ -173,6 +174,13 @@ public final class DownloadProvider extends ContentProvider {
     private static final HashSet<String> sAppReadableColumnsSet;
     private static final HashMap<String, String> sColumnsMap;
 
+    /**
+     * Columns that change continuously while transferring. Updates touching
+     * only these go through {@link DownloadProgressChannel} instead of waking
+     * every observer.
+     */
+    private static final HashSet<String> sProgressColumnsSet;
+
     static {
         sAppReadableColumnsSet = new HashSet<String>();
         for (int i = 0; i < sAppReadableColumnsArray.length; ++i) {
@@ -184,6 +192,11 @@ public final class DownloadProvider extends ContentProvider {
                 Downloads.Impl.COLUMN_TITLE + " AS " + OpenableColumns.DISPLAY_NAME);
         sColumnsMap.put(OpenableColumns.SIZE,
                 Downloads.Impl.COLUMN_TOTAL_BYTES + " AS " + OpenableColumns.SIZE);
+
+        sProgressColumnsSet = new HashSet<String>();
+        sProgressColumnsSet.add(Downloads.Impl.COLUMN_CURRENT_BYTES);
+        sProgressColumnsSet.add(Downloads.Impl.COLUMN_EXTRACT_OFFSET);
+        sProgressColumnsSet.add(Downloads.Impl.COLUMN_LAST_MODIFICATION);
     }
 
     private Handler mHandler;
@@ -346,6 +359,52 @@ public final class DownloadProvider extends ContentProvider {
                         "BOOLEAN NOT NULL DEFAULT 0");
                 break;
 
+            case 110:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_STREAM_MODE,
+                        "INTEGER NOT NULL DEFAULT 0");
+                break;
+
+            case 111:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_TRANSFORM,
+                        "INTEGER NOT NULL DEFAULT 0");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_EXTRACT_DIR, "TEXT");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_EXTRACT_OFFSET,
+                        "INTEGER NOT NULL DEFAULT 0");
+                break;
+
+            case 112:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_PATCH_BASE, "TEXT");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_PATCH_DIGEST, "TEXT");
+                break;
+
+            case 113:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_SERVER_LAST_MODIFIED, "TEXT");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_REVALIDATE,
+                        "BOOLEAN NOT NULL DEFAULT 0");
+                break;
+
+            case 114:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_REQUIRES_CHARGING,
+                        "BOOLEAN NOT NULL DEFAULT 0");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_REQUIRES_DEVICE_IDLE,
+                        "BOOLEAN NOT NULL DEFAULT 0");
+                break;
+
+            case 115:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_URI_HASH, "INTEGER");
+                fillUriHashes(db);
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_"
+                        + Downloads.Impl.COLUMN_URI_HASH + " ON " + DB_TABLE + "("
+                        + Downloads.Impl.COLUMN_URI_HASH + ")");
+                break;
+
+            case 116:
+                // Lets DownloadService read only unfinished downloads at startup
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_"
+                        + Downloads.Impl.COLUMN_STATUS + " ON " + DB_TABLE + "("
+                        + Downloads.Impl.COLUMN_STATUS + ")");
+                break;
+
             default:
                 throw new IllegalStateException("Don't know how to upgrade to " + version);
             }
@@ -367,6 +426,26 @@ public final class DownloadProvider extends ContentProvider {
             fillNullValuesForColumn(db, values);
         }
 
+        /**
+         * Hash the URIs of existing downloads, which predate {@link Downloads.Impl#COLUMN_URI_HASH}.
+         */
+        private void fillUriHashes(SQLiteDatabase db) {
+            final ContentValues values = new ContentValues();
+            Cursor cursor = null;
+            try {
+                cursor = db.query(DB_TABLE, new String[] {
+                        Downloads.Impl._ID, Downloads.Impl.COLUMN_URI
+                }, Downloads.Impl.COLUMN_URI + " IS NOT NULL", null, null, null, null);
+                while (cursor.moveToNext()) {
+                    values.put(Downloads.Impl.COLUMN_URI_HASH, Helpers.hashUri(cursor.getString(1)));
+                    db.update(DB_TABLE, values, Downloads.Impl._ID + " = ?",
+                            new String[] { Long.toString(cursor.getLong(0)) });
+                }
+            } finally {
+                IoUtils.closeQuietly(cursor);
+            }
+        }
+
         private void fillNullValuesForColumn(SQLiteDatabase db, ContentValues values) {
             String column = values.valueSet().iterator().next().getKey();
             db.update(DB_TABLE, values, column + " is null", null);
@@ -457,6 +536,7 @@ public final class DownloadProvider extends ContentProvider {
      */
     @Override
     public boolean onCreate() {
+        DownloadMetrics.markProcessStart();
 
         HandlerThread handlerThread =
                 new HandlerThread("DownloadProvider handler", Process.THREAD_PRIORITY_BACKGROUND);
@@ -464,6 +544,7 @@ public final class DownloadProvider extends ContentProvider {
         mHandler = new Handler(handlerThread.getLooper());
 
         mOpenHelper = new DatabaseHelper(getContext());
+        DownloadStore.attach(getContext(), mOpenHelper);
         // Initialize the system uid
         mSystemUid = Process.SYSTEM_UID;
         // Initialize the default container uid. Package name hardcoded
@@ -539,6 +620,7 @@ public final class DownloadProvider extends ContentProvider {
         // copy some of the input values as it
         ContentValues filteredValues = new ContentValues();
         copyString(Downloads.Impl.COLUMN_URI, values, filteredValues);
+        putUriHash(filteredValues);
         copyString(Downloads.Impl.COLUMN_ICON_URI, values, filteredValues);
         copyString(Downloads.Impl.COLUMN_APP_DATA, values, filteredValues);
         copyBoolean(Downloads.Impl.COLUMN_NO_INTEGRITY, values, filteredValues);
@@ -636,6 +718,13 @@ public final class DownloadProvider extends ContentProvider {
         copyString(Downloads.Impl.COLUMN_REFERER, values, filteredValues);
 
         copyInteger(Downloads.Impl.COLUMN_OTHER_UID, values, filteredValues);
+        copyInteger(Downloads.Impl.COLUMN_STREAM_MODE, values, filteredValues);
+        copyInteger(Downloads.Impl.COLUMN_TRANSFORM, values, filteredValues);
+        copyString(Downloads.Impl.COLUMN_EXTRACT_DIR, values, filteredValues);
+        checkExtractDestination(values);
+        copyString(Downloads.Impl.COLUMN_PATCH_BASE, values, filteredValues);
+        copyString(Downloads.Impl.COLUMN_PATCH_DIGEST, values, filteredValues);
+        checkPatchBase(values);
 
         filteredValues.put(Constants.UID, Binder.getCallingUid());
         if (Binder.getCallingUid() == 0) {
@@ -661,6 +750,8 @@ public final class DownloadProvider extends ContentProvider {
             copyBoolean(Downloads.Impl.COLUMN_ALLOW_ROAMING, values, filteredValues);
             copyBoolean(Downloads.Impl.COLUMN_ALLOW_METERED, values, filteredValues);
         }
+        copyBoolean(Downloads.Impl.COLUMN_REQUIRES_CHARGING, values, filteredValues);
+        copyBoolean(Downloads.Impl.COLUMN_REQUIRES_DEVICE_IDLE, values, filteredValues);
 
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "initiating download with UID "
@@ -712,6 +803,44 @@ public final class DownloadProvider extends ContentProvider {
         }*/
     }
 
+    /**
+     * Check that a download asking for archive extraction names a directory.
+     */
+    private void checkExtractDestination(ContentValues values) {
+        final Integer transform = values.getAsInteger(Downloads.Impl.COLUMN_TRANSFORM);
+        if (transform == null || (transform & (Downloads.Impl.TRANSFORM_EXTRACT_ZIP
+                | Downloads.Impl.TRANSFORM_EXTRACT_TAR)) == 0) {
+            return;
+        }
+        final String dir = values.getAsString(Downloads.Impl.COLUMN_EXTRACT_DIR);
+        if (dir == null || !new File(dir).isAbsolute()) {
+            throw new IllegalArgumentException(
+                    "Extraction must include an absolute directory under COLUMN_EXTRACT_DIR");
+        }
+    }
+
+    /**
+     * Check that a download asking to be patched names a usable base file.
+     */
+    private void checkPatchBase(ContentValues values) {
+        final String base = values.getAsString(Downloads.Impl.COLUMN_PATCH_BASE);
+        if (base == null) {
+            return;
+        }
+        if (!new File(base).isAbsolute()) {
+            throw new IllegalArgumentException("COLUMN_PATCH_BASE must be an absolute path");
+        }
+        final Integer transform = values.getAsInteger(Downloads.Impl.COLUMN_TRANSFORM);
+        if (transform != null && (transform & (Downloads.Impl.TRANSFORM_EXTRACT_ZIP
+                | Downloads.Impl.TRANSFORM_EXTRACT_TAR)) != 0) {
+            throw new IllegalArgumentException("Patching can't be combined with extraction");
+        }
+        final String digest = values.getAsString(Downloads.Impl.COLUMN_PATCH_DIGEST);
+        if (digest != null && !digest.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException("COLUMN_PATCH_DIGEST must be a SHA-256 hex digest");
+        }
+    }
+
     /**
      * Apps with the ACCESS_DOWNLOAD_MANAGER permission can access this provider freely, subject to
      * constraints in the rest of the code. Apps without that may still access this provider through
@@ -768,9 +897,17 @@ public final class DownloadProvider extends ContentProvider {
         values.remove(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES);
         values.remove(Downloads.Impl.COLUMN_ALLOW_ROAMING);
         values.remove(Downloads.Impl.COLUMN_ALLOW_METERED);
+        values.remove(Downloads.Impl.COLUMN_REQUIRES_CHARGING);
+        values.remove(Downloads.Impl.COLUMN_REQUIRES_DEVICE_IDLE);
         values.remove(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI);
         values.remove(Downloads.Impl.COLUMN_MEDIA_SCANNED);
         values.remove(Downloads.Impl.COLUMN_ALLOW_WRITE);
+        values.remove(Downloads.Impl.COLUMN_TRANSFORM);
+        values.remove(Downloads.Impl.COLUMN_EXTRACT_DIR); // checked later in insert()
+        enforceAllowedValues(values, Downloads.Impl.COLUMN_STREAM_MODE,
+                Downloads.Impl.STREAM_MODE_NONE,
+                Downloads.Impl.STREAM_MODE_CONSUMER,
+                Downloads.Impl.STREAM_MODE_TEE);
         Iterator<Map.Entry<String, Object>> iterator = values.valueSet().iterator();
         while (iterator.hasNext()) {
             String key = iterator.next().getKey();
@@ -830,7 +967,9 @@ public final class DownloadProvider extends ContentProvider {
                         final String selection, final String[] selectionArgs,
                         final String sort) {
 
-//        Helpers.validateSelection(selection, sAppReadableColumnsSet);
+        if (shouldRestrictVisibility()) {
+            Helpers.validateSelection(selection, sAppReadableColumnsSet);
+        }
 
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
@@ -1008,7 +1147,9 @@ public final class DownloadProvider extends ContentProvider {
     public int update(final Uri uri, final ContentValues values,
                       final String where, final String[] whereArgs) {
 
-//        Helpers.validateSelection(where, sAppReadableColumnsSet);
+        if (shouldRestrictVisibility()) {
+            Helpers.validateSelection(where, sAppReadableColumnsSet);
+        }
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
@@ -1055,6 +1196,8 @@ public final class DownloadProvider extends ContentProvider {
                 }
             }
 
+            putUriHash(values);
+
             Integer status = values.getAsInteger(Downloads.Impl.COLUMN_STATUS);
             boolean isRestart = status != null && status == Downloads.Impl.STATUS_PENDING;
             boolean isUserBypassingSizeLimit =
@@ -1084,7 +1227,14 @@ public final class DownloadProvider extends ContentProvider {
             throw new UnsupportedOperationException("Cannot update URI: " + uri);
         }
 
-        notifyContentChanged(uri, match);
+        if ((match == MY_DOWNLOADS_ID || match == ALL_DOWNLOADS_ID)
+                && filteredValues.size() > 0
+                && sProgressColumnsSet.containsAll(filteredValues.keySet())) {
+            DownloadProgressChannel.post(getContext(),
+                    Long.parseLong(getDownloadIdFromUri(uri)));
+        } else {
+            notifyContentChanged(uri, match);
+        }
         if (startService) {
             Context context = getContext();
             context.startService(new Intent(context, DownloadService.class));
@@ -1092,6 +1242,16 @@ public final class DownloadProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Keep {@link Downloads.Impl#COLUMN_URI_HASH} in step with a URI being written.
+     */
+    private static void putUriHash(ContentValues values) {
+        final String uri = values.getAsString(Downloads.Impl.COLUMN_URI);
+        if (uri != null) {
+            values.put(Downloads.Impl.COLUMN_URI_HASH, Helpers.hashUri(uri));
+        }
+    }
+
     /**
      * Notify of a change through both URIs (/my_downloads and /all_downloads)
      *
@@ -1140,27 +1300,35 @@ public final class DownloadProvider extends ContentProvider {
         case ALL_DOWNLOADS:
         case ALL_DOWNLOADS_ID:
             SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
-            deleteRequestHeaders(db, selection.getSelection(), selection.getParameters());
-
-            final Cursor cursor = db.query(DB_TABLE, new String[]{
-                    Downloads.Impl._ID, Downloads.Impl._DATA
-            }, selection.getSelection(), selection.getParameters(), null, null, null);
+            // Headers and rows of a batch go in a single transaction
+            db.beginTransaction();
             try {
-                while (cursor.moveToNext()) {
-                    final String path = cursor.getString(1);
-                    if (!TextUtils.isEmpty(path)) {
-                        final File file = new File(path);
-                        if (PermissionChecker.isFileCanDelate(getContext(), file)) {
-                            Log.v(Constants.TAG, "Deleting " + file + " via provider delete");
-                            file.delete();
+                deleteRequestHeaders(db, selection.getSelection(), selection.getParameters());
+
+                final Cursor cursor = db.query(DB_TABLE, new String[]{
+                        Downloads.Impl._ID, Downloads.Impl._DATA
+                }, selection.getSelection(), selection.getParameters(), null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        final String path = cursor.getString(1);
+                        if (!TextUtils.isEmpty(path)) {
+                            final File file = new File(path);
+                            if (PermissionChecker.isFileCanDelate(getContext(), file)
+                                    && file.exists()) {
+                                Log.v(Constants.TAG, "Deleting " + file + " via provider delete");
+                                IoUtils.deleteRecursively(file);
+                            }
                         }
                     }
+                } finally {
+                    IoUtils.closeQuietly(cursor);
                 }
+
+                count = db.delete(DB_TABLE, selection.getSelection(), selection.getParameters());
+                db.setTransactionSuccessful();
             } finally {
-                IoUtils.closeQuietly(cursor);
+                db.endTransaction();
             }
-
-            count = db.delete(DB_TABLE, selection.getSelection(), selection.getParameters());
             break;
 
         default:
@@ -127,7 +127,8 @@ public class DownloadReceiver extends BroadcastReceiver {
             if (info != null && info.isConnected()) {
                 startService(context);
             }
-        } else if (Constants.ACTION_RETRY.equals(action)) {
+        } else if (Constants.ACTION_RETRY.equals(action)
+                || Intent.ACTION_POWER_CONNECTED.equals(action)) {
             startService(context);
         } else if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(action)) {
 //            long completeDownloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
@@ -140,11 +141,15 @@ public class DownloadReceiver extends BroadcastReceiver {
         final ContentResolver resolver = context.getContentResolver();
 
         final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
-        final int count = resolver.delete(
-                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, Constants.UID + "=" + uid, null);
+        // Mark them deleted, so their files are cleaned up along with them
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_DELETED, 1);
+        final int count = resolver.update(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, values,
+                Constants.UID + " = ?", new String[] { Integer.toString(uid) });
 
         if (count > 0) {
             Log.d(TAG, "Deleted " + count + " downloads owned by UID " + uid);
+            DownloadGarbageCollector.collect(context);
         }
     }
 
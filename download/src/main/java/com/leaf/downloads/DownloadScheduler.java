@@ -0,0 +1,285 @@
+package com.leaf.downloads;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import static com.leaf.downloads.Constants.TAG;
+
+/**
+ * Arranges for {@link DownloadService} to be started again once downloads
+ * that are waiting can make progress. Waiting downloads are grouped by the
+ * network type, charging and idle state they need, and each group gets a
+ * single wakeup, rather than one per download.
+ * <p>
+ * On {@link Build.VERSION_CODES#LOLLIPOP} and newer these are jobs with the
+ * matching constraints, so the platform batches them with other work. Older
+ * releases fall back to one inexact alarm, with connectivity and power
+ * broadcasts covering the rest.
+ */
+final class DownloadScheduler {
+
+    private static final int KEY_UNMETERED = 1;
+    private static final int KEY_CHARGING = 1 << 1;
+    private static final int KEY_DEVICE_IDLE = 1 << 2;
+    private static final int KEY_COUNT = 1 << 3;
+
+    /**
+     * Job ids are the base plus the group key, so {@link #KEY_COUNT} ids from
+     * the base on are taken in the app's JobScheduler id space. Apps move them
+     * clear of their own jobs with {@link DownloadManager#META_DATA_JOB_ID_BASE}.
+     */
+    private static final int DEFAULT_JOB_ID_BASE = 100;
+    private static final int JOB_ID_BASE_UNKNOWN = -1;
+
+    private static volatile int sJobIdBase = JOB_ID_BASE_UNKNOWN;
+
+    private static final long NOT_SCHEDULED = Long.MAX_VALUE;
+    /** The job just ran, so its downloads may be blocked on something we can't express. */
+    private static final long JOB_RAN = -1;
+
+    /**
+     * Elapsed realtime each group is currently scheduled for, so that update
+     * passes that change nothing don't reschedule.
+     */
+    private static final long[] sScheduled = new long[KEY_COUNT + 1];
+    private static final int ALARM_SLOT = KEY_COUNT;
+
+    static {
+        Arrays.fill(sScheduled, NOT_SCHEDULED);
+    }
+
+    private final Context mContext;
+    private final long[] mPending = new long[KEY_COUNT];
+
+    DownloadScheduler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Start collecting the waiting downloads for a new update pass.
+     */
+    void begin() {
+        Arrays.fill(mPending, NOT_SCHEDULED);
+    }
+
+    /**
+     * Note a download that isn't running, and could start later.
+     */
+    void add(DownloadInfo info, long now) {
+        if (info.mDeleted || info.mControl == Downloads.Impl.CONTROL_PAUSED) {
+            return;
+        }
+        switch (info.mStatus) {
+            case 0:
+            case Downloads.Impl.STATUS_PENDING:
+            case Downloads.Impl.STATUS_RUNNING:
+            case Downloads.Impl.STATUS_WAITING_TO_RETRY:
+            case Downloads.Impl.STATUS_WAITING_FOR_NETWORK:
+            case Downloads.Impl.STATUS_QUEUED_FOR_WIFI:
+                break;
+            default:
+                return;
+        }
+
+        int key = 0;
+        if (info.mStatus == Downloads.Impl.STATUS_QUEUED_FOR_WIFI || !info.mAllowMetered
+                || (info.mIsPublicApi && info.mAllowedNetworkTypes != ~0
+                && (info.mAllowedNetworkTypes & DownloadManager.Request.NETWORK_MOBILE) == 0)) {
+            key |= KEY_UNMETERED;
+        }
+        if (info.mRequiresCharging) {
+            key |= KEY_CHARGING;
+        }
+        if (info.mRequiresDeviceIdle) {
+            key |= KEY_DEVICE_IDLE;
+        }
+
+        final long delay = info.nextActionMillis(now);
+        if (delay < Long.MAX_VALUE) {
+            mPending[key] = Math.min(mPending[key], delay);
+        }
+    }
+
+    /**
+     * Schedule wakeups for everything collected since {@link #begin()}, and
+     * drop those that are no longer needed.
+     */
+    void commit() {
+        synchronized (sScheduled) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                commitJobs();
+            } else {
+                commitAlarm();
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void commitJobs() {
+        final JobScheduler scheduler = (JobScheduler) mContext.getSystemService(
+                Context.JOB_SCHEDULER_SERVICE);
+        final int jobIdBase = getJobIdBase(mContext);
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        for (int key = 0; key < KEY_COUNT; key++) {
+            long delay = mPending[key];
+            if (delay == NOT_SCHEDULED) {
+                if (sScheduled[key] != NOT_SCHEDULED && sScheduled[key] != JOB_RAN) {
+                    scheduler.cancel(jobIdBase + key);
+                }
+                sScheduled[key] = NOT_SCHEDULED;
+                continue;
+            }
+
+            if (sScheduled[key] == JOB_RAN) {
+                // Constraints were met, yet downloads are still waiting, for
+                // instance on roaming or size rules; don't spin on the job
+                delay = Math.max(delay, Constants.SCHEDULE_WINDOW_MILLIS);
+            }
+
+            final long when = nowElapsed + delay;
+            if (sScheduled[key] != NOT_SCHEDULED && sScheduled[key] != JOB_RAN
+                    && Math.abs(sScheduled[key] - when) < Constants.SCHEDULE_WINDOW_MILLIS) {
+                continue;
+            }
+
+            final JobInfo.Builder builder = new JobInfo.Builder(jobIdBase + key,
+                    new ComponentName(mContext, DownloadJobService.class));
+            builder.setRequiredNetworkType((key & KEY_UNMETERED) != 0
+                    ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY);
+            builder.setRequiresCharging((key & KEY_CHARGING) != 0);
+            builder.setRequiresDeviceIdle((key & KEY_DEVICE_IDLE) != 0);
+            if (delay > 0) {
+                builder.setMinimumLatency(delay);
+            }
+
+            if (Constants.LOGV) {
+                Log.v(TAG, "scheduling job " + (jobIdBase + key) + " in " + delay + "ms");
+            }
+            if (scheduler.schedule(builder.build()) == JobScheduler.RESULT_SUCCESS) {
+                sScheduled[key] = when;
+            } else {
+                Log.w(TAG, "Failed to schedule job " + (jobIdBase + key));
+            }
+        }
+    }
+
+    private void commitAlarm() {
+        long delay = NOT_SCHEDULED;
+        for (int key = 0; key < KEY_COUNT; key++) {
+            if (mPending[key] == NOT_SCHEDULED) {
+                continue;
+            }
+            if ((key & (KEY_CHARGING | KEY_DEVICE_IDLE)) != 0) {
+                // Nothing tells us when these change, so look again later
+                delay = Math.min(delay, Math.max(mPending[key],
+                        Constants.CONSTRAINT_POLL_INTERVAL));
+            } else if (mPending[key] > 0) {
+                // Waiting on network alone is covered by connectivity broadcasts
+                delay = Math.min(delay, mPending[key]);
+            }
+        }
+        if (delay == NOT_SCHEDULED) {
+            return;
+        }
+
+        final long when = SystemClock.elapsedRealtime() + delay;
+        if (sScheduled[ALARM_SLOT] != NOT_SCHEDULED
+                && sScheduled[ALARM_SLOT] > SystemClock.elapsedRealtime()
+                && Math.abs(sScheduled[ALARM_SLOT] - when) < Constants.SCHEDULE_WINDOW_MILLIS) {
+            return;
+        }
+
+        if (Constants.LOGV) {
+            Log.v(TAG, "scheduling start in " + delay + "ms");
+        }
+
+        final Intent intent = new Intent(Constants.ACTION_RETRY);
+        intent.setClass(mContext, DownloadReceiver.class);
+        final PendingIntent operation = PendingIntent.getBroadcast(mContext, 0, intent,
+                PendingIntent.FLAG_ONE_SHOT);
+        final AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(
+                Context.ALARM_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, when,
+                    Constants.SCHEDULE_WINDOW_MILLIS, operation);
+        } else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, when, operation);
+        }
+        sScheduled[ALARM_SLOT] = when;
+    }
+
+    /**
+     * Forget about a job that the platform just ran, so it's scheduled again,
+     * after a pause, if its downloads still can't start.
+     */
+    static void onJobStarted(Context context, int jobId) {
+        final int key = jobId - getJobIdBase(context);
+        if (key >= 0 && key < KEY_COUNT) {
+            synchronized (sScheduled) {
+                sScheduled[key] = JOB_RAN;
+            }
+        }
+    }
+
+    /**
+     * Return the first job id to use, as set in the app's manifest.
+     */
+    private static int getJobIdBase(Context context) {
+        if (sJobIdBase == JOB_ID_BASE_UNKNOWN) {
+            int base = DEFAULT_JOB_ID_BASE;
+            try {
+                final ApplicationInfo info = context.getPackageManager().getApplicationInfo(
+                        context.getPackageName(), PackageManager.GET_META_DATA);
+                if (info.metaData != null) {
+                    base = info.metaData.getInt(DownloadManager.META_DATA_JOB_ID_BASE,
+                            DEFAULT_JOB_ID_BASE);
+                }
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "Failed to read job id base", e);
+            }
+            sJobIdBase = base;
+        }
+        return sJobIdBase;
+    }
+
+    /**
+     * Return whether the device is plugged in to a power source.
+     */
+    static boolean isCharging(Context context) {
+        final Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Return whether the device is idle, meaning it is dozing, or its screen
+     * is off.
+     */
+    @SuppressWarnings("deprecation")
+    static boolean isDeviceIdle(Context context) {
+        final PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && pm.isDeviceIdleMode()) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return !pm.isInteractive();
+        }
+        return !pm.isScreenOn();
+    }
+}
@@ -16,26 +16,22 @@
 
 package com.leaf.downloads;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.ContentObserver;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.PowerManager;
 import android.os.Process;
-import android.text.TextUtils;
 import android.util.Log;
 
 import com.leaf.downloads.utils.GuardedBy;
 
-import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -67,12 +63,19 @@ import static com.leaf.downloads.Constants.TAG;
  * delivered through {@link Context#startService(Intent)}.
  */
 public class DownloadService extends Service {
-    // TODO: migrate WakeLock from individual DownloadThreads out into
-    // DownloadReceiver to protect our entire workflow.
-
     private static final boolean DEBUG_LIFECYCLE = true;
 
-    private AlarmManager mAlarmManager;
+    /**
+     * Single wakelock covering every running {@link DownloadThread}, held only
+     * while an update pass finds active downloads.
+     */
+    private PowerManager.WakeLock mWakeLock;
+
+    /**
+     * Wakes the service up again for downloads that are waiting on a retry
+     * delay, network, charging or idle.
+     */
+    private DownloadScheduler mScheduler;
 
     /**
      * Observer to get notified when the content observer's data changes
@@ -90,11 +93,46 @@ public class DownloadService extends Service {
      * The Service's view of the list of downloads, mapping download IDs to the corresponding info
      * object. This is kept independently from the content provider, and the Service only initiates
      * downloads based on this data, so that it can deal with situation where the data in the
-     * content provider changes or disappears.
+     * content provider changes or disappears. Only downloads matching
+     * {@link #WORKING_SET_SELECTION} are kept.
      */
     @GuardedBy("mDownloads")
     private final Map<Long, DownloadInfo> mDownloads = new HashMap<Long, DownloadInfo>();
 
+    /**
+     * Downloads worth keeping in {@link #mDownloads}: those not finished, those finished with a
+     * completion notification still up, and those waiting to be cleaned up. Finished downloads
+     * drop out once nothing is left to do for them, and are read back in by the next update pass
+     * after they turn actionable again, for instance when restarted.
+     */
+    private static final String WORKING_SET_SELECTION =
+            Downloads.Impl.COLUMN_STATUS + " < 200 OR "
+                    + Downloads.Impl.COLUMN_DELETED + " = 1 OR "
+                    + Downloads.Impl.COLUMN_VISIBILITY + " = "
+                    + Downloads.Impl.VISIBILITY_VISIBLE_NOTIFY_COMPLETED + " OR "
+                    + Downloads.Impl.COLUMN_VISIBILITY + " = "
+                    + DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_ONLY_COMPLETION;
+
+    /**
+     * Downloads to get going first after the service starts, read through the status index:
+     * unfinished ones that aren't deleted, those interrupted while running first, then in the
+     * order they were enqueued.
+     */
+    private static final String RESUME_SELECTION =
+            Downloads.Impl.COLUMN_STATUS + " < 200 AND " + Downloads.Impl.COLUMN_DELETED + " = 0";
+    private static final String RESUME_ORDER =
+            Downloads.Impl.COLUMN_STATUS + " = " + Downloads.Impl.STATUS_RUNNING + " DESC, "
+                    + Downloads.Impl._ID + " ASC";
+
+    /**
+     * Whether the unfinished downloads were started ahead of the first update pass.
+     */
+    @GuardedBy("mDownloads")
+    private boolean mResumed;
+
+    /** The most downloads checked for existence in a single query */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private final ExecutorService mExecutor = buildDownloadExecutor();
 
     private static ExecutorService buildDownloadExecutor() {
@@ -149,6 +187,47 @@ public class DownloadService extends Service {
         }
     }
 
+    /**
+     * Listener for progress-only changes, called on the update thread.
+     */
+    private final DownloadManager.ProgressListener mProgressListener =
+            new DownloadManager.ProgressListener() {
+                @Override
+                public void onProgressChanged(long[] ids) {
+                    refreshProgress(ids);
+                }
+            };
+
+    /**
+     * Reads in the progress of the given downloads and updates notifications with it, leaving
+     * everything else to the next update pass.
+     */
+    private void refreshProgress(long[] ids) {
+        final Cursor cursor = getContentResolver().query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                new String[] {
+                        Downloads.Impl._ID, Downloads.Impl.COLUMN_CURRENT_BYTES,
+                        Downloads.Impl.COLUMN_TOTAL_BYTES
+                }, DownloadManager.getWhereClauseForIds(ids),
+                DownloadManager.getWhereArgsForIds(ids), null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            synchronized (mDownloads) {
+                while (cursor.moveToNext()) {
+                    final DownloadInfo info = mDownloads.get(cursor.getLong(0));
+                    if (info != null) {
+                        info.mCurrentBytes = cursor.getLong(1);
+                        info.mTotalBytes = cursor.getLong(2);
+                    }
+                }
+                mNotifier.updateWith(mDownloads.values());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Returns an IBinder instance when someone wants to connect to this
      * service. Binding to this service is not allowed.
@@ -170,7 +249,10 @@ public class DownloadService extends Service {
             Log.v(Constants.TAG, "Service onCreate");
         }
 
-        mAlarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        final PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+        mScheduler = new DownloadScheduler(this);
 
         mUpdateThread = new HandlerThread(TAG + "-UpdateThread");
         mUpdateThread.start();
@@ -180,7 +262,8 @@ public class DownloadService extends Service {
         mObserver = new DownloadManagerContentObserver();
         getContentResolver().registerContentObserver(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
                 true, mObserver);
-
+        // Progress alone only refreshes notifications, without an update pass
+        DownloadProgressChannel.addListener(mProgressListener, mUpdateHandler);
     }
 
     @Override
@@ -196,8 +279,10 @@ public class DownloadService extends Service {
 
     @Override
     public void onDestroy() {
+        DownloadProgressChannel.removeListener(mProgressListener);
         getContentResolver().unregisterContentObserver(mObserver);
         mUpdateThread.quit();
+        mWakeLock.release();
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "Service onDestroy");
         }
@@ -264,6 +349,7 @@ public class DownloadService extends Service {
             if (isActive) {
                 // Still doing useful work, keep service alive. These active
                 // tasks will trigger another update pass when they're finished.
+                mWakeLock.acquire();
 
                 // Enqueue delayed update pass to catch finished operations that
                 // didn't trigger an update pass; these are bugs.
@@ -273,9 +359,11 @@ public class DownloadService extends Service {
                 // No active tasks, and any pending update messages can be
                 // ignored, since any updates important enough to initiate tasks
                 // will always be delivered with a new startId.
+                mWakeLock.release();
 
                 if (stopSelfResult(startId)) {
                     if (DEBUG_LIFECYCLE) Log.v(TAG, "Nothing left; stopped");
+                    DownloadProgressChannel.removeListener(mProgressListener);
                     getContentResolver().unregisterContentObserver(mObserver);
                     mUpdateThread.quit();
                 }
@@ -288,14 +376,28 @@ public class DownloadService extends Service {
     private boolean updateLocked() {
         final long now = System.currentTimeMillis();
 
+        // Resume points may lie past what the database says
+        ProgressJournal.replay(this);
+
         boolean isActive = false;
-        long nextActionMillis = Long.MAX_VALUE;
+        boolean hasDeleted = false;
+        mScheduler.begin();
+
+        final ContentResolver resolver = getContentResolver();
+
+        // Don't keep unfinished downloads waiting on everything else to be read in
+        final Set<Long> resumedIds;
+        if (!mResumed) {
+            mResumed = true;
+            resumedIds = resumeLocked(resolver, now);
+        } else {
+            resumedIds = Collections.emptySet();
+        }
 
         final Set<Long> staleIds = new HashSet<Long>(mDownloads.keySet());
 
-        final ContentResolver resolver = getContentResolver();
         final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
-                null, null, null, null);
+                null, WORKING_SET_SELECTION, null, null);
         try {
             final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
             final int idColumn = cursor.getColumnIndexOrThrow(Downloads.Impl._ID);
@@ -305,19 +407,16 @@ public class DownloadService extends Service {
 
                 DownloadInfo info = mDownloads.get(id);
                 if (info != null) {
-                    updateDownload(reader, info, now);
+                    if (!resumedIds.contains(id)) {
+                        updateDownload(reader, info, now);
+                    }
                 } else {
                     info = insertDownloadLocked(reader, now);
                 }
 
                 if (info.mDeleted) {
-                    // Delete download if requested, but only after cleaning up
-                    if (!TextUtils.isEmpty(info.mMediaProviderUri)) {
-                        resolver.delete(Uri.parse(info.mMediaProviderUri), null, null);
-                    }
-
-                    deleteFileIfExists(info.mFileName);
-                    resolver.delete(info.getAllDownloadsUri(), null, null);
+                    // Cleaned up and removed in the background
+                    hasDeleted = true;
 
                 } else {
                     // Kick off download task if ready
@@ -328,37 +427,113 @@ public class DownloadService extends Service {
                     }
 
                     isActive |= activeDownload;
+                    if (!activeDownload) {
+                        mScheduler.add(info, now);
+                    }
                 }
-
-                // Keep track of nearest next action
-                nextActionMillis = Math.min(info.nextActionMillis(now), nextActionMillis);
             }
         } finally {
             cursor.close();
         }
 
-        // Clean up stale downloads that disappeared
-        for (Long id : staleIds) {
-            deleteDownloadLocked(id);
+        if (hasDeleted) {
+            DownloadGarbageCollector.collect(this);
+        }
+
+        // Clean up stale downloads that disappeared, and let go of those
+        // that only left the working set
+        if (!staleIds.isEmpty()) {
+            final Set<Long> existingIds = queryExistingIds(resolver, staleIds);
+            for (Long id : staleIds) {
+                if (existingIds.contains(id)) {
+                    // Keep it while an attempt winds down, so a restart
+                    // doesn't race it
+                    if (!mDownloads.get(id).isTaskActive()) {
+                        mDownloads.remove(id);
+                    }
+                } else {
+                    deleteDownloadLocked(id);
+                }
+            }
         }
 
         // Update notifications visible to user
         mNotifier.updateWith(mDownloads.values());
 
-        // Set alarm when next action is in future. It's okay if the service
-        // continues to run in meantime, since it will kick off an update pass.
-        if (nextActionMillis > 0 && nextActionMillis < Long.MAX_VALUE) {
-            if (Constants.LOGV) {
-                Log.v(TAG, "scheduling start in " + nextActionMillis + "ms");
-            }
+        // Schedule wakeups for downloads that are waiting. It's okay if the
+        // service continues to run in meantime, since they will only kick off
+        // an update pass.
+        mScheduler.commit();
 
-            final Intent intent = new Intent(Constants.ACTION_RETRY);
-            intent.setClass(this, DownloadReceiver.class);
-            mAlarmManager.set(AlarmManager.RTC_WAKEUP, now + nextActionMillis,
-                    PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_ONE_SHOT));
+        return isActive;
+    }
+
+    /**
+     * Reads in the unfinished downloads and starts those that are ready, ahead of the rest of
+     * the working set.
+     *
+     * @return the IDs of the downloads read in
+     */
+    private Set<Long> resumeLocked(ContentResolver resolver, long now) {
+        final Set<Long> ids = new HashSet<Long>();
+        final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                null, RESUME_SELECTION, null, RESUME_ORDER);
+        if (cursor == null) {
+            return ids;
         }
+        try {
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
+            final int idColumn = cursor.getColumnIndexOrThrow(Downloads.Impl._ID);
+            while (cursor.moveToNext()) {
+                final long id = cursor.getLong(idColumn);
+                DownloadInfo info = mDownloads.get(id);
+                if (info != null) {
+                    updateDownload(reader, info, now);
+                } else {
+                    info = insertDownloadLocked(reader, now);
+                }
+                info.startDownloadIfReady(mExecutor);
+                ids.add(id);
+            }
+        } finally {
+            cursor.close();
+        }
+        DownloadMetrics.markResumed(ids.size());
+        if (Constants.LOGV) {
+            Log.v(TAG, "Resumed " + ids.size() + " unfinished downloads");
+        }
+        return ids;
+    }
 
-        return isActive;
+    /**
+     * Returns which of the given downloads are still in the database.
+     */
+    private static Set<Long> queryExistingIds(ContentResolver resolver, Set<Long> ids) {
+        final Set<Long> existing = new HashSet<Long>();
+        final long[] idArray = new long[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            idArray[i++] = id;
+        }
+        for (int start = 0; start < idArray.length; start += MAX_IDS_PER_QUERY) {
+            final long[] chunk = Arrays.copyOfRange(idArray, start,
+                    Math.min(idArray.length, start + MAX_IDS_PER_QUERY));
+            final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                    new String[] { Downloads.Impl._ID },
+                    DownloadManager.getWhereClauseForIds(chunk),
+                    DownloadManager.getWhereArgsForIds(chunk), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    existing.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return existing;
     }
 
     /**
@@ -394,37 +569,47 @@ public class DownloadService extends Service {
         DownloadInfo info = mDownloads.get(id);
         if (info.mStatus == Downloads.Impl.STATUS_RUNNING) {
             info.mStatus = Downloads.Impl.STATUS_CANCELED;
+            info.updateControlWord();
         }
         if (info.mDestination != Downloads.Impl.DESTINATION_EXTERNAL && info.mFileName != null) {
             if (Constants.LOGVV) {
                 Log.d(TAG, "deleteDownloadLocked() deleting " + info.mFileName);
             }
-            deleteFileIfExists(info.mFileName);
+            DownloadGarbageCollector.deleteFile(this, info.mId, info.mFileName, info.mStatus,
+                    info.mCurrentBytes);
         }
         mDownloads.remove(info.mId);
     }
 
-    private void deleteFileIfExists(String path) {
-        if (!TextUtils.isEmpty(path)) {
-            if (Constants.LOGVV) {
-                Log.d(TAG, "deleteFileIfExists() deleting " + path);
-            }
-            final File file = new File(path);
-            if (file.exists() && !file.delete()) {
-                Log.w(TAG, "file: '" + path + "' couldn't be deleted");
-            }
-        }
-    }
-
     @Override
     protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        long residentBytes = 0;
+        int residentCount;
         synchronized (mDownloads) {
             final List<Long> ids = new ArrayList<Long>(mDownloads.keySet());
             Collections.sort(ids);
             for (Long id : ids) {
                 final DownloadInfo info = mDownloads.get(id);
                 info.dump();
+                residentBytes += info.getApproximateSize();
+            }
+            residentCount = ids.size();
+        }
+
+        int totalCount = -1;
+        final Cursor cursor = getContentResolver().query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                new String[] { Downloads.Impl._ID }, null, null, null);
+        if (cursor != null) {
+            try {
+                totalCount = cursor.getCount();
+            } finally {
+                cursor.close();
             }
         }
+        writer.println("Working set: " + residentCount + " of " + totalCount
+                + " downloads resident, about " + (residentBytes / 1024) + " KB");
+        DownloadMetrics.dumpStartup(writer);
+        DownloadMetrics.dumpRecent(writer);
+        BufferPool.dump(writer);
     }
 }
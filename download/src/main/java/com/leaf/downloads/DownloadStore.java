@@ -0,0 +1,229 @@
+package com.leaf.downloads;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+import java.io.File;
+
+/**
+ * Writes the engine's own updates of a download straight to the database of
+ * {@link DownloadProvider}, when it runs in this process, through statements
+ * compiled once. This skips what the provider does for any caller: URI
+ * matching, caller checks and copying of values. The side effects the
+ * provider would have, such as change notifications, are kept.
+ * <p>
+ * Every update returns {@link #NOT_ATTACHED} without touching anything when
+ * the provider isn't in this process, so callers fall back to the content
+ * resolver. Updates from other callers always go through the provider.
+ */
+final class DownloadStore {
+
+    private static final String NOT_DELETED = " AND " + Downloads.Impl.COLUMN_DELETED + " == '0'";
+
+    private static final String UPDATE_PROGRESS = "UPDATE " + DownloadProvider.DB_TABLE + " SET "
+            + Downloads.Impl.COLUMN_CURRENT_BYTES + " = ?, "
+            + Downloads.Impl.COLUMN_EXTRACT_OFFSET + " = ?, "
+            + Downloads.Impl.COLUMN_LAST_MODIFICATION + " = ? "
+            + "WHERE " + Downloads.Impl._ID + " = ?" + NOT_DELETED;
+
+    private static final String UPDATE_STATUS = "UPDATE " + DownloadProvider.DB_TABLE + " SET "
+            + Downloads.Impl.COLUMN_STATUS + " = ? "
+            + "WHERE " + Downloads.Impl._ID + " = ?";
+
+    // Titles left empty are named after the file, as the provider does
+    private static final String UPDATE_DELTA = "UPDATE " + DownloadProvider.DB_TABLE + " SET "
+            + Downloads.Impl.COLUMN_URI + " = ?1, "
+            + Downloads.Impl.COLUMN_URI_HASH + " = ?2, "
+            + Downloads.Impl._DATA + " = ?3, "
+            + Downloads.Impl.COLUMN_MIME_TYPE + " = ?4, "
+            + Downloads.Impl.COLUMN_STATUS + " = ?5, "
+            + Downloads.Impl.COLUMN_FAILED_CONNECTIONS + " = ?6, "
+            + Constants.RETRY_AFTER_X_REDIRECT_COUNT + " = ?7, "
+            + Downloads.Impl.COLUMN_TOTAL_BYTES + " = ?8, "
+            + Downloads.Impl.COLUMN_CURRENT_BYTES + " = ?9, "
+            + Constants.ETAG + " = ?10, "
+            + Downloads.Impl.COLUMN_SERVER_LAST_MODIFIED + " = ?11, "
+            + Downloads.Impl.COLUMN_REVALIDATE + " = ?12, "
+            + Downloads.Impl.COLUMN_EXTRACT_OFFSET + " = ?13, "
+            + Downloads.Impl.COLUMN_LAST_MODIFICATION + " = ?14, "
+            + Downloads.Impl.COLUMN_ERROR_MSG + " = ?15, "
+            + Downloads.Impl.COLUMN_TITLE + " = CASE WHEN ?16 IS NOT NULL AND ("
+            + Downloads.Impl.COLUMN_TITLE + " IS NULL OR " + Downloads.Impl.COLUMN_TITLE
+            + " = '') THEN ?16 ELSE " + Downloads.Impl.COLUMN_TITLE + " END "
+            + "WHERE " + Downloads.Impl._ID + " = ?17";
+
+    /** Returned by updates when the provider isn't in this process */
+    static final int NOT_ATTACHED = -1;
+
+    private static Context sContext;
+    private static SQLiteOpenHelper sOpenHelper;
+
+    private static SQLiteStatement sProgressStatement;
+    private static SQLiteStatement sStatusStatement;
+    private static SQLiteStatement sDeltaStatement;
+    private static SQLiteStatement sDeltaNotDeletedStatement;
+
+    private DownloadStore() {
+    }
+
+    /**
+     * Make the database of the provider created in this process available.
+     */
+    static synchronized void attach(Context context, SQLiteOpenHelper openHelper) {
+        sContext = context.getApplicationContext();
+        sOpenHelper = openHelper;
+    }
+
+    /**
+     * Update the progress columns of a download that isn't deleted, as
+     * {@code DownloadThread.DownloadInfoDelta} does through the provider.
+     *
+     * @return the number of downloads updated, or {@link #NOT_ATTACHED}
+     */
+    static int updateProgress(long id, long currentBytes, long extractOffset,
+            long lastModification) {
+        final SQLiteStatement statement;
+        synchronized (DownloadStore.class) {
+            if (sOpenHelper == null) {
+                return NOT_ATTACHED;
+            }
+            if (sProgressStatement == null) {
+                sProgressStatement = getDatabase().compileStatement(UPDATE_PROGRESS);
+            }
+            statement = sProgressStatement;
+        }
+
+        final int count;
+        synchronized (statement) {
+            statement.bindLong(1, currentBytes);
+            statement.bindLong(2, extractOffset);
+            statement.bindLong(3, lastModification);
+            statement.bindLong(4, id);
+            count = statement.executeUpdateDelete();
+            statement.clearBindings();
+        }
+        if (count > 0) {
+            DownloadProgressChannel.post(sContext, id);
+        }
+        return count;
+    }
+
+    /**
+     * Move a download to the given status.
+     *
+     * @return the number of downloads updated, or {@link #NOT_ATTACHED}
+     */
+    static int updateStatus(long id, int status) {
+        final SQLiteStatement statement;
+        synchronized (DownloadStore.class) {
+            if (sOpenHelper == null) {
+                return NOT_ATTACHED;
+            }
+            if (sStatusStatement == null) {
+                sStatusStatement = getDatabase().compileStatement(UPDATE_STATUS);
+            }
+            statement = sStatusStatement;
+        }
+
+        final int count;
+        synchronized (statement) {
+            statement.bindLong(1, status);
+            statement.bindLong(2, id);
+            count = statement.executeUpdateDelete();
+            statement.clearBindings();
+        }
+        onChanged(id, status);
+        return count;
+    }
+
+    /**
+     * Write everything a download attempt changes about a download, given as
+     * built by {@code DownloadThread.DownloadInfoDelta}.
+     *
+     * @param onlyIfNotDeleted whether to leave a deleted download alone
+     * @return the number of downloads updated, or {@link #NOT_ATTACHED}
+     */
+    static int updateDelta(long id, ContentValues values, boolean onlyIfNotDeleted) {
+        final SQLiteStatement statement;
+        synchronized (DownloadStore.class) {
+            if (sOpenHelper == null) {
+                return NOT_ATTACHED;
+            }
+            if (onlyIfNotDeleted) {
+                if (sDeltaNotDeletedStatement == null) {
+                    sDeltaNotDeletedStatement = getDatabase().compileStatement(
+                            UPDATE_DELTA + NOT_DELETED);
+                }
+                statement = sDeltaNotDeletedStatement;
+            } else {
+                if (sDeltaStatement == null) {
+                    sDeltaStatement = getDatabase().compileStatement(UPDATE_DELTA);
+                }
+                statement = sDeltaStatement;
+            }
+        }
+
+        final int count;
+        synchronized (statement) {
+            final String uri = values.getAsString(Downloads.Impl.COLUMN_URI);
+            final String fileName = values.getAsString(Downloads.Impl._DATA);
+            bind(statement, 1, uri);
+            bind(statement, 2, (uri != null) ? Helpers.hashUri(uri) : null);
+            bind(statement, 3, fileName);
+            bind(statement, 4, values.get(Downloads.Impl.COLUMN_MIME_TYPE));
+            bind(statement, 5, values.get(Downloads.Impl.COLUMN_STATUS));
+            bind(statement, 6, values.get(Downloads.Impl.COLUMN_FAILED_CONNECTIONS));
+            bind(statement, 7, values.get(Constants.RETRY_AFTER_X_REDIRECT_COUNT));
+            bind(statement, 8, values.get(Downloads.Impl.COLUMN_TOTAL_BYTES));
+            bind(statement, 9, values.get(Downloads.Impl.COLUMN_CURRENT_BYTES));
+            bind(statement, 10, values.get(Constants.ETAG));
+            bind(statement, 11, values.get(Downloads.Impl.COLUMN_SERVER_LAST_MODIFIED));
+            bind(statement, 12, values.get(Downloads.Impl.COLUMN_REVALIDATE));
+            bind(statement, 13, values.get(Downloads.Impl.COLUMN_EXTRACT_OFFSET));
+            bind(statement, 14, values.get(Downloads.Impl.COLUMN_LAST_MODIFICATION));
+            bind(statement, 15, values.get(Downloads.Impl.COLUMN_ERROR_MSG));
+            bind(statement, 16, (fileName != null) ? new File(fileName).getName() : null);
+            statement.bindLong(17, id);
+            count = statement.executeUpdateDelete();
+            statement.clearBindings();
+        }
+        final Integer status = values.getAsInteger(Downloads.Impl.COLUMN_STATUS);
+        onChanged(id, (status != null) ? status : 0);
+        return count;
+    }
+
+    private static SQLiteDatabase getDatabase() {
+        return sOpenHelper.getWritableDatabase();
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Let observers know a download changed, and wake the service for a
+     * restarted one, as the provider does after an update.
+     */
+    private static void onChanged(long id, int status) {
+        for (Uri uri : DownloadProvider.BASE_URIS) {
+            sContext.getContentResolver().notifyChange(ContentUris.withAppendedId(uri, id), null);
+        }
+        if (status == Downloads.Impl.STATUS_PENDING) {
+            sContext.startService(new Intent(sContext, DownloadService.class));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.leaf.downloads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * Bounded in-memory pipe that hands bytes from {@link DownloadThread} to an
+ * in-process consumer while the transfer is still running. The writer blocks
+ * once {@link Constants#STREAM_BUFFER_SIZE} bytes are waiting to be read, so
+ * a slow consumer throttles the network instead of growing memory.
+ * <p>
+ * Pipes are kept in a process-wide registry keyed by download ID, so either
+ * side may show up first. A consumer only registers a pipe for a download
+ * that hasn't finished; see {@link #openForConsumer(long, int)}.
+ */
+final class DownloadStream {
+
+    private static final HashMap<Long, DownloadStream> sStreams = new HashMap<>();
+
+    private final long mId;
+    private final byte[] mBuffer = new byte[Constants.STREAM_BUFFER_SIZE];
+
+    /** Index of the next byte to read from {@link #mBuffer}. */
+    private int mHead;
+    /** Number of bytes waiting to be read. */
+    private int mCount;
+    /** Total bytes accepted from the writer since this pipe was created. */
+    private long mBytesWritten;
+
+    private boolean mWriterClosed;
+    private boolean mReaderClosed;
+    private IOException mError;
+
+    private final InputStream mInput = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int len = read(single, 0, 1);
+            return (len == -1) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return DownloadStream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (DownloadStream.this) {
+                return mCount;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (DownloadStream.this) {
+                mReaderClosed = true;
+                DownloadStream.this.notifyAll();
+            }
+        }
+    };
+
+    private DownloadStream(long id) {
+        mId = id;
+    }
+
+    /**
+     * Return the pipe registered for the given download, creating it when
+     * neither side has asked for it yet.
+     */
+    public static DownloadStream obtain(long id) {
+        synchronized (sStreams) {
+            DownloadStream stream = sStreams.get(id);
+            if (stream == null) {
+                stream = new DownloadStream(id);
+                sStreams.put(id, stream);
+            }
+            return stream;
+        }
+    }
+
+    /**
+     * Return the reading side of the pipe for the given download, which has
+     * the given status and is streamed to a consumer. A download that already
+     * finished gets a pipe that's closed already, and isn't registered, so it
+     * ends right away or throws the error of the download.
+     */
+    public static InputStream openForConsumer(long id, int status) {
+        if (Downloads.Impl.isStatusCompleted(status)) {
+            final DownloadStream stream = new DownloadStream(id);
+            stream.closeWriter(errorForStatus(status));
+            return stream.getInputStream();
+        }
+        return obtain(id).getInputStream();
+    }
+
+    /**
+     * Return the error a consumer gets once a download finished with the
+     * given status, or {@code null} when it succeeded.
+     */
+    public static IOException errorForStatus(int status) {
+        if (Downloads.Impl.isStatusSuccess(status)) {
+            return null;
+        }
+        return new IOException("Download failed with status "
+                + Downloads.Impl.statusToString(status));
+    }
+
+    /**
+     * Close the writing side of any pipe registered for the given download,
+     * and forget about it. Buffered bytes remain readable.
+     *
+     * @param error reported to the consumer after buffered bytes, or
+     *            {@code null} when the download finished successfully.
+     */
+    public static void release(long id, IOException error) {
+        final DownloadStream stream;
+        synchronized (sStreams) {
+            stream = sStreams.remove(id);
+        }
+        if (stream != null) {
+            stream.closeWriter(error);
+        }
+    }
+
+    public InputStream getInputStream() {
+        return mInput;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Copy as much of the given data as fits into the pipe, waiting up to
+     * {@code timeoutMillis} for the consumer to free space.
+     *
+     * @return number of bytes accepted, which may be zero on timeout.
+     * @throws IOException if the consumer closed its side of the pipe.
+     */
+    public synchronized int offer(byte[] b, int off, int len, long timeoutMillis)
+            throws IOException {
+        if (mCount == mBuffer.length && !mReaderClosed) {
+            try {
+                wait(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mReaderClosed) {
+            throw new IOException("Stream for download " + mId + " closed by consumer");
+        }
+
+        final int accepted = Math.min(len, mBuffer.length - mCount);
+        int tail = (mHead + mCount) % mBuffer.length;
+        int remaining = accepted;
+        while (remaining > 0) {
+            final int chunk = Math.min(remaining, mBuffer.length - tail);
+            System.arraycopy(b, off, mBuffer, tail, chunk);
+            off += chunk;
+            remaining -= chunk;
+            tail = (tail + chunk) % mBuffer.length;
+        }
+        mCount += accepted;
+        mBytesWritten += accepted;
+        if (accepted > 0) {
+            notifyAll();
+        }
+        return accepted;
+    }
+
+    private synchronized void closeWriter(IOException error) {
+        mWriterClosed = true;
+        mError = error;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mCount == 0) {
+            if (mReaderClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (mWriterClosed) {
+                if (mError != null) {
+                    throw mError;
+                }
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        final int read = Math.min(len, mCount);
+        int remaining = read;
+        while (remaining > 0) {
+            final int chunk = Math.min(remaining, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, b, off, chunk);
+            off += chunk;
+            remaining -= chunk;
+            mHead = (mHead + chunk) % mBuffer.length;
+        }
+        mCount -= read;
+        notifyAll();
+        return read;
+    }
+}
@@ -22,7 +22,6 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
-import android.os.PowerManager;
 import android.os.Process;
 import android.os.SystemClock;
 import android.system.Os;
@@ -35,15 +34,25 @@ import com.leaf.downloads.utils.IoUtils;
 
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 import static com.leaf.downloads.Constants.TAG;
@@ -61,6 +70,7 @@ import static com.leaf.downloads.Downloads.Impl.STATUS_WAITING_TO_RETRY;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static java.net.HttpURLConnection.HTTP_PRECON_FAILED;
@@ -119,9 +129,18 @@ public class DownloadThread implements Runnable {
         public long mTotalBytes;
         public long mCurrentBytes;
         public String mETag;
+        public String mServerLastModified;
+        public boolean mRevalidate;
+        public long mExtractOffset;
 
         public String mErrorMsg;
 
+        /**
+         * Reused for progress updates, which only ever carry the same few
+         * columns.
+         */
+        private final ContentValues mProgressValues = new ContentValues();
+
         public DownloadInfoDelta(DownloadInfo info) {
             mUri = info.mUri;
             mFileName = info.mFileName;
@@ -132,6 +151,9 @@ public class DownloadThread implements Runnable {
             mTotalBytes = info.mTotalBytes;
             mCurrentBytes = info.mCurrentBytes;
             mETag = info.mETag;
+            mServerLastModified = info.mServerLastModified;
+            mRevalidate = info.mRevalidate;
+            mExtractOffset = info.mExtractOffset;
         }
 
         private ContentValues buildContentValues() {
@@ -146,6 +168,9 @@ public class DownloadThread implements Runnable {
             values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, mTotalBytes);
             values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, mCurrentBytes);
             values.put(Constants.ETAG, mETag);
+            values.put(Downloads.Impl.COLUMN_SERVER_LAST_MODIFIED, mServerLastModified);
+            values.put(Downloads.Impl.COLUMN_REVALIDATE, mRevalidate);
+            values.put(Downloads.Impl.COLUMN_EXTRACT_OFFSET, mExtractOffset);
 
             values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, System.currentTimeMillis());
             values.put(Downloads.Impl.COLUMN_ERROR_MSG, mErrorMsg);
@@ -157,8 +182,37 @@ public class DownloadThread implements Runnable {
          * Blindly push update of current delta values to provider.
          */
         public void writeToDatabase() {
-            mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), buildContentValues(),
-                    null, null);
+            final long start = SystemClock.elapsedRealtime();
+            final ContentValues values = buildContentValues();
+            if (DownloadStore.updateDelta(mId, values, false) == DownloadStore.NOT_ATTACHED) {
+                mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values,
+                        null, null);
+            }
+            mMetrics.addDatabaseTime(SystemClock.elapsedRealtime() - start);
+        }
+
+        /**
+         * Push update of just the columns that change while transferring,
+         * asserting strongly that we haven't been paused or deleted. The
+         * given byte count must already be safe on disk.
+         */
+        public void writeProgressToDatabaseOrThrow(long currentBytes)
+                throws StopRequestException {
+            final long start = SystemClock.elapsedRealtime();
+            final long now = System.currentTimeMillis();
+            final int updated = DownloadStore.updateProgress(mId, currentBytes, mExtractOffset,
+                    now);
+            if (updated != DownloadStore.NOT_ATTACHED) {
+                mMetrics.addDatabaseTime(SystemClock.elapsedRealtime() - start);
+                checkUpdated(updated);
+                return;
+            }
+
+            final ContentValues values = mProgressValues;
+            values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, currentBytes);
+            values.put(Downloads.Impl.COLUMN_EXTRACT_OFFSET, mExtractOffset);
+            values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, now);
+            writeOrThrow(values);
         }
 
         /**
@@ -166,8 +220,27 @@ public class DownloadThread implements Runnable {
          * that we haven't been paused or deleted.
          */
         public void writeToDatabaseOrThrow() throws StopRequestException {
-            if (mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-                    buildContentValues(), Downloads.Impl.COLUMN_DELETED + " == '0'", null) == 0) {
+            final long start = SystemClock.elapsedRealtime();
+            final ContentValues values = buildContentValues();
+            final int updated = DownloadStore.updateDelta(mId, values, true);
+            if (updated != DownloadStore.NOT_ATTACHED) {
+                mMetrics.addDatabaseTime(SystemClock.elapsedRealtime() - start);
+                checkUpdated(updated);
+                return;
+            }
+            writeOrThrow(values);
+        }
+
+        private void writeOrThrow(ContentValues values) throws StopRequestException {
+            final long start = SystemClock.elapsedRealtime();
+            final int updated = mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
+                    values, NOT_DELETED_SELECTION, null);
+            mMetrics.addDatabaseTime(SystemClock.elapsedRealtime() - start);
+            checkUpdated(updated);
+        }
+
+        private void checkUpdated(int updated) throws StopRequestException {
+            if (updated == 0) {
                 throw new StopRequestException(STATUS_CANCELED, "Download deleted or missing!");
             }
         }
@@ -179,13 +252,57 @@ public class DownloadThread implements Runnable {
      */
     private boolean mMadeProgress = false;
 
+    private static final String NOT_DELETED_SELECTION = Downloads.Impl.COLUMN_DELETED + " == '0'";
+
+    /**
+     * Timings for this attempt, recorded once it ends.
+     */
+    private final DownloadMetrics mMetrics;
+
     /**
      * Details from the last time we pushed a database update.
      */
     private long mLastUpdateBytes = 0;
     private long mLastUpdateTime = 0;
 
-    private int mNetworkType = ConnectManager.TYPE_NONE;
+    /**
+     * When progress was last synced and written to the database, and the
+     * offset up to which it was recorded in the {@link ProgressJournal} since.
+     */
+    private long mLastCompactTime = 0;
+    private long mJournaledBytes;
+
+    /**
+     * Destination opened for reading back journaled segments, or null.
+     */
+    private RandomAccessFile mJournalFile;
+
+    /**
+     * Offset up to which free space was last checked for a download of
+     * unknown length.
+     */
+    private long mSpaceCheckedBytes = 0;
+
+    private volatile int mNetworkType = ConnectManager.TYPE_NONE;
+
+    /**
+     * Set by {@link DownloadNetworkMonitor} when the active network moved
+     * away from {@link #mNetworkType}, so a failed transfer can continue on
+     * the new network.
+     */
+    private volatile boolean mNetworkChanged;
+
+    /** Whether the network we last checked is metered. */
+    private boolean mNetworkMetered;
+    /** Bytes read over a metered network, not yet charged to budgets. */
+    private long mMeteredBytes;
+    private final Object mNetworkLock = new Object();
+
+    /**
+     * Connection currently in use, torn down when the network changes so a
+     * stalled read doesn't wait for its timeout.
+     */
+    private volatile HttpURLConnection mConn;
 
     /**
      * Historical bytes/second speed of this download.
@@ -200,6 +317,59 @@ public class DownloadThread implements Runnable {
      */
     private long mSpeedSampleBytes;
 
+    /**
+     * Bytes already handed to the consumer stream by an earlier attempt, which
+     * must not be handed over again when the resumed response repeats them.
+     */
+    private long mStreamSkipBytes;
+
+    /**
+     * Mapped destination used instead of a stream for large downloads of
+     * known length, or null.
+     */
+    private MappedFileWriter mMappedWriter;
+
+    /**
+     * File left by an earlier successful attempt that this attempt is
+     * revalidating, with its sizes. It stays in place until a new body has
+     * fully arrived, and is handed back when anything else happens.
+     */
+    private String mRevalidatedFileName;
+    private long mRevalidatedCurrentBytes;
+    private long mRevalidatedTotalBytes;
+    private long mRevalidatedExtractOffset;
+
+    /**
+     * Writer stage draining to the destination file while the transfer is
+     * pipelined, or null.
+     */
+    private PipelinedWriter mPipeline;
+
+    /**
+     * Flag indicating the body is handed to the {@link NioDownloadEngine},
+     * which finishes this attempt once it ends.
+     */
+    private volatile boolean mParked;
+    private NioHttpConnection mParkedConn;
+    private NioDownloadEngine.Callback mParkedCallback;
+
+    /**
+     * Flag indicating the body of the current connection was read to the
+     * end, so nothing of it is left on the socket.
+     */
+    private boolean mBodyConsumed;
+
+    /**
+     * Write progress published to readers of the in-flight file.
+     */
+    private DownloadWatermark mWatermark;
+
+    /**
+     * Flag indicating if the response body was decoded from a negotiated
+     * Content-Encoding, so its offsets don't match the representation.
+     */
+    private boolean mContentDecoded;
+
     public DownloadThread(Context context, DownloadNotifier notifier,
                           DownloadInfo info) {
         mContext = context;
@@ -208,6 +378,7 @@ public class DownloadThread implements Runnable {
         mId = info.mId;
         mInfo = info;
         mInfoDelta = new DownloadInfoDelta(info);
+        mMetrics = new DownloadMetrics(info.mId);
     }
 
     @Override
@@ -222,15 +393,11 @@ public class DownloadThread implements Runnable {
             return;
         }
 
-        PowerManager.WakeLock wakeLock = null;
-        final PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mMetrics.start();
 
-        try {
-            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, Constants.TAG);
-            wakeLock.acquire();
-
-            // while performing download, register for rules updates
+        // DownloadService holds the wakelock while this thread is active
 
+        try {
             logDebug("Starting");
 
             // Remember which network this download started on; used to
@@ -239,88 +406,259 @@ public class DownloadThread implements Runnable {
             if (info != null) {
                 mNetworkType = info.getType();
             }
+            DownloadNetworkMonitor.register(mContext, this);
 
-            executeDownload();
+            executeDownloadWithHandover();
 
-            mInfoDelta.mStatus = STATUS_SUCCESS;
-
-            // If we just finished a chunked file, record total size
-            if (mInfoDelta.mTotalBytes == -1) {
-                mInfoDelta.mTotalBytes = mInfoDelta.mCurrentBytes;
+            if (!mParked) {
+                onDownloadSucceeded();
             }
 
         } catch (StopRequestException e) {
-            mInfoDelta.mStatus = e.getFinalStatus();
-            mInfoDelta.mErrorMsg = e.getMessage();
+            onStopRequested(e);
 
-            logWarning("Stop requested with status "
-                    + Downloads.Impl.statusToString(mInfoDelta.mStatus) + ": "
-                    + mInfoDelta.mErrorMsg);
+        } catch (Throwable t) {
+            onFailed(t);
 
-            // Nobody below our level should request retries, since we handle
-            // failure counts at this level.
-            if (mInfoDelta.mStatus == STATUS_WAITING_TO_RETRY) {
-                throw new IllegalStateException("Execution should always throw final error codes");
+        } finally {
+            if (!mParked) {
+                finishAttempt();
             }
+            BufferPool.releaseThreadCache();
+        }
+
+        if (mParked) {
+            // The body carries on without this thread, and the attempt
+            // finishes in finishParkedTransfer()
+            NioDownloadEngine.getInstance().transfer(mParkedConn, mParkedCallback);
+        }
+    }
+
+    private void onDownloadSucceeded() {
+        mInfoDelta.mStatus = STATUS_SUCCESS;
 
-            // Some errors should be retryable, unless we fail too many times.
-            if (isStatusRetryable(mInfoDelta.mStatus)) {
-                if (mMadeProgress) {
-                    mInfoDelta.mNumFailed = 1;
+        // If we just finished a chunked file, record total size
+        if (mInfoDelta.mTotalBytes == -1) {
+            mInfoDelta.mTotalBytes = mInfoDelta.mCurrentBytes;
+        }
+    }
+
+    private void onStopRequested(StopRequestException e) {
+        mInfoDelta.mStatus = e.getFinalStatus();
+        mInfoDelta.mErrorMsg = e.getMessage();
+
+        logWarning("Stop requested with status "
+                + Downloads.Impl.statusToString(mInfoDelta.mStatus) + ": "
+                + mInfoDelta.mErrorMsg);
+
+        // Nobody below our level should request retries, since we handle
+        // failure counts at this level.
+        if (mInfoDelta.mStatus == STATUS_WAITING_TO_RETRY) {
+            throw new IllegalStateException("Execution should always throw final error codes");
+        }
+
+        // Some errors should be retryable, unless we fail too many times.
+        if (isStatusRetryable(mInfoDelta.mStatus)) {
+            if (mMadeProgress) {
+                mInfoDelta.mNumFailed = 1;
+            } else {
+                mInfoDelta.mNumFailed += 1;
+            }
+
+            if (mInfoDelta.mNumFailed < Constants.MAX_RETRIES) {
+                final NetworkInfo info = ConnectManager.getActiveNetworkInfo(mContext, mInfo.mUid);
+                if (info != null && info.getType() == mNetworkType && info.isConnected()) {
+                    // Underlying network is still intact, use normal backoff
+                    mInfoDelta.mStatus = STATUS_WAITING_TO_RETRY;
                 } else {
-                    mInfoDelta.mNumFailed += 1;
+                    // Network changed, retry on any next available
+                    mInfoDelta.mStatus = STATUS_WAITING_FOR_NETWORK;
                 }
 
-                if (mInfoDelta.mNumFailed < Constants.MAX_RETRIES) {
-                    final NetworkInfo info = ConnectManager.getActiveNetworkInfo(mContext, mInfo.mUid);
-                    if (info != null && info.getType() == mNetworkType && info.isConnected()) {
-                        // Underlying network is still intact, use normal backoff
-                        mInfoDelta.mStatus = STATUS_WAITING_TO_RETRY;
-                    } else {
-                        // Network changed, retry on any next available
-                        mInfoDelta.mStatus = STATUS_WAITING_FOR_NETWORK;
-                    }
-
-                    if ((mInfoDelta.mETag == null && mMadeProgress)) {
-                        // However, if we wrote data and have no ETag to verify
-                        // contents against later, we can't actually resume.
-                        mInfoDelta.mStatus = STATUS_CANNOT_RESUME;
-                    }
+                if (!canResume()) {
+                    mInfoDelta.mStatus = STATUS_CANNOT_RESUME;
                 }
             }
+        }
+    }
 
-        } catch (Throwable t) {
-            mInfoDelta.mStatus = STATUS_UNKNOWN_ERROR;
-            mInfoDelta.mErrorMsg = t.toString();
+    private void onFailed(Throwable t) {
+        mInfoDelta.mStatus = STATUS_UNKNOWN_ERROR;
+        mInfoDelta.mErrorMsg = t.toString();
 
-            logError("Failed: " + mInfoDelta.mErrorMsg, t);
+        logError("Failed: " + mInfoDelta.mErrorMsg, t);
+    }
 
-        } finally {
-            logDebug("Finished with status " + Downloads.Impl.statusToString(mInfoDelta.mStatus));
+    /**
+     * Record how this attempt ended, and let go of everything it held.
+     */
+    private void finishAttempt() {
+        DownloadNetworkMonitor.unregister(this);
+
+        logDebug("Finished with status " + Downloads.Impl.statusToString(mInfoDelta.mStatus));
+
+        mNotifier.notifyDownloadSpeed(mId, 0);
+
+        finishRevalidation();
+        finalizeDestination();
 
-            mNotifier.notifyDownloadSpeed(mId, 0);
+        mInfoDelta.writeToDatabase();
+        chargeMeteredBytes();
 
-            finalizeDestination();
+        mMetrics.finish(mInfoDelta.mStatus, mInfoDelta.mNumFailed);
+        DownloadMetrics.record(mMetrics);
+        if (Constants.LOGV) {
+            Log.v(TAG, "Attempt finished: " + mMetrics);
+        }
+
+        if (Downloads.Impl.isStatusCompleted(mInfoDelta.mStatus)) {
+            DownloadWatermark.release(mId, Downloads.Impl.isStatusSuccess(mInfoDelta.mStatus),
+                    mInfoDelta.mFileName, mInfoDelta.mCurrentBytes);
+        }
+
+        if (mInfo.mStreamMode != Downloads.Impl.STREAM_MODE_NONE
+                && Downloads.Impl.isStatusCompleted(mInfoDelta.mStatus)) {
+            DownloadStream.release(mId, DownloadStream.errorForStatus(mInfoDelta.mStatus));
+        }
+
+        if (Downloads.Impl.isStatusCompleted(mInfoDelta.mStatus)) {
+            mInfo.sendIntentIfRequested();
+        }
+    }
 
-            mInfoDelta.writeToDatabase();
+    /**
+     * Returns whether the body of this attempt is being transferred by the
+     * {@link NioDownloadEngine}, with no thread running it.
+     */
+    boolean isParked() {
+        return mParked;
+    }
 
-            if (Downloads.Impl.isStatusCompleted(mInfoDelta.mStatus)) {
-                mInfo.sendIntentIfRequested();
+    /**
+     * Run {@link #executeDownload()}, and when the transfer broke because the
+     * active network changed, continue it right away on the new network from
+     * the current offset, as long as this download may use that network.
+     */
+    private void executeDownloadWithHandover() throws StopRequestException {
+        int handovers = 0;
+        while (true) {
+            try {
+                executeDownload();
+                return;
+            } catch (StopRequestException e) {
+                if (!mNetworkChanged || e.getFinalStatus() != STATUS_HTTP_DATA_ERROR
+                        || handovers++ >= Constants.MAX_NETWORK_HANDOVERS || !canResume()) {
+                    throw e;
+                }
+                mNetworkChanged = false;
+
+                final NetworkInfo info = awaitNetwork();
+                checkPausedOrCanceled();
+                // Applies allowed network types, metered and size rules to
+                // the new network
+                checkConnectivity();
+                if (info != null) {
+                    mNetworkType = info.getType();
+                }
+
+                logDebug("Network changed to " + ConnectManager.getNetworkTypeName(mNetworkType)
+                        + "; continuing at " + mInfoDelta.mCurrentBytes);
             }
+        }
+    }
 
-            if (wakeLock != null) {
-                wakeLock.release();
-                wakeLock = null;
+    /**
+     * Wait a little for a network to come up after the previous one went
+     * away, since a handover often passes through a moment with none.
+     */
+    private NetworkInfo awaitNetwork() {
+        final long deadline = SystemClock.elapsedRealtime() + Constants.HANDOVER_TIMEOUT_MILLIS;
+        synchronized (mNetworkLock) {
+            while (true) {
+                final NetworkInfo info = ConnectManager.getActiveNetworkInfo(mContext,
+                        mInfo.mUid);
+                if (info != null && info.isConnected()) {
+                    return info;
+                }
+                final long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0 || mInfo.getControlWord() != 0) {
+                    return null;
+                }
+                try {
+                    mNetworkLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
             }
         }
     }
 
+    /**
+     * Called by {@link DownloadNetworkMonitor} with the newly active network,
+     * or null when there is none.
+     */
+    void onNetworkChanged(NetworkInfo info) {
+        final int type = (info != null && info.isConnected())
+                ? info.getType() : ConnectManager.TYPE_NONE;
+        synchronized (mNetworkLock) {
+            if (type != ConnectManager.TYPE_NONE) {
+                mNetworkLock.notifyAll();
+            }
+        }
+        if (type == mNetworkType) {
+            return;
+        }
+
+        logDebug("Network changed from " + ConnectManager.getNetworkTypeName(mNetworkType)
+                + " to " + ConnectManager.getNetworkTypeName(type));
+        mNetworkChanged = true;
+        mPolicyDirty = true;
+
+        final HttpURLConnection conn = mConn;
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    int getUid() {
+        return mInfo.mUid;
+    }
+
+    /**
+     * Returns whether a later attempt can pick up from the data already
+     * written.
+     */
+    private boolean canResume() {
+        if (mInfoDelta.mETag == null && mMadeProgress && !isPatching()) {
+            // If we wrote data and have no ETag to verify contents against
+            // later, we can't actually resume.
+            return false;
+        }
+        if (mContentDecoded && mMadeProgress && !isExtracting() && !isPatching()) {
+            // Decoded bytes on disk don't line up with ranges of the encoded
+            // body.
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Fully execute a single download request. Setup and send the request,
      * handle the response, and transfer the data to the destination file.
      */
     private void executeDownload() throws StopRequestException {
-        final boolean resuming = mInfoDelta.mCurrentBytes != 0;
+        // Before the offsets below change, so a revalidation can hand them back
+        final boolean revalidating = canRevalidate();
+        if (isExtracting()) {
+            // Extraction can only pick up where an entry starts
+            mInfoDelta.mCurrentBytes = mInfoDelta.mExtractOffset;
+        } else if (isPatching()) {
+            // Patches are always applied from the start, overwriting any
+            // earlier attempt.
+            mInfoDelta.mCurrentBytes = 0;
+        }
+        final boolean resuming = !revalidating && mInfoDelta.mCurrentBytes != 0;
 
         logDebug("resuming; mCurrentBytes is " + mInfoDelta.mCurrentBytes);
 
@@ -340,20 +678,36 @@ public class DownloadThread implements Runnable {
             HttpURLConnection conn = null;
             try {
                 checkConnectivity();
-                conn = (HttpURLConnection) url.openConnection();
+                resolveHost(url);
+                mBodyConsumed = false;
+                conn = openConnection(url);
+                mConn = conn;
                 conn.setInstanceFollowRedirects(false);
                 conn.setConnectTimeout(DEFAULT_TIMEOUT);
                 conn.setReadTimeout(DEFAULT_TIMEOUT);
 
-                addRequestHeaders(conn, resuming);
+                addRequestHeaders(conn, resuming, revalidating);
+
+                long start = SystemClock.elapsedRealtime();
+                conn.connect();
+                mMetrics.addConnectTime(SystemClock.elapsedRealtime() - start);
 
+                start = SystemClock.elapsedRealtime();
                 final int responseCode = conn.getResponseCode();
+                mMetrics.addFirstByteTime(SystemClock.elapsedRealtime() - start);
+                DownloadMetrics.markFirstByte();
+                if (responseCode == HTTP_OK || responseCode == HTTP_PARTIAL) {
+                    DownloadKeepAlive.onResponse(url, conn);
+                }
                 switch (responseCode) {
                 case HTTP_OK:
                     if (resuming) {
                         throw new StopRequestException(
                                 STATUS_CANNOT_RESUME, "Expected partial, but received OK");
                     }
+                    if (revalidating) {
+                        startReplacement();
+                    }
                     parseOkHeaders(conn);
                     transferData(conn);
                     return;
@@ -369,6 +723,15 @@ public class DownloadThread implements Runnable {
                     transferData(conn);
                     return;
 
+                case HTTP_NOT_MODIFIED:
+                    if (!revalidating) {
+                        StopRequestException.throwUnhandledHttpError(
+                                responseCode, conn.getResponseMessage());
+                    }
+                    parseNotModifiedHeaders(conn);
+                    mBodyConsumed = true;
+                    return;
+
                 case HTTP_MOVED_PERM:
                 case HTTP_MOVED_TEMP:
                 case HTTP_SEE_OTHER:
@@ -413,15 +776,30 @@ public class DownloadThread implements Runnable {
                 }
 
             } finally {
-                if (conn != null) conn.disconnect();
+                if (!mParked) {
+                    mConn = null;
+                    if (conn != null) releaseConnection(conn);
+                }
             }
         }
 
         throw new StopRequestException(STATUS_TOO_MANY_REDIRECTS, "Too many redirects");
     }
 
+    private void releaseConnection(HttpURLConnection conn) {
+        DownloadKeepAlive.release(conn, mBodyConsumed);
+    }
+
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        if (NioDownloadEngine.isEnabled() && NioHttpConnection.canHandle(url)) {
+            return new NioHttpConnection(url);
+        }
+        return (HttpURLConnection) url.openConnection();
+    }
+
     /**
-     * Transfer data from the given connection to the destination file.
+     * Transfer data from the given connection to the destination file and/or
+     * consumer stream.
      */
     private void transferData(HttpURLConnection conn) throws StopRequestException {
 
@@ -439,6 +817,13 @@ public class DownloadThread implements Runnable {
                     STATUS_CANNOT_RESUME, "can't know size of download, giving up");
         }
 
+        DownloadStream stream = null;
+        if (mInfo.mStreamMode != Downloads.Impl.STREAM_MODE_NONE) {
+            stream = prepareStream();
+        }
+
+        final long transferStart = SystemClock.elapsedRealtime();
+
         ParcelFileDescriptor outPfd = null;
         FileDescriptor outFd = null;
         InputStream in = null;
@@ -450,86 +835,701 @@ public class DownloadThread implements Runnable {
                 throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
             }
 
-            try {
-                Uri uri = mInfo.getAllDownloadsUri();
+            final String contentEncoding = getContentEncoding(conn);
+            mContentDecoded = contentEncoding != null;
 
-                logDebug("openFileDescriptor " + uri.toString());
+            if (isExtracting()) {
+                extractData(in, contentEncoding);
+                return;
+            }
 
-                outPfd = mContext.getContentResolver()
-                        .openFileDescriptor(uri, "rw+");
-                outFd = outPfd.getFileDescriptor();
-                out = new ParcelFileDescriptor.AutoCloseOutputStream(outPfd);
-            } catch (Exception e) {
-                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            if (contentEncoding != null && !isPatching()) {
+                try {
+                    in = decodeBody(in, contentEncoding);
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+                }
+            }
+
+            if (mInfo.mStreamMode != Downloads.Impl.STREAM_MODE_CONSUMER || isPatching()) {
+                if (!isPatching()) {
+                    trimPartialFile();
+                    mMappedWriter = openMappedWriter();
+                }
+                if (mMappedWriter == null) {
+                    try {
+                        Uri uri = mInfo.getAllDownloadsUri();
+
+                        logDebug("openFileDescriptor " + uri.toString());
+
+                        outPfd = mContext.getContentResolver()
+                                .openFileDescriptor(uri, isPatching() ? "rw" : "rw+");
+                        outFd = outPfd.getFileDescriptor();
+                        out = new ParcelFileDescriptor.AutoCloseOutputStream(outPfd);
+                    } catch (Exception e) {
+                        throw new StopRequestException(STATUS_FILE_ERROR, e);
+                    }
+                }
+
+                if (isPatching()) {
+                    applyPatch(in, out, contentEncoding);
+                    return;
+                }
+
+                mWatermark = DownloadWatermark.obtain(mId);
+                mWatermark.publish(mInfoDelta.mFileName, mInfoDelta.mUri, mInfoDelta.mETag,
+                        mInfo.getHeaders(), mInfo.getUserAgent(), mInfoDelta.mTotalBytes,
+                        mInfoDelta.mCurrentBytes);
             }
 
             // Start streaming data, periodically watch for pause/cancel
             // commands and checking disk space as needed.
-            transferData(in, out, outFd);
+            if (conn instanceof NioHttpConnection && stream == null && contentEncoding == null
+                    && (out != null || mMappedWriter != null)) {
+                parkTransfer((NioHttpConnection) conn, in, out, outFd, transferStart);
+            } else if (stream == null && (out != null || mMappedWriter != null)) {
+                transferPipelined(in, out, outFd);
+            } else {
+                transferData(in, out, outFd, stream);
+            }
 
         } finally {
+            if (!mParked) {
+                closeTransfer(in, out, outFd, transferStart);
+            }
+        }
+    }
+
+    private void closeTransfer(InputStream in, OutputStream out, FileDescriptor outFd,
+            long transferStart) {
+        IoUtils.closeQuietly(in);
+
+        final long syncStart = SystemClock.elapsedRealtime();
+        try {
+            if (out != null) out.flush();
+            if (outFd != null) outFd.sync();
+            if (mMappedWriter != null) mMappedWriter.close(mInfoDelta.mCurrentBytes);
+        } catch (IOException e) {
+        } finally {
+            IoUtils.closeQuietly(out);
+            mMappedWriter = null;
+            IoUtils.closeQuietly(mJournalFile);
+            mJournalFile = null;
+        }
 
-            IoUtils.closeQuietly(in);
+        final long now = SystemClock.elapsedRealtime();
+        mMetrics.addSyncTime(now - syncStart);
+        mMetrics.addTransferTime(now - transferStart);
+    }
+
+    /**
+     * Hand the body of the response over to the {@link NioDownloadEngine},
+     * once this thread has unwound. Bytes are then written as they arrive on
+     * the engine's workers, and the attempt finishes there.
+     */
+    private void parkTransfer(final NioHttpConnection conn, final InputStream in,
+            final OutputStream out, final FileDescriptor outFd, final long transferStart) {
+        logDebug("Parking transfer at " + mInfoDelta.mCurrentBytes);
+        mParkedConn = conn;
+        mParkedCallback = new NioDownloadEngine.Callback() {
+            @Override
+            public void onData(byte[] buffer, int length) throws StopRequestException {
+                checkPausedOrCanceled();
+                accountRead(length, 0);
+                writeData(buffer, length, out, outFd);
+            }
+
+            @Override
+            public void onCheck() throws StopRequestException {
+                checkPausedOrCanceled();
+            }
 
+            @Override
+            public boolean isStopRequested() {
+                return mInfo.getControlWord() != 0 || mPolicyDirty;
+            }
+
+            @Override
+            public void onFinished(Exception error) {
+                finishParkedTransfer(conn, in, out, outFd, transferStart, error);
+            }
+        };
+        mParked = true;
+    }
+
+    /**
+     * Finish an attempt whose body was transferred by the
+     * {@link NioDownloadEngine}, like {@link #run()} would have.
+     */
+    private void finishParkedTransfer(NioHttpConnection conn, InputStream in, OutputStream out,
+            FileDescriptor outFd, long transferStart, Exception error) {
+        try {
             try {
-                if (out != null) out.flush();
-                if (outFd != null) outFd.sync();
-            } catch (IOException e) {
+                if (error instanceof StopRequestException) {
+                    throw (StopRequestException) error;
+                } else if (error instanceof IOException) {
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Failed reading response: " + error, error);
+                } else if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                } else if (error != null) {
+                    throw new StopRequestException(STATUS_UNKNOWN_ERROR, error);
+                }
+                checkLengthMatches();
             } finally {
-                IoUtils.closeQuietly(out);
+                closeTransfer(in, out, outFd, transferStart);
+                mConn = null;
+                conn.disconnect();
             }
+            onDownloadSucceeded();
+
+        } catch (StopRequestException e) {
+            onStopRequested(e);
+
+        } catch (Throwable t) {
+            onFailed(t);
+
+        } finally {
+            finishAttempt();
+            mParkedConn = null;
+            mParkedCallback = null;
+            mParked = false;
         }
     }
 
     /**
      * Transfer as much data as possible from the HTTP response to the
-     * destination file.
+     * destination file and/or consumer stream. Either destination may be
+     * {@code null}.
      */
-    private void transferData(InputStream in, OutputStream out, FileDescriptor outFd)
-            throws StopRequestException {
-        final byte buffer[] = new byte[Constants.BUFFER_SIZE];
+    private void transferData(InputStream in, OutputStream out, FileDescriptor outFd,
+            DownloadStream stream) throws StopRequestException {
+        final byte buffer[] = BufferPool.acquire(Constants.BUFFER_SIZE);
+        try {
+            transferData(in, out, outFd, stream, buffer);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Transfer with the given buffer until the response ends. This is the
+     * steady-state loop run for every chunk, so it must neither lock nor
+     * allocate; package-private so tests can check that.
+     */
+    void transferData(InputStream in, OutputStream out, FileDescriptor outFd,
+            DownloadStream stream, byte[] buffer) throws StopRequestException {
         while (true) {
             checkPausedOrCanceled();
 
             int len = -1;
+            final long readStart = SystemClock.elapsedRealtime();
             try {
                 len = in.read(buffer);
             } catch (IOException e) {
                 throw new StopRequestException(
                         STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
             }
+            accountRead(len, SystemClock.elapsedRealtime() - readStart);
 
             if (len == -1) {
+                mBodyConsumed = true;
                 break;
             }
 
+            if (stream != null) {
+                stream = writeToStream(stream, buffer, len);
+            }
+
+            writeData(buffer, len, out, outFd);
+        }
+
+        checkLengthMatches();
+    }
+
+    /**
+     * Write the given bytes to the destination file, if any, and count them
+     * as progress.
+     */
+    private void writeData(byte[] buffer, int len, OutputStream out, FileDescriptor outFd)
+            throws StopRequestException {
+        try {
+            if (out != null) {
+                // When streaming, ensure space before each step of
+                // writes, rather than every chunk
+                if (mInfoDelta.mTotalBytes == -1
+                        && mInfoDelta.mCurrentBytes + len > mSpaceCheckedBytes) {
+                    StorageUtils.ensureAvailableSpace(mContext, outFd);
+                    mSpaceCheckedBytes = mInfoDelta.mCurrentBytes + Constants.SPACE_CHECK_STEP;
+                }
+
+                out.write(buffer, 0, len);
+            } else if (mMappedWriter != null) {
+                mMappedWriter.write(mInfoDelta.mCurrentBytes, buffer, 0, len);
+            }
+
+            mMadeProgress = true;
+            mInfoDelta.mCurrentBytes += len;
+
+            if (mWatermark != null) {
+                mWatermark.advance(mInfoDelta.mCurrentBytes);
+            }
+
+            updateProgress(outFd);
+
+        } catch (Exception e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+
+    /**
+     * Finished without error; verify length if known.
+     */
+    private void checkLengthMatches() throws StopRequestException {
+        if (mInfoDelta.mTotalBytes != -1 && mInfoDelta.mCurrentBytes != mInfoDelta.mTotalBytes) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Content length mismatch");
+        }
+    }
+
+    /**
+     * Transfer the HTTP response to the destination file through a
+     * {@link PipelinedWriter}, so that reading from the network carries on
+     * while the disk is busy writing or syncing.
+     */
+    private void transferPipelined(InputStream in, final OutputStream out,
+            final FileDescriptor outFd) throws StopRequestException {
+        final PipelinedWriter.Sink sink;
+        if (mMappedWriter != null) {
+            final MappedFileWriter writer = mMappedWriter;
+            sink = new PipelinedWriter.Sink() {
+                @Override
+                public void write(long position, byte[] buffer, int offset, int count)
+                        throws IOException {
+                    writer.write(position, buffer, offset, count);
+                }
+
+                @Override
+                public void sync() {
+                    writer.force();
+                }
+            };
+        } else {
+            sink = new PipelinedWriter.Sink() {
+                @Override
+                public void write(long position, byte[] buffer, int offset, int count)
+                        throws IOException {
+                    out.write(buffer, offset, count);
+                }
+
+                @Override
+                public void sync() throws IOException {
+                    out.flush();
+                    outFd.sync();
+                }
+            };
+        }
+
+        mPipeline = new PipelinedWriter(mId, sink, mWatermark, mInfoDelta.mCurrentBytes);
+        boolean finished = false;
+        try {
+            while (true) {
+                checkPausedOrCanceled();
+
+                final PipelinedWriter.Chunk chunk;
+                try {
+                    chunk = mPipeline.obtain();
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, e);
+                }
+
+                int len = -1;
+                final long readStart = SystemClock.elapsedRealtime();
+                try {
+                    len = in.read(chunk.buffer);
+                } catch (IOException e) {
+                    mPipeline.recycle(chunk);
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+                }
+                accountRead(len, SystemClock.elapsedRealtime() - readStart);
+
+                if (len == -1) {
+                    mPipeline.recycle(chunk);
+                    mBodyConsumed = true;
+                    break;
+                }
+
+                try {
+                    if (out != null && mInfoDelta.mTotalBytes == -1
+                            && mInfoDelta.mCurrentBytes + len > mSpaceCheckedBytes) {
+                        StorageUtils.ensureAvailableSpace(mContext, outFd);
+                        mSpaceCheckedBytes = mInfoDelta.mCurrentBytes + Constants.SPACE_CHECK_STEP;
+                    }
+
+                    mPipeline.submit(chunk, len, mInfoDelta.mCurrentBytes);
+
+                    mMadeProgress = true;
+                    mInfoDelta.mCurrentBytes += len;
+
+                    updateProgress(outFd);
+
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, e);
+                }
+            }
+
+            try {
+                mPipeline.finish();
+                finished = true;
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+        } finally {
+            if (!finished) {
+                try {
+                    mPipeline.finish();
+                } catch (IOException ignored) {
+                }
+            }
+            // Only bytes that reached the file count as progress
+            mInfoDelta.mCurrentBytes = mPipeline.getWrittenBytes();
+            mPipeline.reportMetrics(mMetrics);
+            mPipeline = null;
+        }
+
+        checkLengthMatches();
+    }
+
+    /**
+     * Feed the HTTP response through an {@link ArchiveExtractor}, recording
+     * entry boundaries so an interrupted extraction can resume from the last
+     * complete entry.
+     */
+    private void extractData(InputStream in, String contentEncoding)
+            throws StopRequestException {
+        final InputStream progressIn = newProgressInputStream(in);
+
+        final ArchiveExtractor.Listener listener = new ArchiveExtractor.Listener() {
+            @Override
+            public void onEntryExtracted(long boundaryOffset) {
+                mInfoDelta.mExtractOffset = boundaryOffset;
+            }
+        };
+
+        try {
+            final InputStream body = (contentEncoding != null)
+                    ? decodeBody(progressIn, contentEncoding) : progressIn;
+            new ArchiveExtractor(new File(mInfoDelta.mFileName), listener).extract(body,
+                    mInfo.mTransform, mInfoDelta.mExtractOffset, !mContentDecoded);
+        } catch (StopRequestIOException e) {
+            throw e.getStopRequest();
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, "Failed extracting: " + e, e);
+        }
+
+        checkLengthMatches();
+    }
+
+    /**
+     * Open the destination for mapped writes when it's large and its final
+     * length is known, or return null to stream to it instead.
+     */
+    private MappedFileWriter openMappedWriter() {
+        if (mInfoDelta.mTotalBytes < Constants.MIN_MAPPED_BYTES || mContentDecoded
+                || mInfoDelta.mFileName == null
+                || mInfoDelta.mCurrentBytes >= mInfoDelta.mTotalBytes) {
+            return null;
+        }
+        try {
+            final MappedFileWriter writer = MappedFileWriter.open(
+                    new File(mInfoDelta.mFileName), mInfoDelta.mTotalBytes,
+                    mInfoDelta.mCurrentBytes);
+            logDebug("Writing through mapped windows");
+            return writer;
+        } catch (IOException e) {
+            logWarning("Falling back to streaming: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Drop anything past the bytes we know are valid, such as space reserved
+     * by an attempt that died while writing through mapped windows, so that
+     * appending picks up at the right offset.
+     */
+    private void trimPartialFile() throws StopRequestException {
+        if (mInfoDelta.mFileName == null) {
+            return;
+        }
+        final File file = new File(mInfoDelta.mFileName);
+        if (file.length() <= mInfoDelta.mCurrentBytes) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(mInfoDelta.mCurrentBytes);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Create a directory for this download's entries inside the requested
+     * extraction directory. It's new and belongs to the download, so it can
+     * be deleted along with the download without touching anything that was
+     * there before.
+     */
+    private File createExtractionDir() throws StopRequestException {
+        final File parent = new File(mInfo.mExtractDir);
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new StopRequestException(STATUS_FILE_ERROR, "Failed to create " + parent);
+        }
+        final String name = "download-" + mId;
+        for (int i = 0; i < Constants.MAX_EXTRACTION_DIR_ATTEMPTS; i++) {
+            final File dir = new File(parent, (i == 0) ? name : name + "-" + i);
+            if (dir.mkdir()) {
+                return dir;
+            }
+        }
+        throw new StopRequestException(STATUS_FILE_ERROR,
+                "Failed to create an extraction directory in " + parent);
+    }
+
+    private boolean isExtracting() {
+        return (mInfo.mTransform & (Downloads.Impl.TRANSFORM_EXTRACT_ZIP
+                | Downloads.Impl.TRANSFORM_EXTRACT_TAR)) != 0;
+    }
+
+    private boolean isPatching() {
+        return mInfo.mPatchBase != null && !isExtracting();
+    }
+
+    /**
+     * Reconstruct the destination file by applying the VCDIFF patch in the
+     * HTTP response to the base file, and verify the result when a digest
+     * was requested.
+     */
+    private void applyPatch(InputStream in, OutputStream out, String contentEncoding)
+            throws StopRequestException {
+        final File base = new File(mInfo.mPatchBase);
+        if (!base.isFile()) {
+            throw new StopRequestException(STATUS_FILE_ERROR, "Patch base " + base + " missing");
+        }
+
+        MessageDigest digest = null;
+        if (mInfo.mPatchDigest != null) {
             try {
-                // When streaming, ensure space before each write
-                if (mInfoDelta.mTotalBytes == -1) {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new StopRequestException(STATUS_UNKNOWN_ERROR, e);
+            }
+        }
+
+        // The patch is read raw for progress, and decoded on top if needed
+        final InputStream progressIn = newProgressInputStream(in);
+        final long patchedBytes;
+        try {
+            final InputStream patch = (contentEncoding != null)
+                    ? decodeBody(progressIn, contentEncoding) : progressIn;
+            patchedBytes = new VcdiffDecoder(base).decode(patch,
+                    (digest != null) ? new DigestOutputStream(out, digest) : out);
+        } catch (StopRequestIOException e) {
+            throw e.getStopRequest();
+        } catch (VcdiffDecoder.PatchException e) {
+            throw new StopRequestException(STATUS_UNKNOWN_ERROR, "Bad patch: " + e, e);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, "Failed patching: " + e, e);
+        }
+
+        checkLengthMatches();
+
+        if (digest != null && !mInfo.mPatchDigest.equalsIgnoreCase(toHexString(digest.digest()))) {
+            throw new StopRequestException(STATUS_UNKNOWN_ERROR, "Patched file failed verification");
+        }
+
+        // From here on, describe the patched file rather than the patch
+        mInfoDelta.mCurrentBytes = patchedBytes;
+        mInfoDelta.mTotalBytes = patchedBytes;
+    }
+
+    private static String toHexString(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Wrap the HTTP response so that reading from it counts progress and
+     * honors pause/cancel, for consumers that pull bytes themselves. Failures
+     * surface as {@link StopRequestIOException}.
+     */
+    private InputStream newProgressInputStream(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final byte[] single = new byte[1];
+                final int len = read(single, 0, 1);
+                return (len == -1) ? -1 : (single[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    checkPausedOrCanceled();
+                } catch (StopRequestException e) {
+                    throw new StopRequestIOException(e);
+                }
 
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                        final long curSize = Os.fstat(outFd).st_size;
-                        final long newBytes = (mInfoDelta.mCurrentBytes + len) - curSize;
+                final int read;
+                final long readStart = SystemClock.elapsedRealtime();
+                try {
+                    read = super.read(b, off, len);
+                } catch (IOException e) {
+                    throw new StopRequestIOException(new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e));
+                }
+                accountRead(read, SystemClock.elapsedRealtime() - readStart);
+
+                if (read > 0) {
+                    mMadeProgress = true;
+                    mInfoDelta.mCurrentBytes += read;
+                    try {
+                        updateProgress(null);
+                    } catch (StopRequestException e) {
+                        throw new StopRequestIOException(e);
                     }
-                    StorageUtils.ensureAvailableSpace(mContext, outFd/*,newBytes*/);
                 }
+                return read;
+            }
 
-                out.write(buffer, 0, len);
+            @Override
+            public long skip(long n) throws IOException {
+                final byte[] scratch = BufferPool.acquire(Constants.BUFFER_SIZE);
+                try {
+                    final int read = read(scratch, 0, (int) Math.min(n, scratch.length));
+                    return Math.max(read, 0);
+                } finally {
+                    BufferPool.release(scratch);
+                }
+            }
+        };
+    }
+
+    /**
+     * Return the Content-Encoding we negotiated and must decode, or
+     * {@code null} when the body is sent as-is.
+     */
+    private String getContentEncoding(URLConnection conn) {
+        if ((mInfo.mTransform & Downloads.Impl.TRANSFORM_DECOMPRESS) == 0) {
+            return null;
+        }
+        final String encoding = conn.getHeaderField("Content-Encoding");
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)
+                || "deflate".equalsIgnoreCase(encoding)) {
+            return encoding;
+        }
+        return null;
+    }
+
+    private static InputStream decodeBody(InputStream in, String contentEncoding)
+            throws IOException {
+        if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(in);
+        } else {
+            return new GZIPInputStream(in, Constants.BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Line up the consumer stream with {@link DownloadInfoDelta#mCurrentBytes}
+     * before a transfer starts. Bytes the consumer is missing are replayed from
+     * the partial file, and bytes it already has are skipped.
+     */
+    private DownloadStream prepareStream() throws StopRequestException {
+        final DownloadStream stream = DownloadStream.obtain(mId);
+        final long streamBytes = stream.getBytesWritten();
+        mStreamSkipBytes = 0;
+
+        if (streamBytes > mInfoDelta.mCurrentBytes) {
+            mStreamSkipBytes = streamBytes - mInfoDelta.mCurrentBytes;
+        } else if (streamBytes < mInfoDelta.mCurrentBytes) {
+            if (mInfo.mStreamMode == Downloads.Impl.STREAM_MODE_CONSUMER
+                    || mInfoDelta.mFileName == null) {
+                throw new StopRequestException(
+                        STATUS_CANNOT_RESUME, "Consumer stream lost earlier data");
+            }
 
-                mMadeProgress = true;
-                mInfoDelta.mCurrentBytes += len;
+            logDebug("Replaying " + (mInfoDelta.mCurrentBytes - streamBytes)
+                    + " bytes to consumer stream");
 
-                updateProgress(outFd);
+            final byte buffer[] = BufferPool.acquire(Constants.BUFFER_SIZE);
+            InputStream in = null;
+            try {
+                in = new FileInputStream(mInfoDelta.mFileName);
+                long skipped = 0;
+                while (skipped < streamBytes) {
+                    final long n = in.skip(streamBytes - skipped);
+                    if (n <= 0) {
+                        throw new IOException("Partial file shorter than stream");
+                    }
+                    skipped += n;
+                }
 
-            } catch (Exception e) {
+                long remaining = mInfoDelta.mCurrentBytes - streamBytes;
+                while (remaining > 0) {
+                    final int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (len == -1) {
+                        throw new IOException("Partial file shorter than progress");
+                    }
+                    if (writeToStream(stream, buffer, len) == null) {
+                        return null;
+                    }
+                    remaining -= len;
+                }
+            } catch (IOException e) {
                 throw new StopRequestException(STATUS_FILE_ERROR, e);
+            } finally {
+                IoUtils.closeQuietly(in);
+                BufferPool.release(buffer);
             }
         }
+        return stream;
+    }
 
-        // Finished without error; verify length if known
-        if (mInfoDelta.mTotalBytes != -1 && mInfoDelta.mCurrentBytes != mInfoDelta.mTotalBytes) {
-            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Content length mismatch");
+    /**
+     * Hand the given bytes to the consumer stream, blocking while the consumer
+     * is behind but still watching for pause/cancel commands.
+     *
+     * @return the stream to keep writing to, or {@code null} when the consumer
+     *         went away and the file alone should be completed.
+     */
+    private DownloadStream writeToStream(DownloadStream stream, byte[] buffer, int len)
+            throws StopRequestException {
+        int off = 0;
+        if (mStreamSkipBytes > 0) {
+            off = (int) Math.min(mStreamSkipBytes, len);
+            mStreamSkipBytes -= off;
+        }
+
+        while (off < len) {
+            checkPausedOrCanceled();
+            try {
+                off += stream.offer(buffer, off, len - off, Constants.STREAM_OFFER_TIMEOUT);
+            } catch (IOException e) {
+                if (mInfo.mStreamMode == Downloads.Impl.STREAM_MODE_CONSUMER) {
+                    throw new StopRequestException(STATUS_CANCELED, e);
+                }
+                logDebug("Consumer closed stream; continuing with file only");
+                return null;
+            }
         }
+        return stream;
     }
 
     /**
@@ -553,9 +1553,9 @@ public class DownloadThread implements Runnable {
             } catch (FileNotFoundException ignored) {
             }
 
-            // Delete if local file
+            // Delete if local file, or extraction directory
             if (mInfoDelta.mFileName != null) {
-                new File(mInfoDelta.mFileName).delete();
+                IoUtils.deleteRecursively(new File(mInfoDelta.mFileName));
                 mInfoDelta.mFileName = null;
             }
 
@@ -585,14 +1585,31 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Resolve the host of the given URL ahead of connecting, so the lookup
+     * can be timed apart from the connection. The connection then finds the
+     * result in the resolver cache; failures are left for it to report.
+     */
+    private void resolveHost(URL url) {
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            InetAddress.getAllByName(url.getHost());
+        } catch (UnknownHostException ignored) {
+        } catch (SecurityException ignored) {
+        }
+        mMetrics.addDnsTime(SystemClock.elapsedRealtime() - start);
+    }
+
     /**
      * Check if current connectivity is valid for this request.
      */
     private void checkConnectivity() throws StopRequestException {
         // checking connectivity will apply current policy
+        chargeMeteredBytes();
         mPolicyDirty = false;
 
-        final NetworkState networkUsable = mInfo.checkCanUseNetwork(mInfoDelta.mTotalBytes);
+        final NetworkState networkUsable = mInfo.checkCanUseNetwork(mInfoDelta.mTotalBytes,
+                mInfoDelta.mCurrentBytes);
         if (networkUsable != NetworkState.OK) {
             int status = STATUS_WAITING_FOR_NETWORK;
             if (networkUsable == NetworkState.UNUSABLE_DUE_TO_SIZE) {
@@ -604,6 +1621,34 @@ public class DownloadThread implements Runnable {
             }
             throw new StopRequestException(status, networkUsable.name());
         }
+        mNetworkMetered = ConnectManager.isActiveNetworkMetered(mContext);
+    }
+
+    /**
+     * Account for a single read from the network. Kept to field updates,
+     * since it runs for every chunk.
+     */
+    private void accountRead(long bytes, long millis) {
+        mMetrics.addRead(bytes, millis);
+        if (mNetworkMetered && bytes > 0) {
+            mMeteredBytes += bytes;
+        }
+    }
+
+    /**
+     * Charge bytes read over a metered network since the last call to the
+     * owner's budgets, and recheck the network once they run out.
+     */
+    private void chargeMeteredBytes() {
+        if (mMeteredBytes == 0) {
+            return;
+        }
+        final DownloadNetworkPolicy policy = DownloadNetworkPolicy.getInstance(mContext);
+        policy.addUsage(mInfo.mPackage, mMeteredBytes);
+        mMeteredBytes = 0;
+        if (policy.getRemainingBudget(mInfo.mPackage) == 0) {
+            mPolicyDirty = true;
+        }
     }
 
     /**
@@ -611,14 +1656,14 @@ public class DownloadThread implements Runnable {
      * appropriately if it has been.
      */
     private void checkPausedOrCanceled() throws StopRequestException {
-        synchronized (mInfo) {
-            if (mInfo.mControl == Downloads.Impl.CONTROL_PAUSED) {
+        // Called for every chunk, so only a single volatile read
+        final int controlWord = mInfo.getControlWord();
+        if (controlWord != 0) {
+            if ((controlWord & DownloadInfo.CONTROL_WORD_PAUSED) != 0) {
                 throw new StopRequestException(
                         Downloads.Impl.STATUS_PAUSED_BY_APP, "download paused by owner");
             }
-            if (mInfo.mStatus == STATUS_CANCELED || mInfo.mDeleted) {
-                throw new StopRequestException(STATUS_CANCELED, "download canceled");
-            }
+            throw new StopRequestException(STATUS_CANCELED, "download canceled");
         }
 
         // if policy has been changed, trigger connectivity check
@@ -657,15 +1702,191 @@ public class DownloadThread implements Runnable {
         final long bytesDelta = currentBytes - mLastUpdateBytes;
         final long timeDelta = now - mLastUpdateTime;
         if (bytesDelta > Constants.MIN_PROGRESS_STEP && timeDelta > Constants.MIN_PROGRESS_TIME) {
+            if (now - mLastCompactTime < Constants.PROGRESS_COMPACT_TIME && journalProgress()) {
+                chargeMeteredBytes();
+                mLastUpdateBytes = currentBytes;
+                mLastUpdateTime = now;
+                return;
+            }
+
             // fsync() to ensure that current progress has been flushed to disk,
             // so we can always resume based on latest database information.
-            outFd.sync();
+            long durableBytes = currentBytes;
+            if (mPipeline != null) {
+                // The writer syncs in the background; record what the last
+                // checkpoint made durable
+                mPipeline.requestCheckpoint();
+                durableBytes = mPipeline.getDurableBytes();
+            } else if (mMappedWriter != null) {
+                final long start = SystemClock.elapsedRealtime();
+                mMappedWriter.force();
+                mMetrics.addSyncTime(SystemClock.elapsedRealtime() - start);
+            } else if (outFd != null) {
+                final long start = SystemClock.elapsedRealtime();
+                outFd.sync();
+                mMetrics.addSyncTime(SystemClock.elapsedRealtime() - start);
+            }
 
-            mInfoDelta.writeToDatabaseOrThrow();
+            mInfoDelta.writeProgressToDatabaseOrThrow(durableBytes);
+            chargeMeteredBytes();
 
             mLastUpdateBytes = currentBytes;
             mLastUpdateTime = now;
+            mLastCompactTime = now;
+            mJournaledBytes = durableBytes;
+        }
+    }
+
+    /**
+     * Record the bytes written since the last record in the
+     * {@link ProgressJournal}, instead of syncing them.
+     *
+     * @return false when progress has to be made durable the usual way
+     */
+    private boolean journalProgress() {
+        if (mInfoDelta.mFileName == null || mInfo.mStreamMode != Downloads.Impl.STREAM_MODE_NONE
+                || mContentDecoded || isPatching() || isExtracting()) {
+            // Bytes on disk don't line up with the resume offset
+            return false;
+        }
+        final long end = (mPipeline != null) ? mPipeline.getWrittenBytes()
+                : mInfoDelta.mCurrentBytes;
+        if (end <= mJournaledBytes) {
+            return true;
         }
+
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            if (mJournalFile == null) {
+                mJournalFile = new RandomAccessFile(mInfoDelta.mFileName, "r");
+            }
+            final int checksum = ProgressJournal.checksum(mJournalFile, mJournaledBytes, end);
+            if (!ProgressJournal.append(mId, mJournaledBytes, end, checksum)) {
+                return false;
+            }
+        } catch (IOException e) {
+            logDebug("can't journal progress: " + e);
+            return false;
+        } finally {
+            mMetrics.addSyncTime(SystemClock.elapsedRealtime() - start);
+        }
+        mJournaledBytes = end;
+        return true;
+    }
+
+    /**
+     * Check if this attempt should ask the server whether the file left by
+     * an earlier successful attempt is still current.
+     */
+    private boolean canRevalidate() {
+        if (!mInfoDelta.mRevalidate) {
+            return false;
+        }
+        if (mRevalidatedFileName == null && mInfoDelta.mFileName != null
+                && new File(mInfoDelta.mFileName).exists()) {
+            mRevalidatedFileName = mInfoDelta.mFileName;
+            mRevalidatedCurrentBytes = mInfoDelta.mCurrentBytes;
+            mRevalidatedTotalBytes = mInfoDelta.mTotalBytes;
+            mRevalidatedExtractOffset = mInfoDelta.mExtractOffset;
+        }
+        if (mRevalidatedFileName != null
+                && (mInfoDelta.mETag != null || mInfoDelta.mServerLastModified != null)) {
+            return true;
+        }
+
+        // Nothing to validate against; fall back to a full download
+        logDebug("can't revalidate; downloading again");
+        startReplacement();
+        return false;
+    }
+
+    /**
+     * The existing file may be stale, so download a new body as a fresh
+     * download would, into a file of its own. The existing file is only
+     * replaced once that body has fully arrived; see
+     * {@link #finishRevalidation()}.
+     */
+    private void startReplacement() {
+        mInfoDelta.mRevalidate = false;
+        mInfoDelta.mFileName = null;
+        mInfoDelta.mCurrentBytes = 0;
+        mInfoDelta.mTotalBytes = -1;
+        mInfoDelta.mExtractOffset = 0;
+    }
+
+    /**
+     * Settle a revalidation as this attempt finishes. A complete new body
+     * takes the place of the earlier file. Any other outcome, short of the
+     * download being canceled, leaves the earlier file and its successful
+     * status as they were.
+     */
+    private void finishRevalidation() {
+        final String previous = mRevalidatedFileName;
+        if (previous == null) {
+            return;
+        }
+        mRevalidatedFileName = null;
+        final boolean replaced = !previous.equals(mInfoDelta.mFileName);
+
+        if (Downloads.Impl.isStatusSuccess(mInfoDelta.mStatus)) {
+            if (!replaced) {
+                return;
+            }
+            // Keep the name of the earlier file when the new body is a file
+            // too; extraction directories are swapped instead
+            final File current = new File(mInfoDelta.mFileName);
+            if (current.isFile() && new File(previous).isFile()
+                    && current.renameTo(new File(previous))) {
+                mInfoDelta.mFileName = previous;
+            } else {
+                IoUtils.deleteRecursively(new File(previous));
+            }
+
+        } else if (mInfoDelta.mStatus == STATUS_CANCELED) {
+            // The download is going away; the partial body, if any, goes with
+            // it in finalizeDestination()
+            if (replaced) {
+                IoUtils.deleteRecursively(new File(previous));
+            }
+
+        } else {
+            logWarning("Revalidation failed with status "
+                    + Downloads.Impl.statusToString(mInfoDelta.mStatus)
+                    + "; keeping existing file");
+            if (replaced && mInfoDelta.mFileName != null) {
+                IoUtils.deleteRecursively(new File(mInfoDelta.mFileName));
+            }
+            mInfoDelta.mFileName = previous;
+            mInfoDelta.mCurrentBytes = mRevalidatedCurrentBytes;
+            mInfoDelta.mTotalBytes = mRevalidatedTotalBytes;
+            mInfoDelta.mExtractOffset = mRevalidatedExtractOffset;
+            mInfoDelta.mRevalidate = false;
+            mInfoDelta.mStatus = STATUS_SUCCESS;
+            mInfoDelta.mErrorMsg = null;
+        }
+    }
+
+    /**
+     * The server confirmed that the file from an earlier attempt is still
+     * current, so finish without transferring a body.
+     */
+    private void parseNotModifiedHeaders(HttpURLConnection conn) {
+        logDebug("not modified; reusing existing file");
+
+        // Servers may update validators on 304
+        final String eTag = conn.getHeaderField("ETag");
+        if (eTag != null) {
+            mInfoDelta.mETag = eTag;
+        }
+        final String lastModified = conn.getHeaderField("Last-Modified");
+        if (lastModified != null) {
+            mInfoDelta.mServerLastModified = lastModified;
+        }
+
+        mInfoDelta.mRevalidate = false;
+        mInfoDelta.mCurrentBytes = mRevalidatedCurrentBytes;
+        mInfoDelta.mTotalBytes = mRevalidatedTotalBytes;
+        mInfoDelta.mExtractOffset = mRevalidatedExtractOffset;
     }
 
     /**
@@ -673,7 +1894,11 @@ public class DownloadThread implements Runnable {
      * filename, size, and ETag.
      */
     private void parseOkHeaders(HttpURLConnection conn) throws StopRequestException {
-        if (mInfoDelta.mFileName == null) {
+        if (mInfoDelta.mFileName == null && isExtracting()) {
+            // Entries land in a directory of their own; there is no archive file
+            mInfoDelta.mFileName = createExtractionDir().getAbsolutePath();
+        } else if (mInfoDelta.mFileName == null
+                && mInfo.mStreamMode != Downloads.Impl.STREAM_MODE_CONSUMER) {
             final String contentDisposition = conn.getHeaderField("Content-Disposition");
             final String contentLocation = conn.getHeaderField("Content-Location");
 
@@ -691,14 +1916,18 @@ public class DownloadThread implements Runnable {
             mInfoDelta.mMimeType = StorageUtils.normalizeMimeType(conn.getContentType());
         }
 
+        // Decoded bodies have no known length unless we count the raw bytes
+        final boolean decodedLength = getContentEncoding(conn) != null && !isExtracting()
+                && !isPatching();
         final String transferEncoding = conn.getHeaderField("Transfer-Encoding");
-        if (transferEncoding == null) {
+        if (transferEncoding == null && !decodedLength) {
             mInfoDelta.mTotalBytes = getHeaderFieldLong(conn, "Content-Length", -1);
         } else {
             mInfoDelta.mTotalBytes = -1;
         }
 
         mInfoDelta.mETag = conn.getHeaderField("ETag");
+        mInfoDelta.mServerLastModified = conn.getHeaderField("Last-Modified");
 
         mInfoDelta.writeToDatabaseOrThrow();
 
@@ -725,7 +1954,8 @@ public class DownloadThread implements Runnable {
     /**
      * Add custom headers for this download to the HTTP request.
      */
-    private void addRequestHeaders(HttpURLConnection conn, boolean resuming) {
+    private void addRequestHeaders(HttpURLConnection conn, boolean resuming,
+            boolean revalidating) {
         for (Pair<String, String> header : mInfo.getHeaders()) {
             conn.addRequestProperty(header.first, header.second);
         }
@@ -736,12 +1966,24 @@ public class DownloadThread implements Runnable {
         }
 
         // Defeat transparent gzip compression, since it doesn't allow us to
-        // easily resume partial downloads.
-        conn.setRequestProperty("Accept-Encoding", "identity");
+        // easily resume partial downloads. When asked to decompress, we
+        // negotiate it ourselves and decode in the transfer path.
+        if ((mInfo.mTransform & Downloads.Impl.TRANSFORM_DECOMPRESS) != 0) {
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        } else {
+            conn.setRequestProperty("Accept-Encoding", "identity");
+        }
 
-        // Defeat connection reuse, since otherwise servers may continue
-        // streaming large downloads after cancelled.
-        conn.setRequestProperty("Connection", "close");
+        // Servers may continue streaming large downloads after cancelled, so
+        // only reuse connections to servers known to delimit their bodies,
+        // and tear down any connection whose body wasn't read to the end.
+        // Servers not seen yet are probed without asking to close, which
+        // that teardown makes safe. The engine client never reuses
+        // connections.
+        if (conn instanceof NioHttpConnection
+                || DownloadKeepAlive.shouldRequestClose(conn.getURL())) {
+            conn.setRequestProperty("Connection", "close");
+        }
 
         if (resuming) {
             if (mInfoDelta.mETag != null) {
@@ -749,6 +1991,15 @@ public class DownloadThread implements Runnable {
             }
             conn.addRequestProperty("Range", "bytes=" + mInfoDelta.mCurrentBytes + "-");
         }
+
+        if (revalidating) {
+            if (mInfoDelta.mETag != null) {
+                conn.addRequestProperty("If-None-Match", mInfoDelta.mETag);
+            }
+            if (mInfoDelta.mServerLastModified != null) {
+                conn.addRequestProperty("If-Modified-Since", mInfoDelta.mServerLastModified);
+            }
+        }
     }
 
     private void logDebug(String msg) {
@@ -771,6 +2022,20 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Carries a {@link StopRequestException} through stream APIs that only
+     * allow {@link IOException}.
+     */
+    private static class StopRequestIOException extends IOException {
+        public StopRequestIOException(StopRequestException e) {
+            super(e);
+        }
+
+        public StopRequestException getStopRequest() {
+            return (StopRequestException) getCause();
+        }
+    }
+
     /**
      * Return if given status is eligible to be treated as
      */
@@ -0,0 +1,198 @@
+package com.leaf.downloads;
+
+import android.util.Pair;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tracks how many bytes of a running download have landed in its file, so
+ * that {@link ProgressiveInputStream} can wait on write signals from
+ * {@link DownloadThread} instead of polling the database.
+ * <p>
+ * Watermarks are kept in a process-wide registry keyed by download ID, and
+ * survive across retries until the download reaches a final status.
+ */
+final class DownloadWatermark {
+
+    private static final HashMap<Long, DownloadWatermark> sWatermarks = new HashMap<>();
+
+    private final long mId;
+
+    private boolean mPublished;
+    private String mFileName;
+    private String mUri;
+    private String mETag;
+    private String mUserAgent;
+    private List<Pair<String, String>> mHeaders = new ArrayList<Pair<String, String>>();
+    private long mTotalBytes = -1;
+
+    /**
+     * Written for every chunk, so kept volatile and only followed by a
+     * notify when a reader is waiting.
+     */
+    private volatile long mCurrentBytes;
+    private volatile int mWaiters;
+
+    private boolean mFinished;
+    private boolean mSuccess;
+
+    private DownloadWatermark(long id) {
+        mId = id;
+    }
+
+    /**
+     * Return the watermark registered for the given download, creating it
+     * when neither side has asked for it yet.
+     */
+    public static DownloadWatermark obtain(long id) {
+        synchronized (sWatermarks) {
+            DownloadWatermark watermark = sWatermarks.get(id);
+            if (watermark == null) {
+                watermark = new DownloadWatermark(id);
+                sWatermarks.put(id, watermark);
+            }
+            return watermark;
+        }
+    }
+
+    /**
+     * Mark the given download as finished, waking any readers, and forget
+     * about it.
+     */
+    public static void release(long id, boolean success, String fileName, long currentBytes) {
+        final DownloadWatermark watermark;
+        synchronized (sWatermarks) {
+            watermark = sWatermarks.remove(id);
+        }
+        if (watermark != null) {
+            watermark.finish(success, fileName, currentBytes);
+        }
+    }
+
+    /**
+     * Forget the given watermark if no {@link DownloadThread} ever published
+     * to it, such as when a reader opened a download that already finished.
+     */
+    public static void forgetIfUnused(DownloadWatermark watermark) {
+        synchronized (sWatermarks) {
+            synchronized (watermark) {
+                if (!watermark.mPublished && sWatermarks.get(watermark.mId) == watermark) {
+                    sWatermarks.remove(watermark.mId);
+                }
+            }
+        }
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Publish the details readers need once the destination file is open.
+     */
+    public synchronized void publish(String fileName, String uri, String eTag,
+            Collection<Pair<String, String>> headers, String userAgent, long totalBytes,
+            long currentBytes) {
+        mPublished = true;
+        mFinished = false;
+        mSuccess = false;
+        mFileName = fileName;
+        mUri = uri;
+        mETag = eTag;
+        mHeaders = new ArrayList<Pair<String, String>>(headers);
+        mUserAgent = userAgent;
+        mTotalBytes = totalBytes;
+        mCurrentBytes = currentBytes;
+        notifyAll();
+    }
+
+    /**
+     * Signal that the file now holds at least {@code currentBytes}.
+     */
+    public void advance(long currentBytes) {
+        mCurrentBytes = currentBytes;
+        if (mWaiters > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized void finish(boolean success, String fileName, long currentBytes) {
+        mFinished = true;
+        mSuccess = success;
+        if (fileName != null) {
+            mFileName = fileName;
+        }
+        if (success) {
+            mCurrentBytes = currentBytes;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait up to {@code timeoutMillis} for the file to hold {@code wanted}
+     * bytes or for the download to finish.
+     *
+     * @return if the wait was satisfied before timing out.
+     */
+    public synchronized boolean await(long wanted, long timeoutMillis)
+            throws InterruptedIOException {
+        mWaiters++;
+        try {
+            if (mCurrentBytes < wanted && !mFinished) {
+                wait(timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            mWaiters--;
+        }
+        return mCurrentBytes >= wanted || mFinished;
+    }
+
+    public synchronized boolean isPublished() {
+        return mPublished;
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    public synchronized boolean isSuccess() {
+        return mSuccess;
+    }
+
+    public synchronized String getFileName() {
+        return mFileName;
+    }
+
+    public synchronized String getUri() {
+        return mUri;
+    }
+
+    public synchronized String getETag() {
+        return mETag;
+    }
+
+    public synchronized String getUserAgent() {
+        return mUserAgent;
+    }
+
+    public synchronized List<Pair<String, String>> getHeaders() {
+        return mHeaders;
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public long getCurrentBytes() {
+        return mCurrentBytes;
+    }
+}
@@ -49,6 +49,14 @@ public final class Downloads {
         public static final Uri ALL_DOWNLOADS_CONTENT_URI =
                 Uri.parse("content://" + AUTHORITIES + "/all_downloads");
 
+        /**
+         * The content URI notified, at most once per second, when the progress
+         * of any download changes. Progress alone no longer notifies the URIs
+         * above. This URI can only be observed, not queried.
+         */
+        public static final Uri PROGRESS_CONTENT_URI =
+                Uri.parse("content://" + AUTHORITIES + "/download_progress");
+
         /**
          * URI segment to access a publicly accessible downloaded file
          */
@@ -369,6 +377,132 @@ public final class Downloads {
 
         public static final String COLUMN_ALLOW_WRITE = "allow_write";
 
+        /**
+         * The column describing whether the downloaded bytes are also handed
+         * to an in-process consumer while transferring. Valid values are
+         * indicated by STREAM_MODE_* constants.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_STREAM_MODE = "stream_mode";
+
+        /**
+         * Default value for {@link #COLUMN_STREAM_MODE}: data is only written
+         * to the destination file.
+         */
+        public static final int STREAM_MODE_NONE = 0;
+
+        /**
+         * Data is only handed to the consumer stream, and never materialized
+         * as a file.
+         */
+        public static final int STREAM_MODE_CONSUMER = 1;
+
+        /**
+         * Data is handed to the consumer stream and also written to the
+         * destination file.
+         */
+        public static final int STREAM_MODE_TEE = 2;
+
+        /**
+         * The column holding a bitmask of transformations applied to the
+         * response body while it is transferred. Valid flags are indicated
+         * by TRANSFORM_* constants.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_TRANSFORM = "transform";
+
+        /**
+         * The directory that archives are extracted under when
+         * {@link #COLUMN_TRANSFORM} asks for extraction. Entries go into a new
+         * directory inside it, which is recorded in {@link #_DATA}.
+         * <P>Type: TEXT</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_EXTRACT_DIR = "extract_dir";
+
+        /**
+         * The archive offset just after the last completely extracted entry,
+         * where an interrupted extraction resumes.
+         * This column is only for internal use.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_EXTRACT_OFFSET = "extract_offset";
+
+        /**
+         * The absolute path of a local file that the response body patches.
+         * When set, the body is treated as a VCDIFF patch against this file,
+         * and the patched result is saved instead of the body itself.
+         * <P>Type: TEXT</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_PATCH_BASE = "patch_base";
+
+        /**
+         * The hex-encoded SHA-256 digest that the patched result must match,
+         * or null to skip verification.
+         * <P>Type: TEXT</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_PATCH_DIGEST = "patch_digest";
+
+        /**
+         * The Last-Modified header of the response that produced the file,
+         * sent back as If-Modified-Since when revalidating.
+         * This column is only for internal use.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_SERVER_LAST_MODIFIED = "server_last_modified";
+
+        /**
+         * Whether the next attempt should ask the server if the existing file
+         * is still current, instead of fetching the body again.
+         * This column is only for internal use.
+         * <P>Type: BOOLEAN</P>
+         */
+        public static final String COLUMN_REVALIDATE = "revalidate";
+
+        /**
+         * Whether the download should only run while the device is charging.
+         * <P>Type: BOOLEAN</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_REQUIRES_CHARGING = "requires_charging";
+
+        /**
+         * Whether the download should only run while the device is idle.
+         * <P>Type: BOOLEAN</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_REQUIRES_DEVICE_IDLE = "requires_device_idle";
+
+        /**
+         * Hash of {@link #COLUMN_URI} once normalized, indexed so downloads can be looked up by
+         * URI without a scan. Filled in by the provider.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Read</P>
+         */
+        public static final String COLUMN_URI_HASH = "uri_hash";
+
+        /**
+         * Negotiate gzip/deflate Content-Encoding with the server and decode
+         * the body before saving it.
+         */
+        public static final int TRANSFORM_DECOMPRESS = 1;
+
+        /**
+         * Extract the body as a zip archive under {@link #COLUMN_EXTRACT_DIR}
+         * instead of saving it.
+         */
+        public static final int TRANSFORM_EXTRACT_ZIP = 1 << 1;
+
+        /**
+         * Extract the body as a tar archive, optionally gzipped, under
+         * {@link #COLUMN_EXTRACT_DIR} instead of saving it.
+         */
+        public static final int TRANSFORM_EXTRACT_TAR = 1 << 2;
+
         /**
          * default value for {@link #COLUMN_LAST_UPDATESRC}.
          * This value is used when this column's value is not relevant.
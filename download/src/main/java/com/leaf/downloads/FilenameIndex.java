@@ -0,0 +1,245 @@
+package com.leaf.downloads;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks unique filenames for new downloads from an in-memory index of each
+ * destination directory, instead of probing the filesystem for every
+ * candidate. A directory is listed once, then kept up to date with the names
+ * claimed through here, and listed again after
+ * {@link Constants#FILENAME_INDEX_TTL} to pick up changes made elsewhere.
+ * <p>
+ * Claims lock only the directories involved, so downloads into different
+ * directories don't wait on each other. The filesystem stays the authority:
+ * a claimed name is created with {@link File#createNewFile()}, and when that
+ * finds the name taken after all, the index learns it and tries again. When
+ * the index keeps missing, names are probed on the filesystem one by one.
+ * <p>
+ * Names are compared without regard to case, since external storage is often
+ * case-insensitive.
+ */
+final class FilenameIndex {
+
+    private static final int STRIPES = 16;
+    private static final int MAX_DIRECTORIES = 8;
+    private static final int MAX_ATTEMPTS = 4;
+
+    private static final Object[] sStripes = new Object[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            sStripes[i] = new Object();
+        }
+    }
+
+    private static final Map<String, Directory> sDirectories =
+            new LinkedHashMap<String, Directory>(MAX_DIRECTORIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Directory> eldest) {
+                    return size() > MAX_DIRECTORIES;
+                }
+            };
+
+    /**
+     * Names known to exist in a single directory, folded to lower case.
+     * Guarded by the stripe of that directory.
+     */
+    private static final class Directory {
+        final File mDir;
+        Set<String> mNames;
+        long mLoadedAt;
+
+        Directory(File dir) {
+            mDir = dir;
+        }
+
+        void loadIfStale() {
+            final long now = SystemClock.elapsedRealtime();
+            if (mNames != null && now - mLoadedAt < Constants.FILENAME_INDEX_TTL) {
+                return;
+            }
+            final String[] names = mDir.list();
+            mNames = new HashSet<String>();
+            if (names != null) {
+                for (String name : names) {
+                    mNames.add(fold(name));
+                }
+            }
+            mLoadedAt = now;
+        }
+    }
+
+    private FilenameIndex() {
+    }
+
+    /**
+     * Create and return a new empty file in {@code target}, named
+     * {@code prefix + suffix} when available, or with a sequence number in
+     * between otherwise. A name is available when it isn't taken in any of
+     * {@code parents}, which must include {@code target}.
+     */
+    static File claim(File target, File[] parents, String prefix, String suffix)
+            throws IOException {
+        // Take stripes in a fixed order, so claims never deadlock
+        final int[] stripes = new int[parents.length];
+        for (int i = 0; i < parents.length; i++) {
+            stripes[i] = getStripe(parents[i]);
+        }
+        Arrays.sort(stripes);
+        return claimStriped(stripes, 0, target, parents, prefix, suffix);
+    }
+
+    private static File claimStriped(int[] stripes, int index, File target, File[] parents,
+            String prefix, String suffix) throws IOException {
+        if (index == stripes.length) {
+            return claimLocked(target, parents, prefix, suffix);
+        }
+        if (index > 0 && stripes[index] == stripes[index - 1]) {
+            // Already held
+            return claimStriped(stripes, index + 1, target, parents, prefix, suffix);
+        }
+        synchronized (sStripes[stripes[index]]) {
+            return claimStriped(stripes, index + 1, target, parents, prefix, suffix);
+        }
+    }
+
+    private static File claimLocked(File target, File[] parents, String prefix, String suffix)
+            throws IOException {
+        final Directory[] dirs = new Directory[parents.length];
+        Directory targetDir = null;
+        for (int i = 0; i < parents.length; i++) {
+            dirs[i] = getDirectory(parents[i]);
+            dirs[i].loadIfStale();
+            if (parents[i].equals(target)) {
+                targetDir = dirs[i];
+            }
+        }
+        if (targetDir == null) {
+            throw new IllegalArgumentException("Target isn't one of the parents");
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final String name = generateAvailableFilenameLocked(dirs, prefix, suffix, false);
+            final File file = new File(target, name);
+            if (file.createNewFile()) {
+                targetDir.mNames.add(fold(name));
+                return file;
+            }
+            // The index missed a file, maybe created behind our back; look at
+            // the directories afresh
+            for (Directory dir : dirs) {
+                dir.mLoadedAt = 0;
+                dir.loadIfStale();
+            }
+            targetDir.mNames.add(fold(name));
+        }
+
+        // The listings don't show what's there, as with a directory that
+        // can't be listed; ask the filesystem about every candidate instead
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final String name = generateAvailableFilenameLocked(dirs, prefix, suffix, true);
+            final File file = new File(target, name);
+            if (file.createNewFile()) {
+                targetDir.mNames.add(fold(name));
+                return file;
+            }
+        }
+        throw new IOException("Failed to claim an available filename");
+    }
+
+    private static Directory getDirectory(File dir) {
+        final String path = dir.getAbsolutePath();
+        synchronized (sDirectories) {
+            Directory directory = sDirectories.get(path);
+            if (directory == null) {
+                directory = new Directory(dir);
+                sDirectories.put(path, directory);
+            }
+            return directory;
+        }
+    }
+
+    private static int getStripe(File dir) {
+        return (dir.getAbsolutePath().hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isFilenameAvailableLocked(Directory[] dirs, String name,
+            boolean probe) {
+        if (Constants.RECOVERY_DIRECTORY.equalsIgnoreCase(name)) return false;
+
+        for (Directory dir : dirs) {
+            if (probe ? new File(dir.mDir, name).exists() : dir.mNames.contains(fold(name))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Check with the filesystem whether a name the index holds as taken is
+     * still taken, and forget it otherwise. Only done for the preferred name,
+     * so a deleted download's name is reused as it would be without the index.
+     */
+    private static boolean isFilenameStillTakenLocked(Directory[] dirs, String name) {
+        for (Directory dir : dirs) {
+            if (new File(dir.mDir, name).exists()) {
+                return true;
+            }
+        }
+        for (Directory dir : dirs) {
+            dir.mNames.remove(fold(name));
+        }
+        return false;
+    }
+
+    private static String generateAvailableFilenameLocked(Directory[] dirs, String prefix,
+            String suffix, boolean probe) throws IOException {
+        String name = prefix + suffix;
+        if (isFilenameAvailableLocked(dirs, name, probe)
+                || (!probe && !Constants.RECOVERY_DIRECTORY.equalsIgnoreCase(name)
+                && !isFilenameStillTakenLocked(dirs, name))) {
+            return name;
+        }
+
+        /*
+        * This number is used to generate partially randomized filenames to avoid
+        * collisions.
+        * It starts at 1.
+        * The next 9 iterations increment it by 1 at a time (up to 10).
+        * The next 9 iterations increment it by 1 to 10 (random) at a time.
+        * The next 9 iterations increment it by 1 to 100 (random) at a time.
+        * ... Up to the point where it increases by 100000000 at a time.
+        * (the maximum value that can be reached is 1000000000)
+        * As soon as a number is reached that generates a filename that doesn't exist,
+        *     that filename is used.
+        * If the filename coming in is [base].[ext], the generated filenames are
+        *     [base]-[sequence].[ext].
+        */
+        int sequence = 1;
+        for (int magnitude = 1; magnitude < 1000000000; magnitude *= 10) {
+            for (int iteration = 0; iteration < 9; ++iteration) {
+                name = prefix + Constants.FILENAME_SEQUENCE_SEPARATOR + sequence + suffix;
+                if (isFilenameAvailableLocked(dirs, name, probe)) {
+                    return name;
+                }
+                sequence += Helpers.sRandom.nextInt(magnitude) + 1;
+            }
+        }
+
+        throw new IOException("Failed to generate an available filename");
+    }
+}
@@ -20,11 +20,15 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -40,7 +44,20 @@ public class Helpers {
     private static final Pattern CONTENT_DISPOSITION_PATTERN =
             Pattern.compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
-    private static final Object sUniqueLock = new Object();
+    /** Outcome of a selection that passed validation */
+    private static final String SELECTION_VALID = "";
+
+    /**
+     * Outcomes of recent selection validations, either
+     * {@link #SELECTION_VALID} or the error message.
+     */
+    private static final Map<SelectionKey, String> sValidatedSelections =
+            new LinkedHashMap<SelectionKey, String>(Constants.SELECTION_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<SelectionKey, String> eldest) {
+                    return size() > Constants.SELECTION_CACHE_SIZE;
+                }
+            };
 
     private Helpers() {
     }
@@ -121,15 +138,8 @@ public class Helpers {
             }
         }
 
-        synchronized (sUniqueLock) {
-            name = generateAvailableFilenameLocked(parentTest, prefix, suffix);
-
-            // Claim this filename inside lock to prevent other threads from
-            // clobbering us. We're not paranoid enough to use O_EXCL.
-            final File file = new File(parent, name);
-            file.createNewFile();
-            return file.getAbsolutePath();
-        }
+        // Claim this filename to prevent other threads from clobbering us
+        return FilenameIndex.claim(parent, parentTest, prefix, suffix).getAbsolutePath();
     }
 
     private static String chooseFilename(String url, String hint, String contentDisposition,
@@ -279,53 +289,6 @@ public class Helpers {
         return extension;
     }
 
-    private static boolean isFilenameAvailableLocked(File[] parents, String name) {
-        if (Constants.RECOVERY_DIRECTORY.equalsIgnoreCase(name)) return false;
-
-        for (File parent : parents) {
-            if (new File(parent, name).exists()) {
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-    private static String generateAvailableFilenameLocked(
-            File[] parents, String prefix, String suffix) throws IOException {
-        String name = prefix + suffix;
-        if (isFilenameAvailableLocked(parents, name)) {
-            return name;
-        }
-
-        /*
-        * This number is used to generate partially randomized filenames to avoid
-        * collisions.
-        * It starts at 1.
-        * The next 9 iterations increment it by 1 at a time (up to 10).
-        * The next 9 iterations increment it by 1 to 10 (random) at a time.
-        * The next 9 iterations increment it by 1 to 100 (random) at a time.
-        * ... Up to the point where it increases by 100000000 at a time.
-        * (the maximum value that can be reached is 1000000000)
-        * As soon as a number is reached that generates a filename that doesn't exist,
-        *     that filename is used.
-        * If the filename coming in is [base].[ext], the generated filenames are
-        *     [base]-[sequence].[ext].
-        */
-        int sequence = 1;
-        for (int magnitude = 1; magnitude < 1000000000; magnitude *= 10) {
-            for (int iteration = 0; iteration < 9; ++iteration) {
-                name = prefix + Constants.FILENAME_SEQUENCE_SEPARATOR + sequence + suffix;
-                if (isFilenameAvailableLocked(parents, name)) {
-                    return name;
-                }
-                sequence += sRandom.nextInt(magnitude) + 1;
-            }
-        }
-
-        throw new IOException("Failed to generate an available filename");
-    }
-
     public static File getRunningDestinationDirectory(Context context, int destination)
             throws IOException {
         return getDestinationDirectory(context, destination, true);
@@ -360,28 +323,176 @@ public class Helpers {
         }
     }
 
+    /**
+     * Reduce a URI to the form downloads are looked up by: scheme and host in
+     * lower case, default port and fragment dropped, and an empty path made "/".
+     */
+    static String normalizeUri(String uri) {
+        final String trimmed = uri.trim();
+        final Uri parsed = Uri.parse(trimmed);
+        final String scheme = parsed.getScheme();
+        final String host = parsed.getHost();
+        if (scheme == null || host == null) {
+            return trimmed;
+        }
+
+        final String lowerScheme = scheme.toLowerCase(Locale.ROOT);
+        final StringBuilder builder = new StringBuilder(trimmed.length());
+        builder.append(lowerScheme).append("://");
+        final String userInfo = parsed.getEncodedUserInfo();
+        if (userInfo != null) {
+            builder.append(userInfo).append('@');
+        }
+        builder.append(host.toLowerCase(Locale.ROOT));
+        final int port = parsed.getPort();
+        if (port != -1 && !(port == 80 && "http".equals(lowerScheme))
+                && !(port == 443 && "https".equals(lowerScheme))) {
+            builder.append(':').append(port);
+        }
+        final String path = parsed.getEncodedPath();
+        builder.append(TextUtils.isEmpty(path) ? "/" : path);
+        final String query = parsed.getEncodedQuery();
+        if (query != null) {
+            builder.append('?').append(query);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the normalized form of the given URI,
+     * as stored in {@link Downloads.Impl#COLUMN_URI_HASH}.
+     */
+    static long hashUri(String uri) {
+        final String normalized = normalizeUri(uri);
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
     /**
      * Checks whether this looks like a legitimate selection parameter
      */
     public static void validateSelection(String selection, Set<String> allowedColumns) {
-        try {
-            if (selection == null || selection.isEmpty()) {
-                return;
-            }
-            Lexer lexer = new Lexer(selection, allowedColumns);
-            parseExpression(lexer);
-            if (lexer.currentToken() != Lexer.TOKEN_END) {
-                throw new IllegalArgumentException("syntax error");
+        if (selection == null || selection.isEmpty()) {
+            return;
+        }
+
+        String outcome = getValidatedSelection(selection, allowedColumns);
+        if (outcome == null) {
+            // Selections differing only in literals or spacing validate alike
+            final String normalized = normalizeSelection(selection);
+            if (normalized != null && !normalized.equals(selection)) {
+                outcome = getValidatedSelection(normalized, allowedColumns);
+            }
+            if (outcome == null) {
+                outcome = SELECTION_VALID;
+                try {
+                    Lexer lexer = new Lexer(selection, allowedColumns);
+                    parseExpression(lexer);
+                    if (lexer.currentToken() != Lexer.TOKEN_END) {
+                        throw new IllegalArgumentException("syntax error");
+                    }
+                } catch (RuntimeException ex) {
+                    outcome = String.valueOf(ex.getMessage());
+                }
+                if (normalized != null) {
+                    putValidatedSelection(normalized, allowedColumns, outcome);
+                }
             }
-        } catch (RuntimeException ex) {
+            putValidatedSelection(selection, allowedColumns, outcome);
+        }
+
+        if (!outcome.isEmpty()) {
             if (Constants.LOGV) {
-                Log.d(Constants.TAG, "invalid selection [" + selection + "] triggered " + ex);
-            } else if (false) {
-                Log.d(Constants.TAG, "invalid selection triggered " + ex);
+                Log.d(Constants.TAG, "invalid selection [" + selection + "] triggered " + outcome);
             }
-            throw ex;
+            throw new IllegalArgumentException(outcome);
+        }
+    }
+
+    private static final class SelectionKey {
+        final String mSelection;
+        final Set<String> mAllowedColumns;
+
+        SelectionKey(String selection, Set<String> allowedColumns) {
+            mSelection = selection;
+            mAllowedColumns = allowedColumns;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SelectionKey)) {
+                return false;
+            }
+            final SelectionKey other = (SelectionKey) o;
+            // Column sets are long-lived constants, so identity is enough
+            return mAllowedColumns == other.mAllowedColumns
+                    && mSelection.equals(other.mSelection);
+        }
+
+        @Override
+        public int hashCode() {
+            return mSelection.hashCode() * 31 + System.identityHashCode(mAllowedColumns);
+        }
+    }
+
+    private static String getValidatedSelection(String selection, Set<String> allowedColumns) {
+        synchronized (sValidatedSelections) {
+            return sValidatedSelections.get(new SelectionKey(selection, allowedColumns));
         }
+    }
 
+    private static void putValidatedSelection(String selection, Set<String> allowedColumns,
+            String outcome) {
+        synchronized (sValidatedSelections) {
+            sValidatedSelections.put(new SelectionKey(selection, allowedColumns), outcome);
+        }
+    }
+
+    /**
+     * Reduce a selection to its shape: quoted literals become {@code ?} and
+     * runs of spaces a single one, neither of which the lexer tells apart.
+     * Returns null when a literal is unterminated.
+     */
+    private static String normalizeSelection(String selection) {
+        final int length = selection.length();
+        final StringBuilder builder = new StringBuilder(length);
+        int offset = 0;
+        while (offset < length) {
+            final char c = selection.charAt(offset);
+            if (c == ' ') {
+                while (offset < length && selection.charAt(offset) == ' ') {
+                    ++offset;
+                }
+                if (builder.length() > 0 && offset < length) {
+                    builder.append(' ');
+                }
+            } else if (c == '\'') {
+                ++offset;
+                while (true) {
+                    if (offset == length) {
+                        return null;
+                    }
+                    if (selection.charAt(offset) == '\'') {
+                        if (offset + 1 < length && selection.charAt(offset + 1) == '\'') {
+                            offset += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    ++offset;
+                }
+                ++offset;
+                builder.append('?');
+            } else {
+                builder.append(c);
+                ++offset;
+            }
+        }
+        return builder.toString();
     }
 
     // expression <- ( expression ) | statement [AND_OR ( expression ) | statement] *
@@ -459,13 +570,12 @@ public class Helpers {
         private final Set<String> mAllowedColumns;
         private int mOffset = 0;
         private int mCurrentToken = TOKEN_START;
-        private final char[] mChars;
+        private final int mLength;
 
         public Lexer(String selection, Set<String> allowedColumns) {
             mSelection = selection;
             mAllowedColumns = allowedColumns;
-            mChars = new char[mSelection.length()];
-            mSelection.getChars(0, mChars.length, mChars, 0);
+            mLength = selection.length();
             advance();
         }
 
@@ -474,75 +584,76 @@ public class Helpers {
         }
 
         public void advance() {
-            char[] chars = mChars;
+            final String chars = mSelection;
 
             // consume whitespace
-            while (mOffset < chars.length && chars[mOffset] == ' ') {
+            while (mOffset < mLength && chars.charAt(mOffset) == ' ') {
                 ++mOffset;
             }
 
             // end of input
-            if (mOffset == chars.length) {
+            if (mOffset == mLength) {
                 mCurrentToken = TOKEN_END;
                 return;
             }
 
             // "("
-            if (chars[mOffset] == '(') {
+            if (chars.charAt(mOffset) == '(') {
                 ++mOffset;
                 mCurrentToken = TOKEN_OPEN_PAREN;
                 return;
             }
 
             // ")"
-            if (chars[mOffset] == ')') {
+            if (chars.charAt(mOffset) == ')') {
                 ++mOffset;
                 mCurrentToken = TOKEN_CLOSE_PAREN;
                 return;
             }
 
             // "?"
-            if (chars[mOffset] == '?') {
+            if (chars.charAt(mOffset) == '?') {
                 ++mOffset;
                 mCurrentToken = TOKEN_VALUE;
                 return;
             }
 
             // "=" and "=="
-            if (chars[mOffset] == '=') {
+            if (chars.charAt(mOffset) == '=') {
                 ++mOffset;
                 mCurrentToken = TOKEN_COMPARE;
-                if (mOffset < chars.length && chars[mOffset] == '=') {
+                if (mOffset < mLength && chars.charAt(mOffset) == '=') {
                     ++mOffset;
                 }
                 return;
             }
 
             // ">" and ">="
-            if (chars[mOffset] == '>') {
+            if (chars.charAt(mOffset) == '>') {
                 ++mOffset;
                 mCurrentToken = TOKEN_COMPARE;
-                if (mOffset < chars.length && chars[mOffset] == '=') {
+                if (mOffset < mLength && chars.charAt(mOffset) == '=') {
                     ++mOffset;
                 }
                 return;
             }
 
             // "<", "<=" and "<>"
-            if (chars[mOffset] == '<') {
+            if (chars.charAt(mOffset) == '<') {
                 ++mOffset;
                 mCurrentToken = TOKEN_COMPARE;
-                if (mOffset < chars.length && (chars[mOffset] == '=' || chars[mOffset] == '>')) {
+                if (mOffset < mLength
+                        && (chars.charAt(mOffset) == '=' || chars.charAt(mOffset) == '>')) {
                     ++mOffset;
                 }
                 return;
             }
 
             // "!="
-            if (chars[mOffset] == '!') {
+            if (chars.charAt(mOffset) == '!') {
                 ++mOffset;
                 mCurrentToken = TOKEN_COMPARE;
-                if (mOffset < chars.length && chars[mOffset] == '=') {
+                if (mOffset < mLength && chars.charAt(mOffset) == '=') {
                     ++mOffset;
                     return;
                 }
@@ -554,28 +665,27 @@ public class Helpers {
             //     and then recognize the individual words.
             // no attempt is made at discarding sequences of underscores with no alphanumeric
             //     characters, even though it's not clear that they'd be legal column names.
-            if (isIdentifierStart(chars[mOffset])) {
+            if (isIdentifierStart(chars.charAt(mOffset))) {
                 int startOffset = mOffset;
                 ++mOffset;
-                while (mOffset < chars.length && isIdentifierChar(chars[mOffset])) {
+                while (mOffset < mLength && isIdentifierChar(chars.charAt(mOffset))) {
                     ++mOffset;
                 }
-                String word = mSelection.substring(startOffset, mOffset);
                 if (mOffset - startOffset <= 4) {
-                    if (word.equals("IS")) {
+                    if (isWord(startOffset, "IS")) {
                         mCurrentToken = TOKEN_IS;
                         return;
                     }
-                    if (word.equals("OR") || word.equals("AND")) {
+                    if (isWord(startOffset, "OR") || isWord(startOffset, "AND")) {
                         mCurrentToken = TOKEN_AND_OR;
                         return;
                     }
-                    if (word.equals("NULL")) {
+                    if (isWord(startOffset, "NULL")) {
                         mCurrentToken = TOKEN_NULL;
                         return;
                     }
                 }
-                if (mAllowedColumns.contains(word)) {
+                if (mAllowedColumns.contains(mSelection.substring(startOffset, mOffset))) {
                     mCurrentToken = TOKEN_COLUMN;
                     return;
                 }
@@ -583,11 +693,11 @@ public class Helpers {
             }
 
             // quoted strings
-            if (chars[mOffset] == '\'') {
+            if (chars.charAt(mOffset) == '\'') {
                 ++mOffset;
-                while (mOffset < chars.length) {
-                    if (chars[mOffset] == '\'') {
-                        if (mOffset + 1 < chars.length && chars[mOffset + 1] == '\'') {
+                while (mOffset < mLength) {
+                    if (chars.charAt(mOffset) == '\'') {
+                        if (mOffset + 1 < mLength && chars.charAt(mOffset + 1) == '\'') {
                             ++mOffset;
                         } else {
                             break;
@@ -595,7 +705,7 @@ public class Helpers {
                     }
                     ++mOffset;
                 }
-                if (mOffset == chars.length) {
+                if (mOffset == mLength) {
                     throw new IllegalArgumentException("unterminated string");
                 }
                 ++mOffset;
@@ -604,7 +714,16 @@ public class Helpers {
             }
 
             // anything we don't recognize
-            throw new IllegalArgumentException("illegal character: " + chars[mOffset]);
+            throw new IllegalArgumentException("illegal character: " + chars.charAt(mOffset));
+        }
+
+        /**
+         * Returns whether the word ending at the current offset is the given
+         * keyword, without copying it out.
+         */
+        private boolean isWord(int startOffset, String keyword) {
+            return mOffset - startOffset == keyword.length()
+                    && mSelection.regionMatches(startOffset, keyword, 0, keyword.length());
         }
 
         private static final boolean isIdentifierStart(char c) {
@@ -0,0 +1,149 @@
+package com.leaf.downloads;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a destination file of known length through memory-mapped windows,
+ * instead of a stream. Writes are positional, so several writers can fill
+ * different ranges of the same file without seeking, and checkpoints only
+ * flush the windows dirtied since the last one.
+ * <p>
+ * The file's blocks are reserved up front, so that writing into a mapping
+ * can't run out of space; a store into a sparse page on a full disk faults
+ * the process instead of failing a write. Without posix_fallocate() there's
+ * no way to reserve them, so mapping is only offered from Lollipop on. When
+ * closed, the file is truncated back to the bytes known to be valid, so a
+ * later attempt using the stream path can keep appending.
+ */
+final class MappedFileWriter implements Closeable {
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final int mWindowSize;
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    /** Windows moved away from since the last {@link #force()}. */
+    private final List<MappedByteBuffer> mDirty = new ArrayList<MappedByteBuffer>();
+
+    private MappedFileWriter(RandomAccessFile file, long length, int windowSize) {
+        mFile = file;
+        mChannel = file.getChannel();
+        mLength = length;
+        mWindowSize = windowSize;
+    }
+
+    /**
+     * Open the given file for mapped writes of {@code length} bytes in
+     * total, of which the first {@code validBytes} are already written.
+     *
+     * @throws IOException if the file can't be reserved or mapped, for
+     *             instance because there isn't enough space, in which case
+     *             the caller should fall back to streaming
+     */
+    public static MappedFileWriter open(File file, long length, long validBytes)
+            throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            throw new IOException("Can't reserve space before Lollipop");
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            try {
+                Os.posix_fallocate(raf.getFD(), validBytes, length - validBytes);
+            } catch (ErrnoException e) {
+                throw new IOException("Failed to reserve " + length + " bytes: " + e);
+            }
+            raf.setLength(length);
+            final MappedFileWriter writer = new MappedFileWriter(raf, length,
+                    Constants.MAPPED_WINDOW_SIZE);
+            // Mapping fails here rather than partway through the transfer
+            writer.selectWindow(validBytes);
+            return writer;
+        } catch (IOException e) {
+            try {
+                raf.setLength(validBytes);
+            } catch (IOException ignored) {
+            }
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the given bytes at {@code position} in the file.
+     */
+    public synchronized void write(long position, byte[] buffer, int offset, int count)
+            throws IOException {
+        while (count > 0) {
+            selectWindow(position);
+            final int windowOffset = (int) (position - mWindowStart);
+            final int n = Math.min(count, mWindow.limit() - windowOffset);
+            mWindow.position(windowOffset);
+            mWindow.put(buffer, offset, n);
+            position += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    private void selectWindow(long position) throws IOException {
+        if (mWindow != null && position >= mWindowStart
+                && position < mWindowStart + mWindow.limit()) {
+            return;
+        }
+        if (position < 0 || position >= mLength) {
+            throw new IOException("Write at " + position + " outside of " + mLength + " bytes");
+        }
+        if (mWindow != null) {
+            mDirty.add(mWindow);
+        }
+        final long start = position - (position % mWindowSize);
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, start,
+                Math.min(mWindowSize, mLength - start));
+        mWindowStart = start;
+    }
+
+    /**
+     * Flush windows written since the last call to disk.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer window : mDirty) {
+            window.force();
+        }
+        mDirty.clear();
+        if (mWindow != null) {
+            mWindow.force();
+        }
+    }
+
+    /**
+     * Flush everything, and trim the file to the bytes known to be valid.
+     */
+    public synchronized void close(long validBytes) throws IOException {
+        try {
+            force();
+            mWindow = null;
+            mFile.setLength(validBytes);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(mLength);
+    }
+}
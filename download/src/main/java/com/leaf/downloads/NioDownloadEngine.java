@@ -0,0 +1,398 @@
+package com.leaf.downloads;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.leaf.downloads.Constants.TAG;
+
+/**
+ * Drives response bodies of many downloads from a single selector thread,
+ * instead of one blocked thread per download. Raw bytes are read as they
+ * arrive, and each batch is decoded and handed to its download on a small
+ * pool of workers, which write it out. A download gets no more bytes read
+ * until its previous batch is written, so a slow disk holds back the socket
+ * rather than piling up memory.
+ * <p>
+ * Downloads still set up their request and finish their attempt on the
+ * usual download executor; see {@link DownloadThread} for how an attempt is
+ * parked here in between. Selected at runtime through
+ * {@link DownloadManager#setDownloadEngine(int)}.
+ */
+final class NioDownloadEngine {
+
+    /**
+     * Receives the body of a single transfer. All methods except
+     * {@link #isStopRequested()} are called on a worker, one at a time.
+     */
+    interface Callback {
+        /**
+         * Consume the next body bytes.
+         */
+        void onData(byte[] buffer, int length) throws Exception;
+
+        /**
+         * Check the transfer may carry on, after {@link #isStopRequested()}
+         * returned true.
+         */
+        void onCheck() throws Exception;
+
+        /**
+         * Cheap check, made on the selector thread while the transfer is
+         * waiting for bytes, whether {@link #onCheck()} should be called.
+         */
+        boolean isStopRequested();
+
+        /**
+         * The body ended, or failed with the given error when not null. Called
+         * exactly once, on the thread handing the transfer over when it
+         * couldn't start.
+         */
+        void onFinished(Exception error);
+    }
+
+    private static final long TICK_MILLIS = 1000;
+
+    private static volatile boolean sEnabled;
+
+    private static NioDownloadEngine sInstance;
+
+    private final Object mLock = new Object();
+
+    private final ExecutorService mWorkers;
+
+    // Guarded by mLock
+    private Selector mSelector;
+    private Thread mThread;
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+
+    // Only touched by the selector thread
+    private final Set<Transfer> mTransfers = new HashSet<Transfer>();
+    private long mLastTick;
+
+    private static final class Transfer {
+        final NioHttpConnection mConn;
+        final Callback mCallback;
+        final long mTimeoutMillis;
+        SelectionKey mKey;
+        long mLastActivity;
+        boolean mBusy;
+        boolean mEndOfStream;
+        boolean mFinished;
+
+        Transfer(NioHttpConnection conn, Callback callback) {
+            mConn = conn;
+            mCallback = callback;
+            mTimeoutMillis = conn.getReadTimeout();
+        }
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static synchronized NioDownloadEngine getInstance() {
+        if (sInstance == null) {
+            sInstance = new NioDownloadEngine();
+        }
+        return sInstance;
+    }
+
+    private NioDownloadEngine() {
+        final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+                Constants.NIO_WORKER_THREADS, Constants.NIO_WORKER_THREADS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                try {
+                                    r.run();
+                                } finally {
+                                    BufferPool.releaseThreadCache();
+                                }
+                            }
+                        }, "DownloadWorker-" + (++mCount));
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+        mWorkers = workers;
+    }
+
+    /**
+     * Take over the body of the given connection, whose headers were read.
+     * The callback hears about every byte and the end of the body.
+     */
+    void transfer(NioHttpConnection conn, final Callback callback) {
+        final Transfer transfer = new Transfer(conn, callback);
+        final SocketChannel channel;
+        try {
+            channel = conn.configureNonBlocking();
+        } catch (IOException e) {
+            callback.onFinished(e);
+            return;
+        }
+
+        try {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transfer.mKey = channel.register(mSelector, 0, transfer);
+                    } catch (IOException e) {
+                        finish(transfer, e);
+                        return;
+                    }
+                    mTransfers.add(transfer);
+                    // Body bytes may have arrived along with the headers
+                    transfer.mBusy = true;
+                    transfer.mLastActivity = SystemClock.elapsedRealtime();
+                    dispatch(transfer);
+                }
+            });
+        } catch (IOException e) {
+            callback.onFinished(e);
+        }
+    }
+
+    /**
+     * Run the given task on the selector thread, starting it as needed.
+     */
+    private void post(Runnable task) throws IOException {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mSelector = Selector.open();
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        loop();
+                    }
+                }, "DownloadSelector");
+                mThread.start();
+            }
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+    }
+
+    private void postQuietly(Runnable task) {
+        try {
+            post(task);
+        } catch (IOException e) {
+            // Only opening a new selector fails, which never happens while
+            // transfers are registered
+            Log.wtf(TAG, "Failed to reach selector", e);
+        }
+    }
+
+    private void loop() {
+        final Selector selector;
+        synchronized (mLock) {
+            selector = mSelector;
+        }
+        while (true) {
+            while (true) {
+                final Runnable task;
+                synchronized (mLock) {
+                    task = mTasks.poll();
+                    if (task == null && mTransfers.isEmpty()) {
+                        // Nothing left to drive; a later transfer starts afresh
+                        mThread = null;
+                        mSelector = null;
+                        try {
+                            selector.close();
+                        } catch (IOException ignored) {
+                        }
+                        return;
+                    }
+                }
+                if (task == null) {
+                    break;
+                }
+                task.run();
+            }
+
+            try {
+                selector.select(TICK_MILLIS);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to select", e);
+            }
+
+            final long now = SystemClock.elapsedRealtime();
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                final Transfer transfer = (Transfer) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    onReadable(transfer, now);
+                }
+            }
+
+            if (now - mLastTick >= TICK_MILLIS) {
+                mLastTick = now;
+                onTick(now);
+            }
+        }
+    }
+
+    private void onReadable(Transfer transfer, long now) {
+        if (transfer.mBusy || transfer.mFinished) {
+            return;
+        }
+        final int len;
+        try {
+            len = transfer.mConn.fillNonBlocking();
+        } catch (IOException e) {
+            finish(transfer, e);
+            return;
+        }
+        if (len == 0) {
+            return;
+        }
+        transfer.mLastActivity = now;
+        transfer.mEndOfStream = (len == -1);
+        transfer.mBusy = true;
+        transfer.mKey.interestOps(0);
+        dispatch(transfer);
+    }
+
+    /**
+     * Look after transfers waiting for bytes: hand them to their download
+     * when it may have to stop, and fail those the server went quiet on.
+     */
+    private void onTick(long now) {
+        for (final Transfer transfer : mTransfers) {
+            if (transfer.mBusy || transfer.mFinished) {
+                continue;
+            }
+            if (!transfer.mKey.isValid()) {
+                // Closed under us, for instance when the network changed
+                finish(transfer, new IOException("Connection closed"));
+            } else if (transfer.mCallback.isStopRequested()) {
+                transfer.mBusy = true;
+                transfer.mKey.interestOps(0);
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            transfer.mCallback.onCheck();
+                        } catch (Exception e) {
+                            finish(transfer, e);
+                            return;
+                        }
+                        resume(transfer);
+                    }
+                });
+            } else if (transfer.mTimeoutMillis > 0
+                    && now - transfer.mLastActivity > transfer.mTimeoutMillis) {
+                finish(transfer, new SocketTimeoutException("Read timed out"));
+            }
+        }
+    }
+
+    /**
+     * Decode and deliver everything buffered for the given transfer on a
+     * worker, then either finish it or wait for more bytes.
+     */
+    private void dispatch(final Transfer transfer) {
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                final NioHttpConnection conn = transfer.mConn;
+                final byte[] buffer = BufferPool.acquire(Constants.BUFFER_SIZE);
+                try {
+                    int len;
+                    while ((len = conn.readBody(buffer, 0, buffer.length)) > 0) {
+                        transfer.mCallback.onData(buffer, len);
+                    }
+                    if (transfer.mEndOfStream) {
+                        conn.onEndOfStream();
+                    }
+                } catch (Exception e) {
+                    finish(transfer, e);
+                    return;
+                } finally {
+                    BufferPool.release(buffer);
+                }
+
+                if (conn.isBodyFinished()) {
+                    finish(transfer, null);
+                } else {
+                    resume(transfer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start reading for the given transfer again, from any thread.
+     */
+    private void resume(final Transfer transfer) {
+        postQuietly(new Runnable() {
+            @Override
+            public void run() {
+                if (transfer.mFinished) {
+                    return;
+                }
+                transfer.mBusy = false;
+                transfer.mLastActivity = SystemClock.elapsedRealtime();
+                if (transfer.mKey.isValid()) {
+                    transfer.mKey.interestOps(SelectionKey.OP_READ);
+                } else {
+                    finish(transfer, new IOException("Connection closed"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop driving the given transfer and report how it ended, from any
+     * thread. Only the first call for a transfer counts.
+     */
+    private void finish(final Transfer transfer, final Exception error) {
+        postQuietly(new Runnable() {
+            @Override
+            public void run() {
+                if (transfer.mFinished) {
+                    return;
+                }
+                transfer.mFinished = true;
+                mTransfers.remove(transfer);
+                if (transfer.mKey != null) {
+                    transfer.mKey.cancel();
+                }
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        transfer.mCallback.onFinished(error);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,565 @@
+package com.leaf.downloads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal HTTP/1.1 client over a {@link SocketChannel}, used by the
+ * {@link NioDownloadEngine}. The request and response headers are exchanged
+ * in blocking mode, like any {@link HttpURLConnection}, after which the body
+ * can either be read through {@link #getInputStream()}, or handed to a
+ * selector with {@link #configureNonBlocking()} and decoded as raw bytes
+ * arrive.
+ * <p>
+ * Only covers what downloads need: plain {@code http} without a proxy, one
+ * request per connection, and bodies delimited by length, chunked encoding
+ * or connection close.
+ */
+final class NioHttpConnection extends HttpURLConnection {
+
+    private static final int BODY_LENGTH = 1;
+    private static final int BODY_CLOSE = 2;
+    private static final int BODY_CHUNK_SIZE = 3;
+    private static final int BODY_CHUNK_DATA = 4;
+    private static final int BODY_CHUNK_END = 5;
+    private static final int BODY_TRAILER = 6;
+    private static final int BODY_DONE = 7;
+
+    /**
+     * Request headers, kept here since older releases don't keep them in
+     * {@link java.net.URLConnection} itself.
+     */
+    private final List<String> mRequestKeys = new ArrayList<String>();
+    private final List<String> mRequestValues = new ArrayList<String>();
+
+    private SocketChannel mChannel;
+    private InputStream mSocketIn;
+
+    /** Bytes read from the socket and not yet parsed, in read mode. */
+    private final ByteBuffer mRaw = ByteBuffer.allocate(Constants.BUFFER_SIZE);
+
+    private boolean mHeadersRead;
+    private String mStatusLine;
+    private final List<String> mHeaderKeys = new ArrayList<String>();
+    private final List<String> mHeaderValues = new ArrayList<String>();
+
+    private int mBodyState;
+    private long mBodyRemaining;
+
+    NioHttpConnection(URL url) {
+        super(url);
+        mRaw.flip();
+    }
+
+    /**
+     * Return whether the given URL can be fetched by this client.
+     */
+    static boolean canHandle(URL url) {
+        if (!"http".equalsIgnoreCase(url.getProtocol())) {
+            return false;
+        }
+        final ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return true;
+        }
+        try {
+            for (Proxy proxy : selector.select(url.toURI())) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    return false;
+                }
+            }
+        } catch (URISyntaxException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+
+        final StringBuilder request = new StringBuilder();
+        final String file = url.getFile();
+        request.append("GET ").append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(getHostHeader(url)).append("\r\n");
+        for (int i = 0; i < mRequestKeys.size(); i++) {
+            request.append(mRequestKeys.get(i)).append(": ").append(mRequestValues.get(i))
+                    .append("\r\n");
+        }
+        request.append("\r\n");
+
+        final int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+        mChannel = SocketChannel.open();
+        try {
+            mChannel.socket().connect(new InetSocketAddress(getHostAddress(url), port),
+                    getConnectTimeout());
+            mChannel.socket().setSoTimeout(getReadTimeout());
+            mSocketIn = mChannel.socket().getInputStream();
+
+            final ByteBuffer out = ByteBuffer.wrap(request.toString().getBytes("ISO-8859-1"));
+            while (out.hasRemaining()) {
+                mChannel.write(out);
+            }
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+        connected = true;
+    }
+
+    /**
+     * Return the Host header for the given URL, with IPv6 literals in
+     * brackets, and the port unless it's the default.
+     */
+    static String getHostHeader(URL url) {
+        final String host = getHostAddress(url);
+        final StringBuilder header = new StringBuilder();
+        if (host.indexOf(':') != -1) {
+            header.append('[').append(host).append(']');
+        } else {
+            header.append(host);
+        }
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            header.append(':').append(url.getPort());
+        }
+        return header.toString();
+    }
+
+    /**
+     * Return the host of the given URL without any brackets around an IPv6
+     * literal.
+     */
+    private static String getHostAddress(URL url) {
+        final String host = url.getHost();
+        if (host.length() > 1 && host.charAt(0) == '[' && host.charAt(host.length() - 1) == ']') {
+            return host.substring(1, host.length() - 1);
+        }
+        return host;
+    }
+
+    @Override
+    public void addRequestProperty(String field, String newValue) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        if (field == null) {
+            throw new NullPointerException("field == null");
+        }
+        mRequestKeys.add(field);
+        mRequestValues.add(newValue);
+    }
+
+    @Override
+    public void setRequestProperty(String field, String newValue) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        if (field == null) {
+            throw new NullPointerException("field == null");
+        }
+        for (int i = mRequestKeys.size() - 1; i >= 0; i--) {
+            if (mRequestKeys.get(i).equalsIgnoreCase(field)) {
+                mRequestKeys.remove(i);
+                mRequestValues.remove(i);
+            }
+        }
+        mRequestKeys.add(field);
+        mRequestValues.add(newValue);
+    }
+
+    @Override
+    public String getRequestProperty(String field) {
+        for (int i = mRequestKeys.size() - 1; i >= 0; i--) {
+            if (mRequestKeys.get(i).equalsIgnoreCase(field)) {
+                return mRequestValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        final Map<String, List<String>> properties = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < mRequestKeys.size(); i++) {
+            List<String> values = properties.get(mRequestKeys.get(i));
+            if (values == null) {
+                values = new ArrayList<String>();
+                properties.put(mRequestKeys.get(i), values);
+            }
+            values.add(mRequestValues.get(i));
+        }
+        return properties;
+    }
+
+    @Override
+    public void disconnect() {
+        final SocketChannel channel = mChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        readHeaders();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        readHeaders();
+        return responseMessage;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        if (!readHeadersQuietly()) {
+            return null;
+        }
+        for (int i = mHeaderKeys.size() - 1; i >= 0; i--) {
+            if (mHeaderKeys.get(i).equalsIgnoreCase(name)) {
+                return mHeaderValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        if (!readHeadersQuietly() || n <= 0 || n > mHeaderKeys.size()) {
+            return null;
+        }
+        return mHeaderKeys.get(n - 1);
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        if (!readHeadersQuietly() || n < 0 || n > mHeaderKeys.size()) {
+            return null;
+        }
+        return (n == 0) ? mStatusLine : mHeaderValues.get(n - 1);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        final Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+        if (!readHeadersQuietly()) {
+            return fields;
+        }
+        fields.put(null, Collections.singletonList(mStatusLine));
+        for (int i = 0; i < mHeaderKeys.size(); i++) {
+            List<String> values = fields.get(mHeaderKeys.get(i));
+            if (values == null) {
+                values = new ArrayList<String>();
+                fields.put(mHeaderKeys.get(i), values);
+            }
+            values.add(mHeaderValues.get(i));
+        }
+        return fields;
+    }
+
+    /**
+     * Return the body, read in blocking mode.
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        readHeaders();
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                final byte[] single = new byte[1];
+                final int len = read(single, 0, 1);
+                return (len == -1) ? -1 : (single[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                while (true) {
+                    final int len = readBody(buffer, offset, count);
+                    if (len > 0 || isBodyFinished()) {
+                        return (len > 0) ? len : -1;
+                    }
+                    if (fill() == -1) {
+                        onEndOfStream();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                disconnect();
+            }
+        };
+    }
+
+    private boolean readHeadersQuietly() {
+        try {
+            readHeaders();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void readHeaders() throws IOException {
+        if (mHeadersRead) {
+            return;
+        }
+        connect();
+
+        // Skip any interim 1xx responses
+        do {
+            mStatusLine = readHeaderLine();
+            if (!mStatusLine.startsWith("HTTP/")) {
+                throw new ProtocolException("Unexpected status line: " + mStatusLine);
+            }
+            final int codeStart = mStatusLine.indexOf(' ') + 1;
+            int codeEnd = mStatusLine.indexOf(' ', codeStart);
+            if (codeEnd == -1) {
+                codeEnd = mStatusLine.length();
+            }
+            try {
+                responseCode = Integer.parseInt(mStatusLine.substring(codeStart, codeEnd));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected status line: " + mStatusLine);
+            }
+            responseMessage = (codeEnd < mStatusLine.length())
+                    ? mStatusLine.substring(codeEnd + 1) : "";
+
+            mHeaderKeys.clear();
+            mHeaderValues.clear();
+            String line;
+            while (!(line = readHeaderLine()).isEmpty()) {
+                final int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new ProtocolException("Malformed header line");
+                }
+                mHeaderKeys.add(line.substring(0, colon).trim());
+                mHeaderValues.add(line.substring(colon + 1).trim());
+            }
+        } while (responseCode >= 100 && responseCode < 200);
+        mHeadersRead = true;
+
+        if (responseCode == HTTP_NO_CONTENT || responseCode == HTTP_NOT_MODIFIED) {
+            mBodyState = BODY_DONE;
+        } else if ("chunked".equalsIgnoreCase(getHeaderField("Transfer-Encoding"))) {
+            mBodyState = BODY_CHUNK_SIZE;
+        } else if (getHeaderField("Content-Length") != null) {
+            try {
+                mBodyRemaining = Long.parseLong(getHeaderField("Content-Length"));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Malformed Content-Length");
+            }
+            mBodyState = (mBodyRemaining > 0) ? BODY_LENGTH : BODY_DONE;
+        } else {
+            mBodyState = BODY_CLOSE;
+        }
+    }
+
+    private String readHeaderLine() throws IOException {
+        String line;
+        while ((line = readLine()) == null) {
+            if (fill() == -1) {
+                throw new ProtocolException("Unexpected end of headers");
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Take one line out of the buffered bytes, or return null when a whole
+     * line hasn't arrived yet.
+     */
+    private String readLine() throws IOException {
+        final byte[] array = mRaw.array();
+        final int start = mRaw.arrayOffset() + mRaw.position();
+        final int end = mRaw.arrayOffset() + mRaw.limit();
+        for (int i = start; i < end; i++) {
+            if (array[i] == '\n') {
+                int lineEnd = i;
+                if (lineEnd > start && array[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                final String line = new String(array, start, lineEnd - start, "ISO-8859-1");
+                mRaw.position(mRaw.position() + (i + 1 - start));
+                return line;
+            }
+        }
+        if (mRaw.remaining() == mRaw.capacity()) {
+            throw new ProtocolException("Line too long");
+        }
+        return null;
+    }
+
+    /**
+     * Read more raw bytes in blocking mode.
+     *
+     * @return the bytes read, or -1 at end of stream
+     */
+    private int fill() throws IOException {
+        mRaw.compact();
+        try {
+            checkRoom();
+            final int len = mSocketIn.read(mRaw.array(), mRaw.arrayOffset() + mRaw.position(),
+                    mRaw.remaining());
+            if (len > 0) {
+                mRaw.position(mRaw.position() + len);
+            }
+            return len;
+        } finally {
+            mRaw.flip();
+        }
+    }
+
+    /**
+     * Fail when the raw bytes fill the buffer without completing a line the
+     * parser is waiting for, since reading could never make progress. Called
+     * with the buffer in write mode.
+     */
+    private void checkRoom() throws ProtocolException {
+        if (!mRaw.hasRemaining()) {
+            throw new ProtocolException("Line too long");
+        }
+    }
+
+    /**
+     * Switch to non-blocking mode once the headers are read, so the body can
+     * be driven by a selector.
+     */
+    SocketChannel configureNonBlocking() throws IOException {
+        readHeaders();
+        mChannel.configureBlocking(false);
+        return mChannel;
+    }
+
+    /**
+     * Read more raw bytes in non-blocking mode.
+     *
+     * @return the bytes read, which may be 0, or -1 at end of stream
+     */
+    int fillNonBlocking() throws IOException {
+        mRaw.compact();
+        try {
+            checkRoom();
+            return mChannel.read(mRaw);
+        } finally {
+            mRaw.flip();
+        }
+    }
+
+    /**
+     * Decode body bytes out of the raw bytes read so far, without any I/O.
+     *
+     * @return the body bytes decoded, which is 0 when more raw bytes are
+     *         needed or the body is finished
+     */
+    int readBody(byte[] buffer, int offset, int count) throws IOException {
+        int total = 0;
+        while (total < count && mBodyState != BODY_DONE) {
+            final String line;
+            switch (mBodyState) {
+            case BODY_LENGTH:
+            case BODY_CLOSE:
+            case BODY_CHUNK_DATA:
+                long len = Math.min(mRaw.remaining(), count - total);
+                if (mBodyState != BODY_CLOSE) {
+                    len = Math.min(len, mBodyRemaining);
+                }
+                if (len == 0) {
+                    return total;
+                }
+                mRaw.get(buffer, offset + total, (int) len);
+                total += len;
+                if (mBodyState != BODY_CLOSE) {
+                    mBodyRemaining -= len;
+                    if (mBodyRemaining == 0) {
+                        mBodyState = (mBodyState == BODY_LENGTH) ? BODY_DONE : BODY_CHUNK_END;
+                    }
+                }
+                break;
+
+            case BODY_CHUNK_SIZE:
+                if ((line = readLine()) == null) {
+                    return total;
+                }
+                final int extension = line.indexOf(';');
+                try {
+                    mBodyRemaining = Long.parseLong(
+                            (extension != -1 ? line.substring(0, extension) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Malformed chunk size");
+                }
+                mBodyState = (mBodyRemaining > 0) ? BODY_CHUNK_DATA : BODY_TRAILER;
+                break;
+
+            case BODY_CHUNK_END:
+                if ((line = readLine()) == null) {
+                    return total;
+                }
+                if (!line.isEmpty()) {
+                    throw new ProtocolException("Malformed chunk end");
+                }
+                mBodyState = BODY_CHUNK_SIZE;
+                break;
+
+            case BODY_TRAILER:
+                if ((line = readLine()) == null) {
+                    return total;
+                }
+                if (line.isEmpty()) {
+                    mBodyState = BODY_DONE;
+                }
+                break;
+
+            default:
+                return total;
+            }
+        }
+        return total;
+    }
+
+    boolean isBodyFinished() {
+        return mBodyState == BODY_DONE;
+    }
+
+    /**
+     * Called when the server closed the connection, which only ends the body
+     * when it isn't otherwise delimited.
+     */
+    void onEndOfStream() throws IOException {
+        if (mBodyState == BODY_CLOSE) {
+            mBodyState = BODY_DONE;
+        } else if (mBodyState != BODY_DONE) {
+            throw new ProtocolException("Unexpected end of body");
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.leaf.downloads;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decouples network reads from disk writes. The download thread fills
+ * chunks from a bounded ring and hands them over, while a writer thread
+ * drains them to the destination and runs checkpoint syncs, so a slow flash
+ * write or fsync doesn't stall the socket. When every chunk is waiting to be
+ * written, the reader blocks until one frees up.
+ */
+final class PipelinedWriter {
+
+    /**
+     * Destination of the written bytes.
+     */
+    interface Sink {
+        /**
+         * Write the given bytes at {@code position}, which always follows
+         * the previous write.
+         */
+        void write(long position, byte[] buffer, int offset, int count) throws IOException;
+
+        /**
+         * Make everything written so far durable.
+         */
+        void sync() throws IOException;
+    }
+
+    static final class Chunk {
+        final byte[] buffer;
+        int length;
+        long position;
+
+        Chunk(byte[] buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static final Chunk END = new Chunk(new byte[0]);
+
+    private final Sink mSink;
+    private final DownloadWatermark mWatermark;
+
+    private final BlockingQueue<Chunk> mFree;
+    private final BlockingQueue<Chunk> mFilled;
+    private final Thread mThread;
+
+    private volatile long mWrittenBytes;
+    private volatile long mDurableBytes;
+    private volatile boolean mCheckpointRequested;
+    private volatile IOException mError;
+
+    // Only touched by the writer thread, read after it finished
+    private long mSyncMillis;
+
+    // Only touched by the reading thread
+    private long mBackpressureMillis;
+    private int mPeakOccupancy;
+    private long mOccupancySum;
+    private long mOccupancySamples;
+
+    /**
+     * Start a writer for the given sink, which already holds
+     * {@code startBytes} valid bytes. The watermark, if any, is advanced as
+     * bytes reach the sink.
+     */
+    PipelinedWriter(long id, Sink sink, DownloadWatermark watermark, long startBytes) {
+        mSink = sink;
+        mWatermark = watermark;
+        mWrittenBytes = startBytes;
+        mDurableBytes = startBytes;
+
+        mFree = new ArrayBlockingQueue<Chunk>(Constants.PIPELINE_CHUNKS);
+        mFilled = new ArrayBlockingQueue<Chunk>(Constants.PIPELINE_CHUNKS + 1);
+        // A shallower ring when the pool is short, rather than waiting for
+        // each chunk in turn
+        for (byte[] buffer : BufferPool.acquireUpTo(Constants.PIPELINE_CHUNK_SIZE,
+                Constants.PIPELINE_CHUNKS)) {
+            mFree.add(new Chunk(buffer));
+        }
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                drain();
+            }
+        }, "DownloadWriter-" + id);
+        mThread.start();
+    }
+
+    /**
+     * Return an empty chunk to read into, blocking while all of them are
+     * waiting to be written.
+     *
+     * @throws IOException if an earlier write failed
+     */
+    Chunk obtain() throws IOException {
+        checkError();
+        Chunk chunk = mFree.poll();
+        if (chunk == null) {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                chunk = mFree.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            mBackpressureMillis += SystemClock.elapsedRealtime() - start;
+            checkError();
+        }
+        return chunk;
+    }
+
+    /**
+     * Hand a filled chunk over to be written at {@code position}.
+     */
+    void submit(Chunk chunk, int length, long position) throws IOException {
+        chunk.length = length;
+        chunk.position = position;
+        try {
+            mFilled.put(chunk);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        final int occupancy = mFilled.size();
+        mPeakOccupancy = Math.max(mPeakOccupancy, occupancy);
+        mOccupancySum += occupancy;
+        mOccupancySamples++;
+    }
+
+    /**
+     * Give back a chunk that turned out not to be needed.
+     */
+    void recycle(Chunk chunk) {
+        mFree.offer(chunk);
+    }
+
+    /**
+     * Ask the writer to sync once it has written everything submitted so
+     * far, without waiting for it.
+     */
+    void requestCheckpoint() {
+        mCheckpointRequested = true;
+    }
+
+    /**
+     * Return the bytes known to be durable as of the last checkpoint.
+     */
+    long getDurableBytes() {
+        return mDurableBytes;
+    }
+
+    /**
+     * Return the bytes that reached the sink, which is less than the bytes
+     * submitted when a write failed.
+     */
+    long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * Write and sync everything submitted, stop the writer, and give the
+     * chunks back to the {@link BufferPool}.
+     *
+     * @throws IOException if any write failed
+     */
+    void finish() throws IOException {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mFilled.put(END);
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Chunk chunk;
+        while ((chunk = mFree.poll()) != null) {
+            BufferPool.release(chunk.buffer);
+        }
+        checkError();
+    }
+
+    /**
+     * Add timings and occupancy to the given metrics, once finished.
+     */
+    void reportMetrics(DownloadMetrics metrics) {
+        metrics.addSyncTime(mSyncMillis);
+        metrics.addBackpressureTime(mBackpressureMillis);
+        metrics.addBufferOccupancy(mPeakOccupancy, mOccupancySum, mOccupancySamples);
+    }
+
+    private void checkError() throws IOException {
+        final IOException error = mError;
+        if (error != null) {
+            throw new IOException("Failed writing: " + error, error);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final Chunk chunk;
+            try {
+                chunk = mFilled.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (chunk == END) {
+                break;
+            }
+
+            if (mError == null) {
+                try {
+                    mSink.write(chunk.position, chunk.buffer, 0, chunk.length);
+                    mWrittenBytes = chunk.position + chunk.length;
+                    if (mWatermark != null) {
+                        mWatermark.advance(mWrittenBytes);
+                    }
+                    if (mCheckpointRequested) {
+                        mCheckpointRequested = false;
+                        sync();
+                    }
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+            mFree.offer(chunk);
+        }
+
+        if (mError == null) {
+            try {
+                sync();
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        mSink.sync();
+        mSyncMillis += SystemClock.elapsedRealtime() - start;
+        mDurableBytes = mWrittenBytes;
+    }
+}
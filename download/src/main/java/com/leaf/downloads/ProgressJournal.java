@@ -0,0 +1,265 @@
+package com.leaf.downloads;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.leaf.downloads.utils.IoUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.leaf.downloads.Constants.TAG;
+
+/**
+ * Memory-mapped log of download progress, letting downloads record their
+ * progress often without a sync or database write each time.
+ * <p>
+ * Each record names a segment of a download's file, from the offset last
+ * made durable to the bytes written since, with a checksum of that segment.
+ * Records are written into the mapping only, which the kernel keeps when the
+ * process dies. At startup {@link #replay(Context)} follows each download's
+ * segments from its resume point in the database, accepting those whose
+ * bytes on disk still match, and moves the resume point past them. Downloads
+ * still sync and write their progress to the database now and then; see
+ * {@link Constants#PROGRESS_COMPACT_TIME}.
+ * <p>
+ * The log is a ring, so old records are overwritten once it's full; a
+ * segment that's lost just means resuming from an earlier point.
+ */
+final class ProgressJournal {
+
+    private static final String FILE_NAME = "download_progress.journal";
+
+    // id, start, end, segment checksum, record checksum
+    private static final int RECORD_SIZE = 8 + 8 + 8 + 4 + 4;
+
+    private static final Object sLock = new Object();
+
+    // Guarded by sLock
+    private static MappedByteBuffer sBuffer;
+    private static int sPosition;
+    private static boolean sReplayed;
+
+    private static final class Record {
+        final long mId;
+        final long mStart;
+        final long mEnd;
+        final int mChecksum;
+
+        Record(long id, long start, long end, int checksum) {
+            mId = id;
+            mStart = start;
+            mEnd = end;
+            mChecksum = checksum;
+        }
+    }
+
+    private ProgressJournal() {
+    }
+
+    /**
+     * Move the resume points of interrupted downloads past the segments
+     * recorded since they were last written to the database, then start the
+     * journal afresh. Only done once per process, before any download starts;
+     * until then {@link #append} refuses records.
+     */
+    static void replay(Context context) {
+        synchronized (sLock) {
+            if (sReplayed) {
+                return;
+            }
+            sReplayed = true;
+
+            try {
+                final RandomAccessFile file = new RandomAccessFile(
+                        new File(context.getFilesDir(), FILE_NAME), "rw");
+                try {
+                    file.setLength(Constants.PROGRESS_JOURNAL_SIZE);
+                    sBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                            Constants.PROGRESS_JOURNAL_SIZE);
+                } finally {
+                    IoUtils.closeQuietly(file);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Progress journal unavailable", e);
+                sBuffer = null;
+                return;
+            }
+
+            final Map<Long, List<Record>> records = readRecords();
+            if (!records.isEmpty()) {
+                applyRecords(context.getContentResolver(), records);
+            }
+
+            for (int i = 0; i < Constants.PROGRESS_JOURNAL_SIZE; i++) {
+                sBuffer.put(i, (byte) 0);
+            }
+            sPosition = 0;
+        }
+    }
+
+    /**
+     * Record that the given segment of a download's file was written with the
+     * given checksum.
+     *
+     * @return false when the journal can't take records, in which case the
+     * progress has to be made durable the usual way
+     */
+    static boolean append(long id, long start, long end, int checksum) {
+        synchronized (sLock) {
+            if (sBuffer == null) {
+                return false;
+            }
+            if (sPosition + RECORD_SIZE > Constants.PROGRESS_JOURNAL_SIZE) {
+                sPosition = 0;
+            }
+            sBuffer.putLong(sPosition, id);
+            sBuffer.putLong(sPosition + 8, start);
+            sBuffer.putLong(sPosition + 16, end);
+            sBuffer.putInt(sPosition + 24, checksum);
+            sBuffer.putInt(sPosition + 28, checksumRecord(id, start, end, checksum));
+            sPosition += RECORD_SIZE;
+            return true;
+        }
+    }
+
+    /**
+     * Returns the checksum of the given range of a file.
+     */
+    static int checksum(RandomAccessFile file, long start, long end) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = BufferPool.acquire(Constants.BUFFER_SIZE);
+        try {
+            file.seek(start);
+            long remaining = end - start;
+            while (remaining > 0) {
+                final int len = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len == -1) {
+                    throw new IOException("File ends before " + end);
+                }
+                crc.update(buffer, 0, len);
+                remaining -= len;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int checksumRecord(long id, long start, long end, int checksum) {
+        final ByteBuffer fields = ByteBuffer.allocate(RECORD_SIZE - 4);
+        fields.putLong(id).putLong(start).putLong(end).putInt(checksum);
+        final CRC32 crc = new CRC32();
+        crc.update(fields.array());
+        return (int) crc.getValue();
+    }
+
+    private static Map<Long, List<Record>> readRecords() {
+        final Map<Long, List<Record>> records = new HashMap<Long, List<Record>>();
+        for (int pos = 0; pos + RECORD_SIZE <= Constants.PROGRESS_JOURNAL_SIZE;
+                pos += RECORD_SIZE) {
+            final long id = sBuffer.getLong(pos);
+            final long start = sBuffer.getLong(pos + 8);
+            final long end = sBuffer.getLong(pos + 16);
+            final int checksum = sBuffer.getInt(pos + 24);
+            if (end <= start || sBuffer.getInt(pos + 28)
+                    != checksumRecord(id, start, end, checksum)) {
+                // Empty or torn
+                continue;
+            }
+            List<Record> list = records.get(id);
+            if (list == null) {
+                list = new ArrayList<Record>();
+                records.put(id, list);
+            }
+            list.add(new Record(id, start, end, checksum));
+        }
+        return records;
+    }
+
+    private static void applyRecords(ContentResolver resolver, Map<Long, List<Record>> records) {
+        final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                new String[] {
+                        Downloads.Impl._ID, Downloads.Impl._DATA,
+                        Downloads.Impl.COLUMN_CURRENT_BYTES
+                }, Downloads.Impl.COLUMN_STATUS + " < 200 AND "
+                        + Downloads.Impl.COLUMN_DELETED + " != 1", null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final long id = cursor.getLong(0);
+                final List<Record> list = records.get(id);
+                final String path = cursor.getString(1);
+                if (list == null || path == null) {
+                    continue;
+                }
+                final long current = cursor.getLong(2);
+                final long resumed = followSegments(path, current, list);
+                if (resumed > current) {
+                    Log.i(TAG, "Download " + id + " resumes at " + resumed + " instead of "
+                            + current + " from progress journal");
+                    final ContentValues values = new ContentValues();
+                    values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, resumed);
+                    resolver.update(ContentUris.withAppendedId(
+                            Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id), values, null, null);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns how far the given file is known good, following segments from
+     * the given offset for as long as their checksums match. Accepted bytes
+     * are synced before the offset is trusted.
+     */
+    private static long followSegments(String path, long offset, List<Record> records) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "rw");
+            final long length = file.length();
+            long resumed = offset;
+            boolean advanced = true;
+            while (advanced) {
+                advanced = false;
+                Record best = null;
+                for (Record record : records) {
+                    if (record.mStart == resumed && record.mEnd <= length
+                            && (best == null || record.mEnd > best.mEnd)
+                            && checksum(file, record.mStart, record.mEnd) == record.mChecksum) {
+                        best = record;
+                    }
+                }
+                if (best != null) {
+                    resumed = best.mEnd;
+                    advanced = true;
+                }
+            }
+            if (resumed > offset) {
+                file.getFD().sync();
+            }
+            return resumed;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to check journaled progress of " + path, e);
+            return offset;
+        } finally {
+            IoUtils.closeQuietly(file);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.leaf.downloads;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.Pair;
+
+import com.leaf.downloads.utils.IoUtils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+
+/**
+ * Reads the file of a download while it is still being transferred. Reads
+ * block until the requested bytes have been written by the download, and
+ * {@link #seek(long)} may be used to jump around the file.
+ * <p>
+ * Seeking far beyond what has been written is treated as a priority hint:
+ * the bytes at the new position are fetched with a separate range request,
+ * instead of waiting for the download to reach them.
+ * <p>
+ * Reads may block on disk and network, so must not happen on the main thread.
+ */
+public class ProgressiveInputStream extends InputStream {
+
+    private static final int DEFAULT_TIMEOUT = 20 * 1000;
+
+    private final ContentResolver mResolver;
+    private final DownloadWatermark mWatermark;
+
+    private ParcelFileDescriptor mCompletedPfd;
+    private FileChannel mChannel;
+    private long mPosition;
+    private boolean mClosed;
+
+    /**
+     * Bytes fetched out of order for a reader that jumped ahead of the
+     * download.
+     */
+    private byte[] mWindow;
+    private long mWindowStart;
+    private int mWindowLength;
+    private boolean mRangeUnsupported;
+
+    ProgressiveInputStream(ContentResolver resolver, long id) {
+        mResolver = resolver;
+        mWatermark = DownloadWatermark.obtain(id);
+    }
+
+    /**
+     * Move the read position, hinting that the bytes at this offset are
+     * wanted next.
+     */
+    public void seek(long position) throws IOException {
+        if (position < 0) {
+            throw new IOException("Negative position " + position);
+        }
+        mPosition = position;
+    }
+
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Return the total size of the download, or -1 if not known yet.
+     */
+    public long getTotalBytes() {
+        return mWatermark.getTotalBytes();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int len = read(single, 0, 1);
+        return (len == -1) ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (mWindow != null && mPosition >= mWindowStart
+                    && mPosition < mWindowStart + mWindowLength) {
+                final int start = (int) (mPosition - mWindowStart);
+                final int count = Math.min(len, mWindowLength - start);
+                System.arraycopy(mWindow, start, b, off, count);
+                mPosition += count;
+                return count;
+            }
+
+            final long written = mWatermark.getCurrentBytes();
+            if (written > mPosition) {
+                return readFile(b, off, (int) Math.min(len, written - mPosition));
+            }
+
+            if (mWatermark.isFinished()) {
+                if (!mWatermark.isSuccess()) {
+                    throw new IOException("Download " + mWatermark.getId() + " failed");
+                }
+                return -1;
+            }
+
+            if (shouldFetchWindow(written)) {
+                fetchWindow();
+                continue;
+            }
+
+            if (!mWatermark.await(mPosition + 1, Constants.PROGRESSIVE_WAIT_TIMEOUT)
+                    && !mWatermark.isPublished()) {
+                // Nobody is writing; the download may have finished before
+                // we started watching it.
+                checkCompleted();
+            }
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        mPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE,
+                mWatermark.getCurrentBytes() - mPosition));
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        IoUtils.closeQuietly(mChannel);
+        IoUtils.closeQuietly(mCompletedPfd);
+        mChannel = null;
+        mWindow = null;
+        DownloadWatermark.forgetIfUnused(mWatermark);
+    }
+
+    private int readFile(byte[] b, int off, int len) throws IOException {
+        if (mChannel == null) {
+            final String fileName = mWatermark.getFileName();
+            if (fileName == null) {
+                throw new IOException("Download " + mWatermark.getId() + " has no file");
+            }
+            mChannel = new RandomAccessFile(fileName, "r").getChannel();
+        }
+
+        final int read = mChannel.read(ByteBuffer.wrap(b, off, len), mPosition);
+        if (read > 0) {
+            mPosition += read;
+        }
+        return read;
+    }
+
+    private boolean shouldFetchWindow(long written) {
+        return !mRangeUnsupported && mWatermark.getETag() != null
+                && mPosition - written >= Constants.PRIORITY_RANGE_THRESHOLD;
+    }
+
+    /**
+     * Fetch the bytes at the current position with a range request, so the
+     * reader can continue before the download reaches them.
+     */
+    private void fetchWindow() {
+        final long start = mPosition;
+        final long end = start + Constants.PRIORITY_RANGE_SIZE - 1;
+
+        HttpURLConnection conn = null;
+        InputStream in = null;
+        try {
+            conn = (HttpURLConnection) new URL(mWatermark.getUri()).openConnection();
+            conn.setConnectTimeout(DEFAULT_TIMEOUT);
+            conn.setReadTimeout(DEFAULT_TIMEOUT);
+            for (Pair<String, String> header : mWatermark.getHeaders()) {
+                conn.addRequestProperty(header.first, header.second);
+            }
+            if (conn.getRequestProperty("User-Agent") == null) {
+                conn.addRequestProperty("User-Agent", mWatermark.getUserAgent());
+            }
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            conn.addRequestProperty("If-Match", mWatermark.getETag());
+            conn.addRequestProperty("Range", "bytes=" + start + "-" + end);
+
+            if (conn.getResponseCode() != HTTP_PARTIAL) {
+                throw new IOException("Range not honored: " + conn.getResponseCode());
+            }
+
+            if (mWindow == null) {
+                mWindow = new byte[Constants.PRIORITY_RANGE_SIZE];
+            }
+            in = conn.getInputStream();
+            int length = 0;
+            while (length < mWindow.length) {
+                final int read = in.read(mWindow, length, mWindow.length - length);
+                if (read == -1) {
+                    break;
+                }
+                length += read;
+            }
+            mWindowStart = start;
+            mWindowLength = length;
+
+            if (Constants.LOGV) {
+                Log.v(Constants.TAG, "[" + mWatermark.getId() + "] fetched " + length
+                        + " priority bytes at " + start);
+            }
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "[" + mWatermark.getId() + "] priority range failed: " + e);
+            mRangeUnsupported = true;
+            mWindowLength = 0;
+        } finally {
+            IoUtils.closeQuietly(in);
+            if (conn != null) conn.disconnect();
+        }
+    }
+
+    /**
+     * Switch over to the final file when the download already finished
+     * before this stream started watching it.
+     */
+    private void checkCompleted() throws IOException {
+        final int status = DownloadInfo.queryDownloadStatus(mResolver, mWatermark.getId());
+        if (Downloads.Impl.isStatusSuccess(status)) {
+            mCompletedPfd = mResolver.openFileDescriptor(ContentUris.withAppendedId(
+                    Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, mWatermark.getId()), "r");
+            mChannel = new FileInputStream(mCompletedPfd.getFileDescriptor()).getChannel();
+            mWatermark.finish(true, null, mChannel.size());
+        } else if (Downloads.Impl.isStatusError(status)) {
+            mWatermark.finish(false, null, 0);
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.leaf.downloads;
+
+import com.leaf.downloads.utils.IoUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * Streaming decoder for VCDIFF (RFC 3284) patches, as produced by tools like
+ * {@code xdelta3 -S none} and open-vcdiff. Windows are decoded as they arrive
+ * and written straight to the destination, with COPY instructions reading
+ * from a base file on disk.
+ * <p>
+ * Only the default code table is understood, and neither secondary
+ * compression nor {@code VCD_TARGET} windows are supported. The
+ * {@code VCD_ADLER32} window checksum written by xdelta3 is verified when
+ * present.
+ */
+final class VcdiffDecoder {
+
+    /**
+     * Thrown when a patch is malformed, uses features we don't support, or
+     * fails a checksum. Retrying won't help.
+     */
+    public static class PatchException extends IOException {
+        public PatchException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int VCD_DECOMPRESS = 0x01;
+    private static final int VCD_CODETABLE = 0x02;
+    private static final int VCD_APPHEADER = 0x04;
+
+    private static final int VCD_SOURCE = 0x01;
+    private static final int VCD_TARGET = 0x02;
+    private static final int VCD_ADLER32 = 0x04;
+
+    private static final int NOOP = 0;
+    private static final int ADD = 1;
+    private static final int RUN = 2;
+    private static final int COPY = 3;
+
+    private static final int NEAR_SIZE = 4;
+    private static final int SAME_SIZE = 3;
+    private static final int MODE_SELF = 0;
+    private static final int MODE_HERE = 1;
+
+    private static final byte[] TYPE1 = new byte[256];
+    private static final byte[] SIZE1 = new byte[256];
+    private static final byte[] MODE1 = new byte[256];
+    private static final byte[] TYPE2 = new byte[256];
+    private static final byte[] SIZE2 = new byte[256];
+    private static final byte[] MODE2 = new byte[256];
+
+    static {
+        // Default instruction code table from RFC 3284 section 5.6
+        int i = 0;
+        TYPE1[i++] = RUN;
+        for (int size = 0; size <= 17; size++, i++) {
+            TYPE1[i] = ADD;
+            SIZE1[i] = (byte) size;
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            TYPE1[i] = COPY;
+            MODE1[i++] = (byte) mode;
+            for (int size = 4; size <= 18; size++, i++) {
+                TYPE1[i] = COPY;
+                SIZE1[i] = (byte) size;
+                MODE1[i] = (byte) mode;
+            }
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            final int maxCopy = (mode <= 5) ? 6 : 4;
+            for (int addSize = 1; addSize <= 4; addSize++) {
+                for (int copySize = 4; copySize <= maxCopy; copySize++, i++) {
+                    TYPE1[i] = ADD;
+                    SIZE1[i] = (byte) addSize;
+                    TYPE2[i] = COPY;
+                    SIZE2[i] = (byte) copySize;
+                    MODE2[i] = (byte) mode;
+                }
+            }
+        }
+        for (int mode = 0; mode <= 8; mode++, i++) {
+            TYPE1[i] = COPY;
+            SIZE1[i] = 4;
+            MODE1[i] = (byte) mode;
+            TYPE2[i] = ADD;
+            SIZE2[i] = 1;
+        }
+    }
+
+    private final File mBase;
+
+    private RandomAccessFile mBaseFile;
+    private final byte[] mBaseCache = new byte[Constants.BUFFER_SIZE];
+    private long mBaseCacheStart = -1;
+    private int mBaseCacheLength;
+
+    private final long[] mNear = new long[NEAR_SIZE];
+    private final long[] mSame = new long[SAME_SIZE * 256];
+    private int mNextSlot;
+
+    /** Delta encoding of the current window, and read positions within it. */
+    private byte[] mDelta;
+    private int mDataPos;
+    private int mInstPos;
+    private int mAddrPos;
+    private int mDataEnd;
+    private int mInstEnd;
+    private int mAddrEnd;
+
+    /**
+     * Target of the current window, reused across windows and only grown when
+     * one needs more, and the length of the window within it.
+     */
+    private byte[] mTarget;
+    private int mTargetLength;
+
+    public VcdiffDecoder(File base) {
+        mBase = base;
+    }
+
+    /**
+     * Decode the entire patch read from {@code in}, writing the target to
+     * {@code out}.
+     *
+     * @return number of bytes written.
+     */
+    public long decode(InputStream in, OutputStream out) throws IOException {
+        mBaseFile = new RandomAccessFile(mBase, "r");
+        try {
+            readHeader(in);
+
+            long written = 0;
+            int indicator;
+            while ((indicator = in.read()) != -1) {
+                written += decodeWindow(in, indicator, out);
+            }
+            return written;
+        } finally {
+            IoUtils.closeQuietly(mBaseFile);
+            mBaseFile = null;
+        }
+    }
+
+    private static void readHeader(InputStream in) throws IOException {
+        if (readByte(in) != 0xd6 || readByte(in) != 0xc3 || readByte(in) != 0xc4) {
+            throw new PatchException("Not a VCDIFF patch");
+        }
+        if (readByte(in) != 0) {
+            throw new PatchException("Unsupported VCDIFF version");
+        }
+
+        final int indicator = readByte(in);
+        if ((indicator & VCD_DECOMPRESS) != 0) {
+            throw new PatchException("Secondary compression not supported");
+        }
+        if ((indicator & VCD_CODETABLE) != 0) {
+            throw new PatchException("Custom code tables not supported");
+        }
+        if ((indicator & ~(VCD_DECOMPRESS | VCD_CODETABLE | VCD_APPHEADER)) != 0) {
+            throw new PatchException("Unknown header indicator " + indicator);
+        }
+        if ((indicator & VCD_APPHEADER) != 0) {
+            // Application data written by xdelta3; not interesting to us
+            skipFully(in, readInt(in));
+        }
+    }
+
+    private long decodeWindow(InputStream in, int indicator, OutputStream out)
+            throws IOException {
+        if ((indicator & VCD_TARGET) != 0) {
+            throw new PatchException("VCD_TARGET windows not supported");
+        }
+        if ((indicator & ~(VCD_SOURCE | VCD_TARGET | VCD_ADLER32)) != 0) {
+            throw new PatchException("Unknown window indicator " + indicator);
+        }
+
+        long sourceLength = 0;
+        long sourcePosition = 0;
+        if ((indicator & VCD_SOURCE) != 0) {
+            sourceLength = readInt(in);
+            sourcePosition = readInt(in);
+            if (sourcePosition + sourceLength > mBaseFile.length()) {
+                throw new PatchException("Source segment beyond end of base file");
+            }
+        }
+
+        final long deltaLength = readInt(in);
+        if (deltaLength > Constants.MAX_PATCH_WINDOW) {
+            throw new PatchException("Window of " + deltaLength + " bytes too large");
+        }
+        if (mDelta == null || mDelta.length < deltaLength) {
+            mDelta = new byte[(int) deltaLength];
+        }
+        readFully(in, mDelta, (int) deltaLength);
+
+        // Walk the window header with the instruction cursor
+        mInstPos = 0;
+        mInstEnd = (int) deltaLength;
+        final long targetLength = readInt(false);
+        if (targetLength > Constants.MAX_PATCH_WINDOW) {
+            throw new PatchException("Window of " + targetLength + " bytes too large");
+        }
+        if (nextByte() != 0) {
+            throw new PatchException("Compressed delta sections not supported");
+        }
+        final long dataLength = readInt(false);
+        final long instLength = readInt(false);
+        final long addrLength = readInt(false);
+
+        long checksum = -1;
+        if ((indicator & VCD_ADLER32) != 0) {
+            checksum = ((long) nextByte() << 24) | (nextByte() << 16) | (nextByte() << 8)
+                    | nextByte();
+        }
+
+        if (mInstPos + dataLength + instLength + addrLength != deltaLength) {
+            throw new PatchException("Section lengths don't match window");
+        }
+        mDataPos = mInstPos;
+        mDataEnd = mDataPos + (int) dataLength;
+        mInstPos = mDataEnd;
+        mInstEnd = mInstPos + (int) instLength;
+        mAddrPos = mInstEnd;
+        mAddrEnd = mAddrPos + (int) addrLength;
+
+        Arrays.fill(mNear, 0);
+        Arrays.fill(mSame, 0);
+        mNextSlot = 0;
+
+        if (mTarget == null || mTarget.length < targetLength) {
+            mTarget = new byte[(int) targetLength];
+        }
+        mTargetLength = (int) targetLength;
+        final byte[] target = mTarget;
+        int pos = 0;
+        while (mInstPos < mInstEnd) {
+            final int code = nextByte();
+            pos = execute(TYPE1[code], SIZE1[code], MODE1[code], target, pos,
+                    sourceLength, sourcePosition);
+            pos = execute(TYPE2[code], SIZE2[code], MODE2[code], target, pos,
+                    sourceLength, sourcePosition);
+        }
+        if (pos != targetLength || mDataPos != mDataEnd || mAddrPos != mAddrEnd) {
+            throw new PatchException("Window decoded to unexpected length");
+        }
+
+        if (checksum != -1) {
+            final Adler32 adler = new Adler32();
+            adler.update(target, 0, pos);
+            if (adler.getValue() != checksum) {
+                throw new PatchException("Window checksum mismatch");
+            }
+        }
+
+        out.write(target, 0, pos);
+        return pos;
+    }
+
+    /**
+     * Execute a single instruction into {@code target} at {@code pos}.
+     *
+     * @return position after the instruction.
+     */
+    private int execute(int type, int size, int mode, byte[] target, int pos,
+            long sourceLength, long sourcePosition) throws IOException {
+        if (type == NOOP) {
+            return pos;
+        }
+
+        final long length = (size != 0) ? size : readInt(false);
+        if (length > mTargetLength - pos) {
+            throw new PatchException("Instruction overruns target window");
+        }
+        final int len = (int) length;
+
+        switch (type) {
+            case ADD:
+                if (len > mDataEnd - mDataPos) {
+                    throw new PatchException("ADD overruns data section");
+                }
+                System.arraycopy(mDelta, mDataPos, target, pos, len);
+                mDataPos += len;
+                return pos + len;
+
+            case RUN:
+                if (mDataPos >= mDataEnd) {
+                    throw new PatchException("RUN overruns data section");
+                }
+                Arrays.fill(target, pos, pos + len, mDelta[mDataPos++]);
+                return pos + len;
+
+            case COPY:
+                final long here = sourceLength + pos;
+                final long addr = decodeAddress(mode, here);
+                int copied = 0;
+                if (addr < sourceLength) {
+                    // Copies may start in the source segment and run on into
+                    // the target window.
+                    copied = (int) Math.min(len, sourceLength - addr);
+                    readBase(sourcePosition + addr, target, pos, copied);
+                }
+                // Target copies may overlap the bytes they produce, so go
+                // byte by byte.
+                int from = (int) (addr + copied - sourceLength);
+                for (int i = copied; i < len; i++) {
+                    target[pos + i] = target[from++];
+                }
+                return pos + len;
+
+            default:
+                throw new PatchException("Unknown instruction " + type);
+        }
+    }
+
+    private long decodeAddress(int mode, long here) throws IOException {
+        final long addr;
+        if (mode == MODE_SELF) {
+            addr = readInt(true);
+        } else if (mode == MODE_HERE) {
+            addr = here - readInt(true);
+        } else if (mode - 2 < NEAR_SIZE) {
+            addr = mNear[mode - 2] + readInt(true);
+        } else {
+            if (mAddrPos >= mAddrEnd) {
+                throw new PatchException("Address overruns section");
+            }
+            final int m = mode - 2 - NEAR_SIZE;
+            addr = mSame[m * 256 + (mDelta[mAddrPos++] & 0xff)];
+        }
+        if (addr < 0 || addr >= here) {
+            throw new PatchException("Invalid COPY address " + addr);
+        }
+
+        mNear[mNextSlot] = addr;
+        mNextSlot = (mNextSlot + 1) % NEAR_SIZE;
+        mSame[(int) (addr % (SAME_SIZE * 256))] = addr;
+        return addr;
+    }
+
+    /**
+     * Copy bytes from the base file, going through a small cache since
+     * neighbouring instructions tend to read nearby.
+     */
+    private void readBase(long position, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (position < mBaseCacheStart || position >= mBaseCacheStart + mBaseCacheLength) {
+                if (len >= mBaseCache.length) {
+                    mBaseFile.seek(position);
+                    mBaseFile.readFully(b, off, len);
+                    return;
+                }
+                mBaseFile.seek(position);
+                mBaseCacheStart = position;
+                mBaseCacheLength = mBaseFile.read(mBaseCache, 0, mBaseCache.length);
+                if (mBaseCacheLength <= 0) {
+                    mBaseCacheLength = 0;
+                    throw new EOFException("Base file truncated");
+                }
+            }
+            final int start = (int) (position - mBaseCacheStart);
+            final int count = Math.min(len, mBaseCacheLength - start);
+            System.arraycopy(mBaseCache, start, b, off, count);
+            position += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private int nextByte() throws IOException {
+        if (mInstPos >= mInstEnd) {
+            throw new PatchException("Window truncated");
+        }
+        return mDelta[mInstPos++] & 0xff;
+    }
+
+    /**
+     * Read a variable-length integer from the window, at the address
+     * position when {@code addresses}, or else the instruction position.
+     */
+    private long readInt(boolean addresses) throws IOException {
+        final int end = addresses ? mAddrEnd : mInstEnd;
+        int pos = addresses ? mAddrPos : mInstPos;
+        long value = 0;
+        for (int i = 0; i < 9; i++) {
+            if (pos >= end) {
+                throw new PatchException("Integer overruns section");
+            }
+            final int b = mDelta[pos++] & 0xff;
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                if (addresses) {
+                    mAddrPos = pos;
+                } else {
+                    mInstPos = pos;
+                }
+                return value;
+            }
+        }
+        throw new PatchException("Integer too long");
+    }
+
+    private static long readInt(InputStream in) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 9; i++) {
+            final int b = readByte(in);
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new PatchException("Integer too long");
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Patch truncated");
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            final int read = in.read(b, off, len - off);
+            if (read == -1) {
+                throw new EOFException("Patch truncated");
+            }
+            off += read;
+        }
+    }
+
+    private static void skipFully(InputStream in, long len) throws IOException {
+        final byte[] scratch = new byte[(int) Math.min(len, Constants.BUFFER_SIZE)];
+        while (len > 0) {
+            final int read = in.read(scratch, 0, (int) Math.min(len, scratch.length));
+            if (read == -1) {
+                throw new EOFException("Patch truncated");
+            }
+            len -= read;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.leaf.downloads.utils;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
 import android.util.Log;
 
 import com.leaf.downloads.Constants;
@@ -110,6 +111,25 @@ public class ConnectManager {
         }
     }
 
+    /**
+     * Returns whether the active network may cost the user money, using the
+     * platform's judgement where available and treating mobile as metered
+     * otherwise.
+     */
+    public static boolean isActiveNetworkMetered(Context context) {
+        ConnectivityManager connectivity =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity == null) {
+            Log.w(Constants.TAG, "couldn't get connectivity manager");
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return connectivity.isActiveNetworkMetered();
+        }
+        final NetworkInfo activeInfo = connectivity.getActiveNetworkInfo();
+        return activeInfo != null && isNetworkTypeMobile(activeInfo.getType());
+    }
+
     public static NetworkInfo getActiveNetworkInfo(Context context, int uid) {
         ConnectivityManager connectivity =
                 (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
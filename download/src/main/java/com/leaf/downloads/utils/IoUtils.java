@@ -1,5 +1,8 @@
 package com.leaf.downloads.utils;
 
+import java.io.File;
+import java.io.IOException;
+
 public final class IoUtils {
     private IoUtils() {
     }
@@ -18,5 +21,33 @@ public final class IoUtils {
         }
     }
 
+    /**
+     * Deletes 'file', and when it's a directory everything in it. Symbolic links are deleted
+     * rather than followed.
+     *
+     * @return whether 'file' itself was deleted
+     */
+    public static boolean deleteRecursively(File file) {
+        if (file.isDirectory() && !isSymlink(file)) {
+            final File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        return file.delete();
+    }
 
+    private static boolean isSymlink(File file) {
+        try {
+            final File parent = file.getParentFile();
+            final File canonicalSelf = (parent == null) ? file
+                    : new File(parent.getCanonicalFile(), file.getName());
+            return !canonicalSelf.getCanonicalFile().equals(canonicalSelf.getAbsoluteFile());
+        } catch (IOException e) {
+            // Err on the side of not descending
+            return true;
+        }
+    }
 }
@@ -0,0 +1,338 @@
+package com.leaf.downloads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ArchiveExtractor}: containment of entries, and what an
+ * interrupted extraction leaves behind for resuming.
+ */
+public class ArchiveExtractorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File mRoot;
+    private File mTarget;
+    private final List<Long> mBoundaries = new ArrayList<Long>();
+
+    private final ArchiveExtractor.Listener mListener = new ArchiveExtractor.Listener() {
+        @Override
+        public void onEntryExtracted(long boundaryOffset) {
+            mBoundaries.add(boundaryOffset);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("extract", "");
+        assertTrue(mRoot.delete());
+        assertTrue(mRoot.mkdir());
+        mTarget = new File(mRoot, "target");
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(mRoot);
+    }
+
+    @Test
+    public void testZipEntriesExtracted() throws Exception {
+        final byte[] zip = zip(false, "a.txt", "alpha", "dir/b.txt", "bravo");
+        extract(zip, Downloads.Impl.TRANSFORM_EXTRACT_ZIP, 0);
+
+        assertEquals("alpha", read(new File(mTarget, "a.txt")));
+        assertEquals("bravo", read(new File(mTarget, "dir/b.txt")));
+        assertEquals(2, mBoundaries.size());
+    }
+
+    @Test
+    public void testZipSlipRejected() throws Exception {
+        final byte[] zip = zip(false, "ok.txt", "fine", "../escaped.txt", "evil");
+        try {
+            extract(zip, Downloads.Impl.TRANSFORM_EXTRACT_ZIP, 0);
+            fail("Entry outside the target directory was accepted");
+        } catch (IOException expected) {
+        }
+        assertFalse(new File(mRoot, "escaped.txt").exists());
+        assertEquals("fine", read(new File(mTarget, "ok.txt")));
+    }
+
+    @Test
+    public void testZipSlipAbsoluteRejected() throws Exception {
+        final File outside = new File(mRoot, "absolute.txt");
+        final byte[] zip = zip(false, "sub/../../absolute.txt", "evil");
+        try {
+            extract(zip, Downloads.Impl.TRANSFORM_EXTRACT_ZIP, 0);
+            fail("Entry outside the target directory was accepted");
+        } catch (IOException expected) {
+        }
+        assertFalse(outside.exists());
+    }
+
+    @Test
+    public void testTarSlipRejected() throws Exception {
+        final byte[] tar = tar("../escaped.txt", "evil");
+        try {
+            extract(tar, Downloads.Impl.TRANSFORM_EXTRACT_TAR, 0);
+            fail("Entry outside the target directory was accepted");
+        } catch (IOException expected) {
+        }
+        assertFalse(new File(mRoot, "escaped.txt").exists());
+    }
+
+    @Test
+    public void testTarOversizedLongNameRejected() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Claims a 1GB long name, which must not be allocated
+        out.write(tarHeader("././@LongLink", 1L << 30, (byte) 'L'));
+        out.write(new byte[1024]);
+        try {
+            extract(out.toByteArray(), Downloads.Impl.TRANSFORM_EXTRACT_TAR, 0);
+            fail("Oversized long name was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testCancelKeepsCompletedEntries() throws Exception {
+        final byte[] zip = zip(true, "one.txt", repeat('1', 4096), "two.txt", repeat('2', 4096),
+                "three.txt", repeat('3', 4096));
+        final long secondStart = localHeaderOffsets(zip).get(1);
+        final long thirdStart = localHeaderOffsets(zip).get(2);
+
+        // Cancel partway into the second entry, as the progress stream does
+        final InputStream in = new FailingInputStream(zip, (secondStart + thirdStart) / 2,
+                new InterruptedIOException("canceled"));
+        try {
+            new ArchiveExtractor(mTarget, mListener).extract(in,
+                    Downloads.Impl.TRANSFORM_EXTRACT_ZIP, 0, true);
+            fail("Canceled extraction finished");
+        } catch (InterruptedIOException expected) {
+        }
+
+        assertEquals(repeat('1', 4096), read(new File(mTarget, "one.txt")));
+        assertFalse(new File(mTarget, "three.txt").exists());
+        assertEquals(Arrays.asList(secondStart), mBoundaries);
+        assertEquals(1, countOutsideTarget());
+    }
+
+    @Test
+    public void testPartialZipResumesFromBoundary() throws Exception {
+        final byte[] zip = zip(false, "one.txt", repeat('1', 10000), "two.txt",
+                repeat('2', 10000), "three.txt", repeat('3', 10000));
+        final long thirdStart = localHeaderOffsets(zip).get(2);
+
+        // Connection drops partway into the third entry
+        try {
+            new ArchiveExtractor(mTarget, mListener).extract(
+                    new ByteArrayInputStream(zip, 0, (int) thirdStart + 50),
+                    Downloads.Impl.TRANSFORM_EXTRACT_ZIP, 0, true);
+            fail("Truncated archive extracted");
+        } catch (IOException expected) {
+        }
+        final long resumeAt = mBoundaries.get(mBoundaries.size() - 1);
+        assertEquals(thirdStart, resumeAt);
+
+        // Resume with a range request from the last boundary
+        mBoundaries.clear();
+        new ArchiveExtractor(mTarget, mListener).extract(
+                new ByteArrayInputStream(zip, (int) resumeAt, zip.length - (int) resumeAt),
+                Downloads.Impl.TRANSFORM_EXTRACT_ZIP, resumeAt, true);
+
+        assertEquals(repeat('1', 10000), read(new File(mTarget, "one.txt")));
+        assertEquals(repeat('2', 10000), read(new File(mTarget, "two.txt")));
+        assertEquals(repeat('3', 10000), read(new File(mTarget, "three.txt")));
+    }
+
+    @Test
+    public void testPartialTarResumesFromBoundary() throws Exception {
+        final byte[] tar = tar("one.txt", repeat('1', 700), "two.txt", repeat('2', 700));
+        // Each entry is a header block and two data blocks
+        final long secondStart = 3 * 512;
+
+        try {
+            new ArchiveExtractor(mTarget, mListener).extract(
+                    new ByteArrayInputStream(tar, 0, (int) secondStart + 600),
+                    Downloads.Impl.TRANSFORM_EXTRACT_TAR, 0, true);
+            fail("Truncated archive extracted");
+        } catch (IOException expected) {
+        }
+        assertEquals(Arrays.asList(secondStart), mBoundaries);
+
+        new ArchiveExtractor(mTarget, mListener).extract(
+                new ByteArrayInputStream(tar, (int) secondStart, tar.length - (int) secondStart),
+                Downloads.Impl.TRANSFORM_EXTRACT_TAR, secondStart, true);
+        assertEquals(repeat('1', 700), read(new File(mTarget, "one.txt")));
+        assertEquals(repeat('2', 700), read(new File(mTarget, "two.txt")));
+    }
+
+    private void extract(byte[] archive, int transform, long offset) throws IOException {
+        new ArchiveExtractor(mTarget, mListener).extract(new ByteArrayInputStream(archive),
+                transform, offset, true);
+    }
+
+    private int countOutsideTarget() {
+        return mRoot.listFiles().length;
+    }
+
+    /**
+     * Build a zip of the given name and content pairs, stored or deflated.
+     */
+    private static byte[] zip(boolean deflate, String... entries) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ZipOutputStream out = new ZipOutputStream(bytes);
+        for (int i = 0; i < entries.length; i += 2) {
+            final byte[] data = entries[i + 1].getBytes(UTF_8);
+            final ZipEntry entry = new ZipEntry(entries[i]);
+            if (!deflate) {
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCompressedSize(data.length);
+                entry.setCrc(crc.getValue());
+            }
+            out.putNextEntry(entry);
+            out.write(data);
+            out.closeEntry();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Return where each local file header starts in the given zip.
+     */
+    private static List<Long> localHeaderOffsets(byte[] zip) {
+        final List<Long> offsets = new ArrayList<Long>();
+        for (int i = 0; i + 4 <= zip.length; i++) {
+            if (zip[i] == 'P' && zip[i + 1] == 'K' && zip[i + 2] == 3 && zip[i + 3] == 4) {
+                offsets.add((long) i);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Build a ustar archive of the given name and content pairs.
+     */
+    private static byte[] tar(String... entries) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < entries.length; i += 2) {
+            final byte[] data = entries[i + 1].getBytes(UTF_8);
+            out.write(tarHeader(entries[i], data.length, (byte) '0'));
+            out.write(data);
+            out.write(new byte[(512 - data.length % 512) % 512]);
+        }
+        out.write(new byte[1024]);
+        return out.toByteArray();
+    }
+
+    private static byte[] tarHeader(String name, long size, byte type) {
+        final byte[] header = new byte[512];
+        final byte[] nameBytes = name.getBytes(UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 124, 12, size);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(UTF_8), 0, header, 257, 8);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        putOctal(header, 148, 7, sum);
+        return header;
+    }
+
+    private static void putOctal(byte[] b, int off, int len, long value) {
+        final String octal = Long.toOctalString(value);
+        final String padded = repeat('0', len - 1 - octal.length()) + octal;
+        System.arraycopy(padded.getBytes(UTF_8), 0, b, off, len - 1);
+    }
+
+    private static String repeat(char c, int count) {
+        final char[] chars = new char[Math.max(0, count)];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static String read(File file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Serves the given bytes, then throws once {@code failAt} is reached.
+     */
+    private static class FailingInputStream extends InputStream {
+        private final byte[] mData;
+        private final long mFailAt;
+        private final IOException mError;
+        private int mPos;
+
+        FailingInputStream(byte[] data, long failAt, IOException error) {
+            mData = data;
+            mFailAt = failAt;
+            mError = error;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mPos >= mFailAt) {
+                throw mError;
+            }
+            final int count = (int) Math.min(len, mFailAt - mPos);
+            System.arraycopy(mData, mPos, b, off, count);
+            mPos += count;
+            return count;
+        }
+    }
+}
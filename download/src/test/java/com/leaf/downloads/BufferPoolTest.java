@@ -0,0 +1,74 @@
+package com.leaf.downloads;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BufferPool} at its cap.
+ */
+public class BufferPoolTest {
+
+    private static final int CHUNKS =
+            (int) (Constants.BUFFER_POOL_MAX_BYTES / Constants.PIPELINE_CHUNK_SIZE);
+
+    @Test
+    public void testReleaseIntoThreadCacheWakesWaiter() throws Exception {
+        final CountDownLatch full = new CountDownLatch(1);
+        final CountDownLatch releaseOne = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread holder = new Thread() {
+            @Override
+            public void run() {
+                final byte[][] buffers = new byte[CHUNKS][];
+                for (int i = 0; i < CHUNKS; i++) {
+                    buffers[i] = BufferPool.acquire(Constants.PIPELINE_CHUNK_SIZE);
+                }
+                full.countDown();
+                try {
+                    releaseOne.await();
+                    // With room in this thread's cache, as a download thread has
+                    BufferPool.release(buffers[0]);
+                    done.await();
+                } catch (InterruptedException ignored) {
+                } finally {
+                    for (int i = 1; i < CHUNKS; i++) {
+                        BufferPool.release(buffers[i]);
+                    }
+                    BufferPool.releaseThreadCache();
+                }
+            }
+        };
+        holder.start();
+        assertTrue(full.await(10, TimeUnit.SECONDS));
+
+        final Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // Long enough for the acquire below to be waiting
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                releaseOne.countDown();
+            }
+        };
+        releaser.start();
+
+        final long start = System.currentTimeMillis();
+        final byte[] buffer = BufferPool.acquire(Constants.PIPELINE_CHUNK_SIZE);
+        final long waited = System.currentTimeMillis() - start;
+        done.countDown();
+        holder.join();
+        releaser.join();
+        BufferPool.release(buffer);
+        BufferPool.releaseThreadCache();
+
+        assertEquals(Constants.PIPELINE_CHUNK_SIZE, buffer.length);
+        assertTrue("Waited " + waited + "ms", waited < Constants.BUFFER_POOL_WAIT_MILLIS / 2);
+    }
+}
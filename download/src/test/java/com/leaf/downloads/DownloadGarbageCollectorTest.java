@@ -0,0 +1,102 @@
+package com.leaf.downloads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the orphans {@link DownloadGarbageCollector} remembers between
+ * passes.
+ */
+public class DownloadGarbageCollectorTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("orphans", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testRecordRoundTrip() throws Exception {
+        final DownloadGarbageCollector.Orphan orphan = new DownloadGarbageCollector.Orphan(
+                42, "/storage/ABCD-1234/Download/a:b.bin", 1024, 1500000000000L);
+        final DownloadGarbageCollector.Orphan decoded =
+                DownloadGarbageCollector.Orphan.decode(orphan.encode());
+        assertEquals(42, decoded.mId);
+        assertEquals("/storage/ABCD-1234/Download/a:b.bin", decoded.mPath);
+        assertEquals(1024, decoded.mLength);
+        assertEquals(1500000000000L, decoded.mLastModified);
+    }
+
+    @Test
+    public void testBarePathIsNotRecord() throws Exception {
+        assertNull(DownloadGarbageCollector.Orphan.decode("/sdcard/Download/a.bin"));
+        assertNull(DownloadGarbageCollector.Orphan.decode("1:2:3:"));
+        assertNull(DownloadGarbageCollector.Orphan.decode("x:2:3:/sdcard/a.bin"));
+    }
+
+    @Test
+    public void testMatchesFileAsLeft() throws Exception {
+        final File file = write("a.bin", 10);
+        assertTrue(new DownloadGarbageCollector.Orphan(1, file.getPath(), 10,
+                file.lastModified()).matches(file));
+        assertTrue(new DownloadGarbageCollector.Orphan(1, file.getPath(), -1, -1).matches(file));
+    }
+
+    @Test
+    public void testRewrittenFileDoesNotMatch() throws Exception {
+        final File file = write("a.bin", 10);
+        final DownloadGarbageCollector.Orphan bySize =
+                new DownloadGarbageCollector.Orphan(1, file.getPath(), 10, -1);
+        final DownloadGarbageCollector.Orphan byTime =
+                new DownloadGarbageCollector.Orphan(1, file.getPath(), -1, file.lastModified());
+
+        // A new download taking the name after a remount
+        write("a.bin", 20);
+        assertTrue(file.setLastModified(file.lastModified() - 60000));
+        assertFalse(bySize.matches(file));
+        assertFalse(byTime.matches(file));
+    }
+
+    @Test
+    public void testDirectoryDoesNotMatchLength() throws Exception {
+        final File dir = new File(mDir, "download-1");
+        assertTrue(dir.mkdir());
+        assertFalse(new DownloadGarbageCollector.Orphan(1, dir.getPath(), 10, -1).matches(dir));
+        assertTrue(new DownloadGarbageCollector.Orphan(1, dir.getPath(), -1, -1).matches(dir));
+    }
+
+    private File write(String name, int length) throws IOException {
+        final File file = new File(mDir, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
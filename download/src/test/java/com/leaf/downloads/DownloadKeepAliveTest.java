@@ -0,0 +1,187 @@
+package com.leaf.downloads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DownloadKeepAlive} against a local server, covering what
+ * it learns from responses and how connections are released.
+ */
+public class DownloadKeepAliveTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int LARGE_LENGTH = 4 * 1024 * 1024;
+
+    private TestHttpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer();
+        final byte[] large = new byte[LARGE_LENGTH];
+        Arrays.fill(large, (byte) 'L');
+        mServer.setResponse("/large", TestHttpServer.Response.ok(large));
+        mServer.setResponse("/small", TestHttpServer.Response.ok("small".getBytes(ASCII)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void testCanceledBodyNeverReachesNextRequest() throws Exception {
+        assertEquals("small", fetch("/small", true));
+        assertTrue(DownloadKeepAlive.isEnabled(mServer.url("/")));
+
+        // Canceled partway, as a paused or canceled download does
+        final HttpURLConnection conn = open("/large");
+        DownloadKeepAlive.onResponse(conn.getURL(), conn);
+        final InputStream in = conn.getInputStream();
+        assertEquals(16 * 1024, readAtMost(in, 16 * 1024).length);
+        DownloadKeepAlive.release(conn, false);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("small", fetch("/small", true));
+        }
+        // The partial body's connection was torn down, not reused
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testCanceledShortBodyTornDown() throws Exception {
+        // Short enough that a client could drain it to reuse the socket
+        final byte[] medium = new byte[64 * 1024];
+        Arrays.fill(medium, (byte) 'M');
+        mServer.setResponse("/medium", TestHttpServer.Response.ok(medium));
+        assertEquals("small", fetch("/small", true));
+
+        final HttpURLConnection conn = open("/medium");
+        assertEquals(1024, readAtMost(conn.getInputStream(), 1024).length);
+        DownloadKeepAlive.release(conn, false);
+
+        assertEquals("small", fetch("/small", true));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testConsumedBodyReusesConnection() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals("small", fetch("/small", true));
+        }
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testLargeConsumedBodyReusesConnection() throws Exception {
+        assertEquals("small", fetch("/small", true));
+        assertEquals(LARGE_LENGTH, fetch("/large", true).length());
+        assertEquals("small", fetch("/small", true));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testUnknownServerNotReused() throws Exception {
+        assertFalse(DownloadKeepAlive.isEnabled(mServer.url("/")));
+        assertFalse(DownloadKeepAlive.shouldRequestClose(mServer.url("/")));
+
+        final HttpURLConnection conn = open("/small");
+        assertEquals("small", new String(readAtMost(conn.getInputStream(), 100), ASCII));
+        DownloadKeepAlive.release(conn, true);
+
+        fetch("/small", false);
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testServerAskingToCloseNotReused() throws Exception {
+        mServer.setResponse("/close", TestHttpServer.Response.ok("bye".getBytes(ASCII))
+                .header("Connection", "close"));
+        assertEquals("bye", fetch("/close", true));
+
+        assertFalse(DownloadKeepAlive.isEnabled(mServer.url("/")));
+        assertTrue(DownloadKeepAlive.shouldRequestClose(mServer.url("/")));
+    }
+
+    @Test
+    public void testHttp10WithoutKeepAliveNotReused() throws Exception {
+        mServer.setResponse("/old", TestHttpServer.Response.ok("old".getBytes(ASCII))
+                .statusLine("HTTP/1.0 200 OK"));
+        assertEquals("old", fetch("/old", true));
+
+        assertFalse(DownloadKeepAlive.isEnabled(mServer.url("/")));
+        assertTrue(DownloadKeepAlive.shouldRequestClose(mServer.url("/")));
+    }
+
+    @Test
+    public void testCloseDelimitedBodyNotReused() throws Exception {
+        mServer.setResponse("/eof", TestHttpServer.Response.ok("eof".getBytes(ASCII))
+                .closeDelimited());
+        assertEquals("eof", fetch("/eof", true));
+
+        assertFalse(DownloadKeepAlive.isEnabled(mServer.url("/")));
+    }
+
+    @Test
+    public void testChunkedBodyReused() throws Exception {
+        mServer.setResponse("/chunked", TestHttpServer.Response.ok("chunked body".getBytes(ASCII))
+                .chunked(4));
+        assertEquals("chunked body", fetch("/chunked", true));
+        assertTrue(DownloadKeepAlive.isEnabled(mServer.url("/")));
+
+        assertEquals("chunked body", fetch("/chunked", true));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testProbeDoesNotAskToClose() throws Exception {
+        fetch("/small", true);
+        assertFalse("close".equalsIgnoreCase(
+                mServer.getRequests().get(0).get("connection")));
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) mServer.url(path).openConnection();
+        if (DownloadKeepAlive.shouldRequestClose(conn.getURL())) {
+            conn.setRequestProperty("Connection", "close");
+        }
+        assertEquals(200, conn.getResponseCode());
+        return conn;
+    }
+
+    /**
+     * Fetch the whole body like a download does, optionally learning from
+     * the response, and release the connection.
+     */
+    private String fetch(String path, boolean learn) throws IOException {
+        final HttpURLConnection conn = open(path);
+        if (learn) {
+            DownloadKeepAlive.onResponse(conn.getURL(), conn);
+        }
+        final byte[] body = readAtMost(conn.getInputStream(), Integer.MAX_VALUE);
+        DownloadKeepAlive.release(conn, true);
+        return new String(body, ASCII);
+    }
+
+    private static byte[] readAtMost(InputStream in, int limit) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int len;
+        while (out.size() < limit
+                && (len = in.read(buffer, 0, Math.min(buffer.length, limit - out.size()))) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,121 @@
+package com.leaf.downloads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link FilenameIndex}.
+ */
+public class FilenameIndexTest {
+
+    private File mRoot;
+    private File mRunning;
+    private File mSuccess;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("index", "");
+        assertTrue(mRoot.delete());
+        mRunning = new File(mRoot, "running");
+        mSuccess = new File(mRoot, "success");
+        assertTrue(mRunning.mkdirs());
+        assertTrue(mSuccess.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(mRoot);
+    }
+
+    @Test
+    public void testPreferredNameClaimed() throws Exception {
+        final File file = claim("a", ".txt");
+        assertEquals(new File(mRunning, "a.txt"), file);
+        assertTrue(file.isFile());
+    }
+
+    @Test
+    public void testTakenNameGetsSequence() throws Exception {
+        assertTrue(new File(mSuccess, "a.txt").createNewFile());
+        assertEquals(new File(mRunning, "a-1.txt"), claim("a", ".txt"));
+        assertEquals(new File(mRunning, "a-2.txt"), claim("a", ".txt"));
+    }
+
+    @Test
+    public void testNamesDifferingInCaseAreTaken() throws Exception {
+        // On case-insensitive storage a-1.txt would be the same file
+        assertTrue(new File(mRunning, "a.txt").createNewFile());
+        assertTrue(new File(mSuccess, "A-1.TXT").createNewFile());
+
+        assertEquals(new File(mRunning, "a-2.txt"), claim("a", ".txt"));
+    }
+
+    @Test
+    public void testConcurrentClaimsAreUnique() throws Exception {
+        final int threads = 8;
+        final int claims = 25;
+        final List<File> files = Collections.synchronizedList(new ArrayList<File>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final boolean reversed = (i % 2) == 1;
+            final Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < claims; j++) {
+                            // Parents in either order take the same stripes
+                            files.add(reversed
+                                    ? FilenameIndex.claim(mRunning,
+                                            new File[] { mSuccess, mRunning }, "f", ".bin")
+                                    : claim("f", ".bin"));
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+        final Set<File> unique = new HashSet<File>(files);
+        assertEquals(threads * claims, unique.size());
+        for (File file : unique) {
+            assertTrue(file.isFile());
+        }
+    }
+
+    private File claim(String prefix, String suffix) throws Exception {
+        return FilenameIndex.claim(mRunning, new File[] { mRunning, mSuccess }, prefix, suffix);
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,207 @@
+package com.leaf.downloads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Harness for the {@link NioDownloadEngine} against a local server with slow
+ * responses, comparing it with blocking transfers on a pool the size of the
+ * download executor.
+ */
+public class NioDownloadEngineTest {
+
+    /** Threads running downloads, as in {@link DownloadService}. */
+    private static final int DOWNLOAD_THREADS = 5;
+
+    private static final int BODY_LENGTH = 64 * 1024;
+    private static final int SLICE_BYTES = 16 * 1024;
+    private static final long SLICE_DELAY_MILLIS = 25;
+
+    private TestHttpServer mServer;
+    private byte[] mBody;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer();
+        mBody = new byte[BODY_LENGTH];
+        for (int i = 0; i < mBody.length; i++) {
+            mBody[i] = (byte) (i * 31);
+        }
+        mServer.setResponse("/length", TestHttpServer.Response.ok(mBody)
+                .throttle(SLICE_BYTES, SLICE_DELAY_MILLIS));
+        mServer.setResponse("/chunked", TestHttpServer.Response.ok(mBody).chunked(5000)
+                .throttle(SLICE_BYTES, SLICE_DELAY_MILLIS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void testBodiesArriveIntact() throws Exception {
+        final List<Recorder> recorders = runEngine("/length", 20);
+        recorders.addAll(runEngine("/chunked", 20));
+        for (Recorder recorder : recorders) {
+            assertEquals(null, recorder.mError);
+            assertArrayEquals(mBody, recorder.mBytes.toByteArray());
+        }
+    }
+
+    @Test
+    public void testManyTransfersOnFewThreads() throws Exception {
+        final int transfers = 100;
+        final List<Recorder> recorders = runEngine("/length", transfers);
+        for (Recorder recorder : recorders) {
+            assertEquals(null, recorder.mError);
+            assertEquals(BODY_LENGTH, recorder.mBytes.size());
+        }
+        // Bodies were being received for more downloads at once than there
+        // are threads to run them
+        assertTrue("Peak " + mServer.getPeakActiveResponses(),
+                mServer.getPeakActiveResponses()
+                        > DOWNLOAD_THREADS + Constants.NIO_WORKER_THREADS);
+    }
+
+    @Test
+    public void benchmarkConcurrencyScaling() throws Exception {
+        // Warm up both paths
+        runBlocking(DOWNLOAD_THREADS);
+        runEngine("/length", DOWNLOAD_THREADS);
+
+        for (int transfers : new int[] { 10, 50, 200 }) {
+            long start = System.nanoTime();
+            runBlocking(transfers);
+            final long blocking = (System.nanoTime() - start) / 1000000;
+
+            start = System.nanoTime();
+            final List<Recorder> recorders = runEngine("/length", transfers);
+            final long engine = (System.nanoTime() - start) / 1000000;
+            for (Recorder recorder : recorders) {
+                assertEquals(null, recorder.mError);
+            }
+
+            System.out.println(transfers + " transfers of " + (BODY_LENGTH / 1024)
+                    + "KB from a slow server: blocking on " + DOWNLOAD_THREADS + " threads "
+                    + blocking + "ms, engine " + engine + "ms");
+        }
+    }
+
+    /**
+     * Fetch the given number of bodies the way downloads do without the
+     * engine, with every transfer holding a thread while it reads.
+     */
+    private void runBlocking(int transfers) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(DOWNLOAD_THREADS);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final URL url = mServer.url("/length");
+        for (int i = 0; i < transfers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                        try {
+                            final InputStream in = conn.getInputStream();
+                            final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+                            long total = 0;
+                            int len;
+                            while ((len = in.read(buffer)) != -1) {
+                                total += len;
+                            }
+                            assertEquals(BODY_LENGTH, total);
+                        } finally {
+                            conn.disconnect();
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+    }
+
+    /**
+     * Fetch the given number of bodies the way downloads do with the engine:
+     * headers are read on the download threads, and each body is then parked
+     * with the engine.
+     */
+    private List<Recorder> runEngine(String path, int transfers) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(DOWNLOAD_THREADS);
+        final CountDownLatch finished = new CountDownLatch(transfers);
+        final List<Recorder> recorders = new ArrayList<Recorder>();
+        final URL url = mServer.url(path);
+        for (int i = 0; i < transfers; i++) {
+            final Recorder recorder = new Recorder(finished);
+            recorders.add(recorder);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final NioHttpConnection conn = new NioHttpConnection(url);
+                    conn.setReadTimeout(10000);
+                    try {
+                        assertEquals(200, conn.getResponseCode());
+                    } catch (Throwable t) {
+                        conn.disconnect();
+                        recorder.onFinished(new Exception(t));
+                        return;
+                    }
+                    NioDownloadEngine.getInstance().transfer(conn, recorder);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(finished.await(60, TimeUnit.SECONDS));
+        return recorders;
+    }
+
+    private static class Recorder implements NioDownloadEngine.Callback {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final CountDownLatch mFinished;
+        volatile Exception mError;
+
+        Recorder(CountDownLatch finished) {
+            mFinished = finished;
+        }
+
+        @Override
+        public void onData(byte[] buffer, int length) {
+            mBytes.write(buffer, 0, length);
+        }
+
+        @Override
+        public void onCheck() {
+        }
+
+        @Override
+        public boolean isStopRequested() {
+            return false;
+        }
+
+        @Override
+        public void onFinished(Exception error) {
+            mError = error;
+            mFinished.countDown();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.leaf.downloads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for {@link NioHttpConnection} against a local server.
+ */
+public class NioHttpConnectionTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private TestHttpServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void testHostHeader() throws Exception {
+        assertEquals("example.com", NioHttpConnection.getHostHeader(
+                new URL("http://example.com/a")));
+        assertEquals("example.com", NioHttpConnection.getHostHeader(
+                new URL("http://example.com:80/a")));
+        assertEquals("example.com:8080", NioHttpConnection.getHostHeader(
+                new URL("http://example.com:8080/a")));
+        assertEquals("[::1]", NioHttpConnection.getHostHeader(new URL("http://[::1]/a")));
+        assertEquals("[2001:db8::1]:8080", NioHttpConnection.getHostHeader(
+                new URL("http://[2001:db8::1]:8080/a")));
+    }
+
+    @Test
+    public void testIpv6Literal() throws Exception {
+        final TestHttpServer server;
+        try {
+            server = new TestHttpServer(InetAddress.getByName("::1"));
+        } catch (IOException e) {
+            assumeTrue(false);
+            return;
+        }
+        try {
+            server.setResponse("/v6", TestHttpServer.Response.ok("six".getBytes(ASCII)));
+            final NioHttpConnection conn = new NioHttpConnection(server.url("/v6"));
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("six", readAll(conn.getInputStream()));
+            assertEquals(server.url("/").getHost() + ":" + server.getPort(),
+                    server.getRequests().get(0).get("host"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testLengthBody() throws Exception {
+        mServer.setResponse("/length", TestHttpServer.Response.ok("length".getBytes(ASCII)));
+        assertEquals("length", fetch("/length"));
+        assertEquals("127.0.0.1:" + mServer.getPort(), mServer.getRequests().get(0).get("host"));
+    }
+
+    @Test
+    public void testChunkedBody() throws Exception {
+        mServer.setResponse("/chunked", TestHttpServer.Response.ok(
+                "a chunked body".getBytes(ASCII)).chunked(3));
+        assertEquals("a chunked body", fetch("/chunked"));
+    }
+
+    @Test
+    public void testOverlongChunkLineFails() throws Exception {
+        mServer.setResponse("/long", TestHttpServer.Response.verbatim(overlongChunkLine()));
+        try {
+            fetch("/long");
+            fail("Line longer than the buffer was accepted");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void testFullBufferFailsNonBlocking() throws Exception {
+        mServer.setResponse("/long", TestHttpServer.Response.verbatim(overlongChunkLine()));
+        final NioHttpConnection conn = new NioHttpConnection(mServer.url("/long"));
+        conn.setReadTimeout(5000);
+        assertEquals(200, conn.getResponseCode());
+        conn.configureNonBlocking();
+        try {
+            // Without the parser taking anything out, the buffer only fills
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                if (conn.fillNonBlocking() == 0) {
+                    Thread.sleep(5);
+                }
+            }
+            fail("Reading into a full buffer kept returning nothing");
+        } catch (ProtocolException expected) {
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static byte[] overlongChunkLine() {
+        final StringBuilder response = new StringBuilder(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;");
+        while (response.length() < Constants.BUFFER_SIZE * 3) {
+            response.append("extension");
+        }
+        return response.toString().getBytes(ASCII);
+    }
+
+    private String fetch(String path) throws IOException {
+        final NioHttpConnection conn = new NioHttpConnection(mServer.url(path));
+        conn.setReadTimeout(5000);
+        try {
+            assertEquals(200, conn.getResponseCode());
+            return readAll(conn.getInputStream());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return new String(out.toByteArray(), ASCII);
+    }
+}
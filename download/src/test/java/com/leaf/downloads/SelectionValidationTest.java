@@ -0,0 +1,155 @@
+package com.leaf.downloads;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link Helpers#validateSelection}, checking that remembered
+ * outcomes agree with a fresh parse, and measuring what validation costs a
+ * query with and without them.
+ */
+public class SelectionValidationTest {
+
+    private static final int WARMUP_CALLS = 200000;
+    private static final int CALLS = 200000;
+
+    /** A selection shaped like the ones {@link DownloadManager.Query} builds. */
+    private static final String QUERY_SELECTION = "(_id = ? ) AND (status='200' OR "
+            + "(status>='400' AND status<'600')) AND is_visible_in_downloads_ui != '0' "
+            + "AND deleted != '1'";
+
+    private static final Set<String> COLUMNS = newColumns();
+
+    @Test
+    public void testValidSelectionsPass() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            Helpers.validateSelection(QUERY_SELECTION, COLUMNS);
+            Helpers.validateSelection("title = 'a' AND description IS NULL", COLUMNS);
+            Helpers.validateSelection("_id <> ? OR (uri == ? AND total_bytes >= ?)", COLUMNS);
+        }
+        Helpers.validateSelection(null, COLUMNS);
+        Helpers.validateSelection("", COLUMNS);
+    }
+
+    @Test
+    public void testInvalidSelectionsFailWhenRemembered() throws Exception {
+        final String[] invalid = {
+                "_data = 'x' OR secret = 'y'",
+                "status = '200' AND",
+                "(status = '200'",
+                "status = '200",
+                "status = 200",
+                "status = '200'; DROP TABLE downloads",
+                "title LIKE 'a%'",
+                "_id IN (?, ?)",
+        };
+        for (int i = 0; i < 2; i++) {
+            for (String selection : invalid) {
+                assertInvalid(selection, COLUMNS);
+            }
+        }
+    }
+
+    @Test
+    public void testLiteralsDoNotChangeOutcome() throws Exception {
+        Helpers.validateSelection("status = '200' AND title = 'a'", COLUMNS);
+        // Same shape, so decided by the remembered outcome
+        Helpers.validateSelection("status  = '404' AND title = 'it''s'", COLUMNS);
+        assertInvalid("secret = '1'", COLUMNS);
+        assertInvalid("secret = '2'", COLUMNS);
+        // A quote inside a literal can't change what the lexer sees outside it
+        assertInvalid("title = 'a' OR secret = 'b'", COLUMNS);
+    }
+
+    @Test
+    public void testOutcomesKeptPerColumnSet() throws Exception {
+        final Set<String> narrow = new HashSet<String>(Arrays.asList("_id"));
+        Helpers.validateSelection("status = '200'", COLUMNS);
+        assertInvalid("status = '200'", narrow);
+        Helpers.validateSelection("status = '200'", COLUMNS);
+    }
+
+    @Test
+    public void benchmarkQueryValidation() throws Exception {
+        final List<Set<String>> sets = newColumnSets(Constants.SELECTION_CACHE_SIZE * 2);
+        final String[] literals = new String[Constants.SELECTION_CACHE_SIZE * 2];
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = QUERY_SELECTION.replace("'200'", "'" + (200 + i) + "'");
+        }
+
+        for (int round = 0; round < 2; round++) {
+            final int calls = (round == 0) ? WARMUP_CALLS : CALLS;
+
+            // Every call misses, as every query did before outcomes were kept
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                Helpers.validateSelection(QUERY_SELECTION, sets.get(i % sets.size()));
+            }
+            final long parse = (System.nanoTime() - start) / calls;
+
+            // The same selection again, as a list polling its query does
+            start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                Helpers.validateSelection(QUERY_SELECTION, COLUMNS);
+            }
+            final long repeated = (System.nanoTime() - start) / calls;
+
+            // More distinct literals than are remembered, matched by shape
+            start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                Helpers.validateSelection(literals[i % literals.length], COLUMNS);
+            }
+            final long shaped = (System.nanoTime() - start) / calls;
+
+            if (round > 0) {
+                System.out.println("Selection validation (" + QUERY_SELECTION.length()
+                        + " chars): parsed " + parse + "ns, repeated " + repeated
+                        + "ns, same shape " + shaped + "ns per query");
+            }
+        }
+    }
+
+    private static void assertInvalid(String selection, Set<String> columns) {
+        try {
+            Helpers.validateSelection(selection, columns);
+            fail("Accepted " + selection);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Return the given number of copies of the readable columns. Outcomes
+     * are kept per set, so cycling through more sets than are remembered
+     * makes every call parse.
+     */
+    private static List<Set<String>> newColumnSets(int count) {
+        final List<Set<String>> sets = new ArrayList<Set<String>>(count);
+        for (int i = 0; i < count; i++) {
+            sets.add(newColumns());
+        }
+        return sets;
+    }
+
+    /** The columns apps may select on, as in {@link DownloadProvider}. */
+    private static Set<String> newColumns() {
+        return new HashSet<String>(Arrays.asList(
+                Downloads.Impl._ID,
+                Downloads.Impl._DATA,
+                Downloads.Impl.COLUMN_MIME_TYPE,
+                Downloads.Impl.COLUMN_STATUS,
+                Downloads.Impl.COLUMN_TOTAL_BYTES,
+                Downloads.Impl.COLUMN_CURRENT_BYTES,
+                Downloads.Impl.COLUMN_TITLE,
+                Downloads.Impl.COLUMN_DESCRIPTION,
+                Downloads.Impl.COLUMN_URI,
+                Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI,
+                Downloads.Impl.COLUMN_DELETED));
+    }
+}
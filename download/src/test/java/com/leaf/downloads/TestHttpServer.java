@@ -0,0 +1,313 @@
+package com.leaf.downloads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP server on a local socket for tests, serving fixed responses by
+ * path. Connections are kept alive between requests like a real HTTP/1.1
+ * server's, and counted, so tests can tell whether a client reused one.
+ */
+final class TestHttpServer implements Closeable {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * A canned response. Bodies are sent with a Content-Length unless chunked
+     * or delimited by closing the connection, optionally a slice at a time
+     * like a slow server.
+     */
+    static final class Response {
+        String mStatusLine = "HTTP/1.1 200 OK";
+        final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+        byte[] mBody = new byte[0];
+        byte[] mVerbatim;
+        int mChunkSize;
+        boolean mCloseDelimited;
+        int mSliceBytes;
+        long mSliceDelayMillis;
+
+        static Response ok(byte[] body) {
+            final Response response = new Response();
+            response.mBody = body;
+            return response;
+        }
+
+        /**
+         * Send the given bytes as they are, status line and headers
+         * included, and nothing more until the client closes.
+         */
+        static Response verbatim(byte[] bytes) {
+            final Response response = new Response();
+            response.mVerbatim = bytes;
+            return response;
+        }
+
+        Response throttle(int sliceBytes, long delayMillis) {
+            mSliceBytes = sliceBytes;
+            mSliceDelayMillis = delayMillis;
+            return this;
+        }
+
+        Response statusLine(String statusLine) {
+            mStatusLine = statusLine;
+            return this;
+        }
+
+        Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        Response chunked(int chunkSize) {
+            mChunkSize = chunkSize;
+            return this;
+        }
+
+        Response closeDelimited() {
+            mCloseDelimited = true;
+            return this;
+        }
+    }
+
+    private final ServerSocket mServer;
+    private final Map<String, Response> mResponses =
+            Collections.synchronizedMap(new HashMap<String, Response>());
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+    private final List<Map<String, String>> mRequests =
+            Collections.synchronizedList(new ArrayList<Map<String, String>>());
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mActiveResponses = new AtomicInteger();
+    private final AtomicInteger mPeakActiveResponses = new AtomicInteger();
+
+    TestHttpServer() throws IOException {
+        this(InetAddress.getByName("127.0.0.1"));
+    }
+
+    TestHttpServer(InetAddress address) throws IOException {
+        mServer = new ServerSocket(0, 200, address);
+        final Thread acceptor = new Thread("TestHttpServer") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void setResponse(String path, Response response) {
+        mResponses.put(path, response);
+    }
+
+    URL url(String path) throws IOException {
+        final String host = mServer.getInetAddress().getHostAddress();
+        return new URL("http://" + ((host.indexOf(':') != -1) ? "[" + host + "]" : host) + ":"
+                + mServer.getLocalPort() + path);
+    }
+
+    int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     * Return how many connections the server has accepted so far.
+     */
+    int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /**
+     * Return the most responses that were being sent at the same time.
+     */
+    int getPeakActiveResponses() {
+        return mPeakActiveResponses.get();
+    }
+
+    /**
+     * Return the headers of every request so far, with lower case names.
+     */
+    List<Map<String, String>> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Map<String, String>>(mRequests);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServer.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnections.incrementAndGet();
+            mSockets.add(socket);
+            final Thread handler = new Thread("TestHttpServer-" + mConnections.get()) {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException ignored) {
+                        // Client went away
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final OutputStream out = socket.getOutputStream();
+        while (true) {
+            final String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            final Map<String, String> headers = new HashMap<String, String>();
+            headers.put(":request", requestLine);
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            mRequests.add(headers);
+
+            final String[] parts = requestLine.split(" ");
+            final Response response = (parts.length > 1) ? mResponses.get(parts[1]) : null;
+            if (response == null) {
+                write(out, "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+                continue;
+            }
+            final int active = mActiveResponses.incrementAndGet();
+            int peak;
+            while (active > (peak = mPeakActiveResponses.get())
+                    && !mPeakActiveResponses.compareAndSet(peak, active)) {
+            }
+            try {
+                if (response.mVerbatim != null) {
+                    out.write(response.mVerbatim);
+                    out.flush();
+                    // Hold the connection open until the client gives up
+                    while (in.read() != -1) {
+                    }
+                    return;
+                }
+                writeResponse(out, response, requestLine.startsWith("HEAD "));
+            } finally {
+                mActiveResponses.decrementAndGet();
+            }
+            if (response.mCloseDelimited || "close".equalsIgnoreCase(headers.get("connection"))
+                    || "close".equalsIgnoreCase(response.mHeaders.get("Connection"))
+                    || response.mStatusLine.startsWith("HTTP/1.0")) {
+                return;
+            }
+        }
+    }
+
+    private static void writeResponse(OutputStream out, Response response, boolean head)
+            throws IOException {
+        final StringBuilder builder = new StringBuilder(response.mStatusLine).append("\r\n");
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            builder.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n");
+        }
+        if (response.mChunkSize > 0) {
+            builder.append("Transfer-Encoding: chunked\r\n");
+        } else if (!response.mCloseDelimited) {
+            builder.append("Content-Length: ").append(response.mBody.length).append("\r\n");
+        }
+        builder.append("\r\n");
+        write(out, builder.toString());
+        if (head) {
+            out.flush();
+            return;
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (response.mChunkSize > 0) {
+            for (int i = 0; i < response.mBody.length; i += response.mChunkSize) {
+                final int n = Math.min(response.mChunkSize, response.mBody.length - i);
+                body.write((Integer.toHexString(n) + "\r\n").getBytes(ASCII));
+                body.write(response.mBody, i, n);
+                body.write("\r\n".getBytes(ASCII));
+            }
+            body.write("0\r\n\r\n".getBytes(ASCII));
+        } else {
+            body.write(response.mBody);
+        }
+        writeSlices(out, body.toByteArray(), response);
+    }
+
+    private static void writeSlices(OutputStream out, byte[] bytes, Response response)
+            throws IOException {
+        final int slice = (response.mSliceBytes > 0) ? response.mSliceBytes : bytes.length;
+        for (int i = 0; i < bytes.length; i += slice) {
+            if (i > 0 && response.mSliceDelayMillis > 0) {
+                try {
+                    Thread.sleep(response.mSliceDelayMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            out.write(bytes, i, Math.min(slice, bytes.length - i));
+            out.flush();
+        }
+        out.flush();
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(ASCII));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                final byte[] bytes = line.toByteArray();
+                final int length = (bytes.length > 0 && bytes[bytes.length - 1] == '\r')
+                        ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, ASCII);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+}
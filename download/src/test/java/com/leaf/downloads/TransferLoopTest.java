@@ -0,0 +1,169 @@
+package com.leaf.downloads;
+
+import android.content.Context;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drives the steady-state loop of {@link DownloadThread} over an in-memory
+ * body, checking that chunks are copied without allocating, and measuring
+ * what each chunk costs.
+ */
+public class TransferLoopTest {
+
+    private static final int WARMUP_CHUNKS = 200000;
+    private static final int SHORT_CHUNKS = 1000;
+    private static final int LONG_CHUNKS = 101000;
+
+    @Test
+    public void testSteadyStateDoesNotAllocate() throws Exception {
+        final com.sun.management.ThreadMXBean bean = getAllocationBean();
+        assumeTrue(bean != null);
+
+        final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+        transfer(WARMUP_CHUNKS, buffer);
+
+        // The difference between a short and a long transfer leaves out what
+        // every transfer allocates once, such as the thread and its metrics
+        final long threadId = Thread.currentThread().getId();
+        long start = bean.getThreadAllocatedBytes(threadId);
+        transfer(SHORT_CHUNKS, buffer);
+        final long shortBytes = bean.getThreadAllocatedBytes(threadId) - start;
+
+        start = bean.getThreadAllocatedBytes(threadId);
+        transfer(LONG_CHUNKS, buffer);
+        final long longBytes = bean.getThreadAllocatedBytes(threadId) - start;
+
+        final long perChunk = (longBytes - shortBytes) / (LONG_CHUNKS - SHORT_CHUNKS);
+        assertEquals("Bytes allocated per chunk (short " + shortBytes + ", long "
+                + longBytes + ")", 0, perChunk);
+    }
+
+    @Test
+    public void testPauseStopsLoop() throws Exception {
+        final DownloadInfo info = newInfo(Constants.BUFFER_SIZE * 10L);
+        info.mControl = Downloads.Impl.CONTROL_PAUSED;
+        info.updateControlWord();
+        try {
+            new DownloadThread(null, null, info).transferData(new ChunkStream(10),
+                    new NullOutputStream(), null, null, new byte[Constants.BUFFER_SIZE]);
+            fail("Paused download kept transferring");
+        } catch (StopRequestException e) {
+            assertEquals(Downloads.Impl.STATUS_PAUSED_BY_APP, e.getFinalStatus());
+        }
+    }
+
+    @Test
+    public void benchmarkSteadyStateChunks() throws Exception {
+        final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+        transfer(WARMUP_CHUNKS, buffer);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            final long start = System.nanoTime();
+            transfer(LONG_CHUNKS, buffer);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        final com.sun.management.ThreadMXBean bean = getAllocationBean();
+        long allocated = -1;
+        if (bean != null) {
+            final long threadId = Thread.currentThread().getId();
+            final long start = bean.getThreadAllocatedBytes(threadId);
+            transfer(LONG_CHUNKS, buffer);
+            allocated = bean.getThreadAllocatedBytes(threadId) - start;
+        }
+        System.out.println("Transfer loop: " + (best / LONG_CHUNKS) + "ns and "
+                + ((allocated < 0) ? "?" : String.valueOf(allocated / LONG_CHUNKS))
+                + " bytes allocated per " + Constants.BUFFER_SIZE + " byte chunk");
+    }
+
+    private static void transfer(int chunks, byte[] buffer) throws Exception {
+        final long length = (long) chunks * buffer.length;
+        final DownloadThread thread = new DownloadThread(null, null, newInfo(length));
+        final NullOutputStream out = new NullOutputStream();
+        thread.transferData(new ChunkStream(chunks), out, null, null, buffer);
+        assertEquals(length, out.mCount);
+    }
+
+    private static DownloadInfo newInfo(long totalBytes) throws Exception {
+        final Constructor<DownloadInfo> constructor = DownloadInfo.class.getDeclaredConstructor(
+                Context.class, DownloadNotifier.class);
+        constructor.setAccessible(true);
+        final DownloadInfo info = constructor.newInstance(null, null);
+        info.mId = 1;
+        info.mStatus = Downloads.Impl.STATUS_RUNNING;
+        info.mTotalBytes = totalBytes;
+        info.updateControlWord();
+        return info;
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationBean() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        final com.sun.management.ThreadMXBean allocationBean =
+                (com.sun.management.ThreadMXBean) bean;
+        if (!allocationBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        return allocationBean;
+    }
+
+    /**
+     * Body of the given number of full chunks, served without allocating.
+     */
+    private static class ChunkStream extends InputStream {
+        private int mRemaining;
+
+        ChunkStream(int chunks) {
+            mRemaining = chunks;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b) {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            mRemaining--;
+            assertTrue(len > 0);
+            return len;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+}